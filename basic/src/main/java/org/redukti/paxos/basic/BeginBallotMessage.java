@@ -50,7 +50,7 @@ public class BeginBallotMessage implements PaxosMessage {
 
     @Override
     public ByteBuffer serialize() {
-        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+BallotNum.size()+Decree.size());
+        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+BallotNum.size()+decree.serializedSize());
         bb.putShort((short)getCode());
         b.store(bb);
         decree.store(bb);
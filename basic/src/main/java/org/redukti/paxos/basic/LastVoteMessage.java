@@ -56,7 +56,7 @@ public class LastVoteMessage implements PaxosMessage {
 
     @Override
     public ByteBuffer serialize() {
-        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+BallotNum.size()+Vote.size());
+        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+BallotNum.size()+v.serializedSize());
         bb.putShort((short)getCode());
         b.store(bb);
         v.store(bb);
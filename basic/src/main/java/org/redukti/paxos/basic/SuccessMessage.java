@@ -41,7 +41,7 @@ public class SuccessMessage implements PaxosMessage {
 
     @Override
     public ByteBuffer serialize() {
-        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+Decree.size());
+        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+decree.serializedSize());
         bb.putShort((short)getCode());
         decree.store(bb);
         bb.flip();
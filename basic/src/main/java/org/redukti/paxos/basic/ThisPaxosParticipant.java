@@ -397,7 +397,13 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
 
     @Override
     public synchronized void handleRequest(Message request, RequestResponseSender responseSender) {
-        PaxosMessage pm = PaxosMessages.parseMessage(request.getCorrelationId(), request.getData());
+        PaxosMessage pm;
+        try {
+            pm = PaxosMessages.parseMessage(request.getCorrelationId(), request.getData());
+        } finally {
+            // Parsed messages are copies
+            request.release();
+        }
         if (pm instanceof NextBallotMessage) {
             receiveNextBallot((NextBallotMessage) pm);
         }
@@ -1,8 +1,10 @@
 package org.redukti.paxos.net.example.echoclient;
 
 import org.redukti.paxos.net.api.Connection;
+import org.redukti.paxos.net.api.EventLoop;
 import org.redukti.paxos.net.api.Message;
 import org.redukti.paxos.net.api.ResponseHandler;
+import org.redukti.paxos.net.impl.EventLoopGroup;
 import org.redukti.paxos.net.impl.EventLoopImpl;
 
 import java.nio.ByteBuffer;
@@ -16,7 +18,9 @@ public class EchoClient implements ResponseHandler {
     public static void main(String[] args) {
 
         EchoClient m = new EchoClient();
-        try (EventLoopImpl eventLoop = new EventLoopImpl()) {
+        // Optional argument is the number of I/O threads
+        int ioThreads = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        try (EventLoop eventLoop = ioThreads > 0 ? new EventLoopGroup(ioThreads) : new EventLoopImpl()) {
 
             //eventLoop.start("localhost", 9001, m);
             Connection connection = eventLoop.clientConnection("localhost", 9001, null);
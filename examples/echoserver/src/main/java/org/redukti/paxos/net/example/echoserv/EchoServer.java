@@ -2,9 +2,11 @@ package org.redukti.paxos.net.example.echoserv;
 
 import org.redukti.logging.Logger;
 import org.redukti.logging.LoggerFactory;
+import org.redukti.paxos.net.api.EventLoop;
 import org.redukti.paxos.net.api.Message;
 import org.redukti.paxos.net.api.RequestHandler;
 import org.redukti.paxos.net.api.RequestResponseSender;
+import org.redukti.paxos.net.impl.EventLoopGroup;
 import org.redukti.paxos.net.impl.EventLoopImpl;
 
 import java.nio.ByteBuffer;
@@ -19,7 +21,9 @@ public class EchoServer implements RequestHandler {
     public static void main(String[] args) {
 
         EchoServer m = new EchoServer();
-        try (EventLoopImpl eventLoop = new EventLoopImpl()) {
+        // Optional argument is the number of I/O threads
+        int ioThreads = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        try (EventLoop eventLoop = ioThreads > 0 ? new EventLoopGroup(ioThreads) : new EventLoopImpl()) {
 
             //eventLoop.start("localhost", 9001, m);
             eventLoop.startServerChannel("localhost", 9001, m);
@@ -13,30 +13,104 @@ import java.util.Objects;
  * The value of a decree is a long, but it could be anything. We use a long because its small size
  * and is good enough to implement Paxos without having to worry about efficiency in storing and communicating
  * large size values.
+ * <p>
+ * Applications that need to replicate larger commands can attach a variable length binary payload
+ * to the decree. The payload is a read only buffer; when a decree is deserialized the payload is a slice
+ * of the buffer it was read from, so it is not copied until it is written out again.
+ * </p>
  */
 public class Decree implements Comparable<Decree> {
     public final long decreeNum;
     public final long value;
+    /**
+     * Read only payload from position 0 to limit, empty if the decree has none
+     */
+    public final ByteBuffer payload;
 
     public static long NOOP_VAL = 0L; // Todo should not an actual value ...
 
+    public static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    /**
+     * Size of a serialized decree without a payload
+     */
     public static int size() {
-        return Long.BYTES * 2;
+        return Long.BYTES * 2 + Integer.BYTES;
+    }
+
+    /**
+     * Size of this decree when serialized, including the payload
+     */
+    public int serializedSize() {
+        return size() + payload.remaining();
+    }
+
+    /**
+     * Total size of the decrees when serialized
+     */
+    public static int serializedSize(Decree[] decrees) {
+        int size = 0;
+        for (Decree d : decrees) {
+            size += d.serializedSize();
+        }
+        return size;
     }
 
     public void store(ByteBuffer bb) {
         bb.putLong(decreeNum);
         bb.putLong(value);
+        bb.putInt(payload.remaining());
+        bb.put(payload.duplicate());
     }
 
+    /**
+     * Reads a decree, the payload is a slice of bb rather than a copy
+     */
     public Decree(ByteBuffer bb) {
         this.decreeNum = bb.getLong();
         this.value = bb.getLong();
+        this.payload = slicePayload(bb, bb.getInt());
     }
 
     public Decree(long decreeNum, long value) {
+        this(decreeNum, value, EMPTY_PAYLOAD);
+    }
+
+    /**
+     * @param payload Payload from its position to its limit, this is not copied
+     *                so it must not be modified afterwards
+     */
+    public Decree(long decreeNum, long value, ByteBuffer payload) {
         this.decreeNum = decreeNum;
         this.value = value;
+        this.payload = payload.remaining() == 0 ? EMPTY_PAYLOAD : payload.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a read only view of the next length bytes of bb, and moves bb past them
+     */
+    public static ByteBuffer slicePayload(ByteBuffer bb, int length) {
+        if (length < 0 || length > bb.remaining())
+            throw new IllegalArgumentException("Invalid payload length " + length);
+        if (length == 0)
+            return EMPTY_PAYLOAD;
+        ByteBuffer slice = bb.slice();
+        slice.limit(length);
+        bb.position(bb.position() + length);
+        return slice.asReadOnlyBuffer();
+    }
+
+    public boolean hasPayload() {
+        return payload.remaining() > 0;
+    }
+
+    /**
+     * Returns a copy of the payload
+     */
+    public byte[] getPayloadBytes() {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
     }
 
     @Override
@@ -44,6 +118,8 @@ public class Decree implements Comparable<Decree> {
         int result = Long.compare(decreeNum, o.decreeNum);
         if (result == 0)
             result = Long.compare(value, o.value);
+        if (result == 0)
+            result = payload.compareTo(o.payload);
         return result;
     }
 
@@ -57,7 +133,7 @@ public class Decree implements Comparable<Decree> {
 
     @Override
     public int hashCode() {
-        return Objects.hash(decreeNum, value);
+        return Objects.hash(decreeNum, value, payload);
     }
 
     public boolean isNull() {
@@ -69,6 +145,7 @@ public class Decree implements Comparable<Decree> {
         return "Decree{" +
                 "decreeNum=" + decreeNum +
                 ", value=" + value +
+                (hasPayload() ? ", payload=" + payload.remaining() + " bytes" : "") +
                 '}';
     }
 }
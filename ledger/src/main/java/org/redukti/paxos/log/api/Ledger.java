@@ -5,6 +5,8 @@
 package org.redukti.paxos.log.api;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * In Leslie Lamport's PTP paper, the ledger is where the priest notes down stuff that he/she must not
@@ -29,6 +31,19 @@ public interface Ledger extends AutoCloseable {
      */
     Long getOutcome(long decreeNum);
 
+    /**
+     * Passes each COMMITTED decree in the range [fromDnum, toDnum] to the consumer in decree number order.
+     * Implementations should read the range sequentially rather than a decree at a time.
+     */
+    default void forEachOutcome(long fromDnum, long toDnum, Consumer<Decree> consumer) {
+        for (long dnum = fromDnum; dnum <= toDnum; dnum++) {
+            Long outcome = getOutcome(dnum);
+            if (outcome != null) {
+                consumer.accept(new Decree(dnum, outcome));
+            }
+        }
+    }
+
     /**
      * Sets the number of the last ballot that p tried to start; p = owner(ballot) here.
      */
@@ -57,6 +72,42 @@ public interface Ledger extends AutoCloseable {
      * This variant is used in Basic Paxos which only ever works with decree number 0
      */
     default void setMaxVBal(BallotNum ballot, long maxVal) { setMaxVBal(ballot, 0, maxVal); }
+
+    /**
+     * Records a batch of updates: each of the outcomes as by setOutcome(), followed by a vote in
+     * the given ballot for each of the votes as by setMaxVBal(). Implementations should write the batch
+     * with fewer writes and forces than the equivalent individual calls would need.
+     *
+     * @param outcomes committed decrees
+     * @param ballot Ballot number being stored against the votes, may be null if there are no votes
+     * @param votes decrees voted for in ballot, none of which may be COMMITTED
+     * @throws UnsupportedOperationException if a decree has a payload and the ledger cannot store payloads
+     */
+    default void setValues(Decree[] outcomes, BallotNum ballot, Decree[] votes) {
+        if (hasPayload(outcomes) || hasPayload(votes))
+            throw new UnsupportedOperationException("Decree payloads are not supported by " + getClass().getName());
+        for (Decree d : outcomes) {
+            setOutcome(d.decreeNum, d.value);
+        }
+        for (Decree d : votes) {
+            setMaxVBal(ballot, d.decreeNum, d.value);
+        }
+    }
+
+    /**
+     * Whether the ledger stores decree payloads. Payloads are only recorded via setValues(),
+     * and are returned by getMaxVal(), getUndecidedBallots() and forEachOutcome().
+     */
+    default boolean supportsPayloads() { return false; }
+
+    private static boolean hasPayload(Decree[] decrees) {
+        for (Decree d : decrees) {
+            if (d.hasPayload())
+                return true;
+        }
+        return false;
+    }
+
     /**
      * The number of the last ballot in which p voted, or BallotNum.MINUS_INFINITY if p never voted
      * Also known as prevBal
@@ -100,4 +151,33 @@ public interface Ledger extends AutoCloseable {
      * i.e. setOutcome() was not called
      */
     List<BallotedDecree> getUndecidedBallots();
+
+    /**
+     * Saves the snapshot and discards all decrees up to and including snapshot.decreeNum, after
+     * which they read as if they were never written. If snapshot.decreeNum is beyond commitNum,
+     * as happens when a process that has fallen behind installs a snapshot obtained from
+     * another process, commitNum is moved up to it.
+     */
+    default void saveSnapshot(Snapshot snapshot) {
+        throw new UnsupportedOperationException("Snapshots are not supported by " + getClass().getName());
+    }
+
+    /**
+     * The last snapshot saved, or null if there is none
+     */
+    default Snapshot getSnapshot() { return null; }
+
+    /**
+     * The lowest decree number that has not been discarded by a snapshot
+     */
+    default long getFirstDnum() { return 0; }
+
+    /**
+     * Returns a future that completes when all updates made to the ledger before this call
+     * are durable. A process must not send a message that depends on a ledger update
+     * (such as a promise or a vote) until this completes.
+     * Implementations that make each update durable before returning can use the default, which
+     * returns a completed future.
+     */
+    default CompletableFuture<Void> flushAsync() { return CompletableFuture.completedFuture(null); }
 }
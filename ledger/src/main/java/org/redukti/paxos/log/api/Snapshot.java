@@ -0,0 +1,27 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.api;
+
+/**
+ * A snapshot of the application's state after all decrees up to and including
+ * decreeNum have been applied. The state is opaque to the ledger.
+ */
+public class Snapshot {
+    public final long decreeNum;
+    public final byte[] state;
+
+    public Snapshot(long decreeNum, byte[] state) {
+        this.decreeNum = decreeNum;
+        this.state = state;
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot{" +
+                "decreeNum=" + decreeNum +
+                ", size=" + state.length +
+                '}';
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which decrees have been committed, so that commitNum can be advanced
+ * past decrees that were committed out of order without reading them back.
+ * <p>
+ * Only decrees above commitNum need to be tracked, as everything up to and including
+ * commitNum is committed by definition. The bitmap is therefore a window starting
+ * at base - every decree below base is considered committed - and the window slides
+ * forward as commitNum advances. Its size is proportional to the largest gap between
+ * commitNum and the highest committed decree rather than to the size of the ledger.
+ * </p>
+ */
+final class CommitBitmap {
+
+    private static final int INITIAL_WORDS = 16;
+
+    /**
+     * Decree number of the first bit; always a multiple of 64
+     */
+    private long base;
+    private long[] words = new long[INITIAL_WORDS];
+
+    void set(long decreeNum) {
+        if (decreeNum < base)
+            return;
+        long w = (decreeNum - base) >>> 6;
+        if (w >= words.length)
+            grow(w);
+        words[(int) w] |= 1L << (decreeNum & 63);
+    }
+
+    boolean get(long decreeNum) {
+        if (decreeNum < base)
+            return true;
+        long w = (decreeNum - base) >>> 6;
+        if (w >= words.length)
+            return false;
+        return (words[(int) w] & (1L << (decreeNum & 63))) != 0;
+    }
+
+    /**
+     * Returns the lowest decree number at or above from that is not committed
+     */
+    long nextClear(long from) {
+        if (from < base)
+            from = base;
+        long w = (from - base) >>> 6;
+        long mask = -1L << (from & 63);
+        while (w < words.length) {
+            long clear = ~words[(int) w] & mask;
+            if (clear != 0)
+                return base + (w << 6) + Long.numberOfTrailingZeros(clear);
+            w++;
+            mask = -1L;
+        }
+        return base + ((long) words.length << 6);
+    }
+
+    /**
+     * Given a commitNum, i.e. all decrees up to and including commitNum are committed,
+     * returns the highest decree number n such that all decrees up to and including n
+     * are committed, and slides the window forward past them.
+     */
+    long advance(long commitNum) {
+        long next = nextClear(commitNum + 1);
+        setAllBelow(next);
+        return next - 1;
+    }
+
+    /**
+     * Marks all decrees below decreeNum as committed
+     */
+    void setAllBelow(long decreeNum) {
+        if (decreeNum <= base)
+            return;
+        long n = (decreeNum - base) >>> 6;
+        if (n >= words.length) {
+            Arrays.fill(words, 0);
+        } else if (n > 0) {
+            System.arraycopy(words, (int) n, words, 0, words.length - (int) n);
+            Arrays.fill(words, words.length - (int) n, words.length, 0);
+        }
+        base += n << 6;
+        int bits = (int) (decreeNum - base);
+        if (bits > 0)
+            words[0] |= (1L << bits) - 1;
+    }
+
+    private void grow(long w) {
+        if (w >= Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Decree is too far beyond the commit bitmap base " + base);
+        long newLength = Math.max(w + 1, (long) words.length * 2);
+        words = Arrays.copyOf(words, (int) Math.min(newLength, Integer.MAX_VALUE - 8));
+    }
+}
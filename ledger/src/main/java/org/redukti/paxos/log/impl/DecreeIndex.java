@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import java.util.Arrays;
+
+/**
+ * A compact map from decree number to the location of the decree's latest record.
+ * Locations are longs, held in a single array indexed by (decreeNum - base), where
+ * base is the lowest decree number retained. Decree numbers are dense so this is far
+ * smaller than a general purpose map.
+ */
+final class DecreeIndex {
+
+    static final long NONE = -1;
+
+    private long base;
+    private long[] locations;
+    /**
+     * One past the highest decree number that has a location
+     */
+    private long limit;
+
+    DecreeIndex(long base) {
+        this.base = base;
+        this.limit = base;
+        this.locations = new long[1024];
+        Arrays.fill(locations, NONE);
+    }
+
+    long get(long decreeNum) {
+        if (decreeNum < base || decreeNum >= limit)
+            return NONE;
+        return locations[(int) (decreeNum - base)];
+    }
+
+    void put(long decreeNum, long location) {
+        if (decreeNum < base)
+            throw new IllegalArgumentException("Decree " + decreeNum + " is below the index base " + base);
+        long i = decreeNum - base;
+        if (i >= Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Decree " + decreeNum + " is too far beyond the index base " + base);
+        if (i >= locations.length) {
+            int oldLength = locations.length;
+            long newLength = Math.max(i + 1, (long) oldLength * 2);
+            locations = Arrays.copyOf(locations, (int) Math.min(newLength, Integer.MAX_VALUE - 8));
+            Arrays.fill(locations, oldLength, locations.length, NONE);
+        }
+        locations[(int) i] = location;
+        if (decreeNum >= limit)
+            limit = decreeNum + 1;
+    }
+
+    /**
+     * Drops all entries below newBase.
+     */
+    void truncate(long newBase) {
+        if (newBase <= base)
+            return;
+        int n = (int) Math.min(newBase - base, (long) locations.length);
+        long[] newLocations = new long[Math.max(1024, locations.length - n)];
+        Arrays.fill(newLocations, NONE);
+        System.arraycopy(locations, n, newLocations, 0, locations.length - n);
+        locations = newLocations;
+        base = newBase;
+        if (limit < base)
+            limit = base;
+    }
+
+    long getBase() {
+        return base;
+    }
+
+    /**
+     * One past the highest decree number that has a location
+     */
+    long getLimit() {
+        return limit;
+    }
+}
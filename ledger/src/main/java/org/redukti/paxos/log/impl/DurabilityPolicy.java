@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import org.redukti.paxos.log.api.LedgerException;
+
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * How a ledger makes its updates durable, selected by the {@link #DURABILITY} storage property.
+ * <p>
+ * The policies trade latency against throughput and safety: sync and dsync make each write
+ * durable as part of the write itself, fsync and fdatasync force the file after each update,
+ * group forces the file once for a batch of updates, and unsafe never forces updates at all.
+ * </p>
+ */
+public enum DurabilityPolicy {
+
+    /**
+     * The file is opened in rws mode, every write synchronously updates content and metadata
+     */
+    SYNC("rws", false, true),
+    /**
+     * The file is opened in rwd mode, every write synchronously updates content
+     * and only the metadata needed to read it back, i.e. O_DSYNC
+     */
+    DSYNC("rwd", false, false),
+    /**
+     * The file is forced with force(true) after each update
+     */
+    FSYNC("rw", true, true),
+    /**
+     * The file is forced with force(false) after each update, i.e. fdatasync
+     */
+    FDATASYNC("rw", true, false),
+    /**
+     * A writer thread forces the file with force(false) once for all the
+     * callers of flushAsync() waiting on it (group commit). MappedLedgerImpl
+     * forces its dirty regions instead, which has no metadata option.
+     */
+    GROUP("rw", false, false),
+    /**
+     * Updates are never forced; a crash may lose or tear them. Only for benchmarks.
+     */
+    UNSAFE("rw", false, false);
+
+    /**
+     * Name of the storage property that selects the policy, e.g. storage.durability=fdatasync.
+     * The default is sync.
+     */
+    public static final String DURABILITY = "storage.durability";
+
+    /**
+     * Mode the file is opened in
+     */
+    final String mode;
+    /**
+     * Whether the file is forced after each update
+     */
+    final boolean forceEachUpdate;
+    /**
+     * Whether forcing the file also forces its metadata
+     */
+    final boolean metaData;
+
+    DurabilityPolicy(String mode, boolean forceEachUpdate, boolean metaData) {
+        this.mode = mode;
+        this.forceEachUpdate = forceEachUpdate;
+        this.metaData = metaData;
+    }
+
+    /**
+     * True if each write is durable when it returns
+     */
+    boolean isSyncWrites() {
+        return "rws".equals(mode) || "rwd".equals(mode);
+    }
+
+    /**
+     * Name as used in the storage property
+     */
+    public String propertyValue() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the policy selected by the storage properties. Setting
+     * {@link LedgerImpl#GROUP_COMMIT} to true is the same as selecting group.
+     */
+    public static DurabilityPolicy fromProperties(Properties props) {
+        if (Boolean.parseBoolean(props.getProperty(LedgerImpl.GROUP_COMMIT, "false")))
+            return GROUP;
+        String value = props.getProperty(DURABILITY, SYNC.propertyValue());
+        for (DurabilityPolicy policy : values()) {
+            if (policy.propertyValue().equalsIgnoreCase(value.trim()))
+                return policy;
+        }
+        throw new LedgerException("Unknown durability policy " + value);
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import org.redukti.logging.Logger;
+import org.redukti.logging.LoggerFactory;
+import org.redukti.paxos.log.api.LedgerException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Implements group commit for a ledger file. Callers write to the file without forcing it and then
+ * ask for a sync; a dedicated writer thread picks up all the sync requests that have accumulated
+ * since its last force, forces the file once for the lot, and then completes the
+ * future of each caller. Under load the number of forces is therefore proportional to the number
+ * of batches rather than the number of writes.
+ */
+final class GroupCommitWriter implements Runnable {
+
+    final static Logger log = LoggerFactory.DEFAULT.getLogger(GroupCommitWriter.class.getName());
+
+    /**
+     * Makes everything written to the ledger so far durable, e.g. FileChannel.force().
+     * Must be safe to call concurrently with writers.
+     */
+    interface Syncer {
+        void sync() throws IOException;
+    }
+
+    private final String name;
+    private final Syncer syncer;
+    private final Thread thread;
+
+    /**
+     * Sync requests waiting for the next force. Guarded by this.
+     */
+    private List<CompletableFuture<Void>> pending = new ArrayList<>();
+    private boolean stopped;
+
+    private volatile long syncCount;
+    private volatile long syncRequests;
+
+    GroupCommitWriter(String name, Syncer syncer) {
+        this.name = name;
+        this.syncer = syncer;
+        this.thread = new Thread(this, "GroupCommitWriter-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Returns a future that completes once everything written to the file before
+     * this call is durable.
+     */
+    CompletableFuture<Void> requestSync() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (stopped) {
+                future.completeExceptionally(new LedgerException("Ledger " + name + " is closed"));
+                return future;
+            }
+            pending.add(future);
+            notify();
+        }
+        return future;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<CompletableFuture<Void>> batch;
+            synchronized (this) {
+                while (pending.isEmpty() && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignored, we only exit when stopped
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            try {
+                syncer.sync();
+                syncCount++;
+                syncRequests += batch.size();
+                for (CompletableFuture<Void> f : batch) {
+                    f.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                // e.g. UncheckedIOException from MappedByteBuffer.force(); fail the batch but
+                // keep going, as later requests may yet succeed
+                fail(batch, e);
+            } catch (Error e) {
+                // Do not leave anyone waiting on a writer that is gone
+                List<CompletableFuture<Void>> rest;
+                synchronized (this) {
+                    stopped = true;
+                    rest = pending;
+                    pending = new ArrayList<>();
+                }
+                fail(batch, e);
+                fail(rest, e);
+                throw e;
+            }
+        }
+    }
+
+    private void fail(List<CompletableFuture<Void>> batch, Throwable e) {
+        if (batch.isEmpty())
+            return;
+        log.error(getClass(), "run", "Failure when flushing ledger " + name + " to disk", e);
+        LedgerException ex = new LedgerException("Failure when flushing ledger " + name + " to disk", e);
+        for (CompletableFuture<Void> f : batch) {
+            f.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Stops the writer thread after any outstanding requests have been processed.
+     */
+    void close() {
+        synchronized (this) {
+            stopped = true;
+            notify();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info(getClass(), "close", "Ledger " + name + " served " + syncRequests + " sync requests with " + syncCount + " forces");
+    }
+
+    /**
+     * Number of forces issued
+     */
+    long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Number of sync requests completed
+     */
+    long getSyncRequests() {
+        return syncRequests;
+    }
+}
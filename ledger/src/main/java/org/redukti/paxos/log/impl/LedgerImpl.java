@@ -9,14 +9,27 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
-
-// TODO implementation is simple, but we should cache values in memory
-
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 public class LedgerImpl implements Ledger {
 
@@ -24,43 +37,148 @@ public class LedgerImpl implements Ledger {
     public static final int PAGE_SIZE = 8 * 1024;
 
     /**
-     * The underlying file object.
+     * The underlying file object. Replaced when the ledger is compacted
+     * after a snapshot.
      */
-    private final RandomAccessFile file;
+    private volatile RandomAccessFile file;
     private FileLock lock;
 
+    /**
+     * Reads and writes use positional I/O on the file channel and only take this lock
+     * shared, so they do not exclude each other. Compaction takes it exclusively as it
+     * replaces the file and moves every record.
+     */
+    private final ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock();
+
     private final int id;
     private final String name;
+    private final File path;
+
+    /**
+     * The last snapshot saved, null if none
+     */
+    private Snapshot snapshot;
+
+    /**
+     * How updates are made durable, also determines the mode the file is opened in.
+     * See DurabilityPolicy.DURABILITY.
+     */
+    private final DurabilityPolicy durability;
+
+    /**
+     * If set to true, updates are not forced to disk individually; instead
+     * a writer thread forces the file once for all callers of flushAsync()
+     * that have accumulated since its previous force (group commit).
+     * Same as selecting the group durability policy.
+     */
+    public static final String GROUP_COMMIT = "storage.groupCommit";
 
     /**
-     * Mode for creating new container objects. This should be configurable.
+     * Writer thread that implements group commit, null if not in group commit mode.
      */
-    private final String createMode;
-    private static final String CREATE_MODE = "storage.createMode";
-    private static final String defaultCreateMode = "rws";
+    private final GroupCommitWriter groupCommitWriter;
 
     /**
-     * Mode for opening existing container objects. This should be configurable.
+     * Number of syncs and the time spent in them, in nanoseconds. Under the sync and dsync
+     * policies each write is a sync, otherwise each force of the file is.
      */
-    private final String openMode;
-    private static final String OPEN_MODE = "storage.openMode";
-    private static final String defaultOpenMode = "rws";
+    private final LongAdder syncCount = new LongAdder();
+    private final LongAdder syncNanos = new LongAdder();
 
     /**
-     * Values can be noforce, force.true or force.false.
+     * Write-through cache of values so that reads of recent decrees
+     * do not have to go to the file.
      */
-    private final String flushMode;
+    private final ValueCache cache = new ValueCache(ValueCache.DEFAULT_CAPACITY);
+
+    /**
+     * Decrees committed above commitNum, rebuilt when the ledger is opened.
+     */
+    private final CommitBitmap committed = new CommitBitmap();
+
     /**
-     * Default flush mode
+     * Decrees voted for but not yet committed, rebuilt when the ledger is opened.
      */
-    private static final String FLUSH_MODE = "storage.flushMode";
-    private static final String DEFAULT_FLUSH_MODE = "force.true";
+    private final UndecidedIndex undecided = new UndecidedIndex();
 
+    /**
+     * Number of records read at a time when scanning the ledger
+     */
+    private static final int SCAN_BATCH_SIZE = 4096;
+
+    /**
+     * Number of threads that scan the ledger when it is opened. The default is
+     * the number of processors, up to 4.
+     */
+    public static final String RECOVERY_THREADS = "storage.recoveryThreads";
+    /**
+     * Number of records read at a time by a recovery thread, about 1MB
+     */
+    private static final int RECOVERY_BATCH_SIZE = 48 * 1024;
+
+    /**
+     * Size in bytes by which the file is extended when an update goes beyond its end. The
+     * new space is zero filled and the file forced once, so that updates within the extent
+     * do not change the file's metadata.
+     */
+    public static final String EXTENT_SIZE = "storage.extentSize";
+    static final int DEFAULT_EXTENT_SIZE = 1024 * 1024;
+    static final int MIN_EXTENT_SIZE = 4 * 1024;
+    private final int extentSize;
+    private final Object extentLock = new Object();
+    /**
+     * Length of the file including preallocated space, guarded by extentLock
+     */
+    private long allocated;
+    /**
+     * One past the highest decree written. Records from here to the end of the file are
+     * preallocated zeroes, and are truncated when the ledger is closed.
+     */
+    private volatile long lastDnum;
+
+    /**
+     * Direct buffers for reads, one set per thread. The scan buffer holds a batch of records,
+     * the record buffer a single record, so that a value can be read while visiting a scan.
+     */
+    private static final ThreadLocal<ByteBuffer> SCAN_BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(SCAN_BATCH_SIZE * Value.size()));
+    private static final ThreadLocal<ByteBuffer> RECORD_BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(Value.size()));
+
+    /**
+     * The header page holds the header in its original layout at offset 0, which
+     * is only written when the ledger is created, followed by two slots. Updates
+     * to the header alternate between the slots; each slot holds a sequence number
+     * and a checksum, so a torn write of one slot leaves the other intact, and
+     * the valid slot with the higher sequence number is the current header.
+     * Ledgers that predate the slots are read from offset 0.
+     */
     static final class Header {
+        static final int SLOT_SIZE = 512;
+        static final int SLOT_OFFSET = 512;
+        static final int SLOTS_END = SLOT_OFFSET + 2 * SLOT_SIZE;
+        static final int SLOT_MAGIC = 0x50584844;
+
         final int id;
-        BallotNum lastTried;
-        BallotNum lastBallot;
-        long commitNum;
+        /*
+         * Updated by the writer and read without a lock by any thread, hence volatile
+         */
+        volatile BallotNum lastTried;
+        volatile BallotNum lastBallot;
+        /**
+         * Not updated on every commit, so on disk this may lag behind; it is
+         * recomputed when the ledger is opened.
+         */
+        volatile long commitNum;
+        /**
+         * Sequence number of the last slot written, -1 if none
+         */
+        long sequence = -1;
+        /**
+         * Decree number of the first record in the file, decrees below this
+         * have been discarded after a snapshot. Only stored in the slots.
+         */
+        volatile long firstDnum;
 
         public static int size() {
             return Integer.BYTES +
@@ -88,6 +206,66 @@ public class LedgerImpl implements Ledger {
             this.lastBallot = lastBallot;
             this.commitNum = commitNum;
         }
+
+        /**
+         * Offset within the header page of the slot for the current sequence number
+         */
+        int slotOffset() {
+            return SLOT_OFFSET + (int) (sequence & 1) * SLOT_SIZE;
+        }
+
+        /**
+         * Stores the header as a slot at the buffer's position
+         */
+        void storeSlot(ByteBuffer bb) {
+            int start = bb.position();
+            bb.putInt(SLOT_MAGIC);
+            bb.putLong(sequence);
+            store(bb);
+            bb.putLong(firstDnum);
+            bb.putInt(checksum(bb, start, bb.position() - start));
+        }
+
+        private static int checksum(ByteBuffer bb, int offset, int length) {
+            ByteBuffer data = bb.duplicate();
+            data.limit(offset + length).position(offset);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            return (int) crc.getValue();
+        }
+
+        /**
+         * Returns the header stored in the slot at offset, or null if the slot is not valid
+         */
+        private static Header readSlot(ByteBuffer page, int offset) {
+            ByteBuffer bb = page.duplicate();
+            bb.position(offset);
+            if (bb.getInt() != SLOT_MAGIC)
+                return null;
+            long sequence = bb.getLong();
+            Header h = new Header(bb);
+            long firstDnum = bb.getLong();
+            if (bb.getInt(bb.position()) != checksum(page, offset, bb.position() - offset))
+                return null;
+            h.sequence = sequence;
+            h.firstDnum = firstDnum;
+            return h;
+        }
+
+        /**
+         * Reads the current header from the first SLOTS_END bytes of the header page
+         */
+        static Header read(ByteBuffer page) {
+            Header h1 = readSlot(page, SLOT_OFFSET);
+            Header h2 = readSlot(page, SLOT_OFFSET + SLOT_SIZE);
+            if (h1 != null && (h2 == null || h1.sequence > h2.sequence))
+                return h1;
+            if (h2 != null)
+                return h2;
+            ByteBuffer bb = page.duplicate();
+            bb.position(0);
+            return new Header(bb);
+        }
     }
 
     Header header;
@@ -100,6 +278,11 @@ public class LedgerImpl implements Ledger {
         final byte status;
         final long value;
         final BallotNum maxVBal;
+        /**
+         * Decree payload, not part of the fixed size record; only ledgers
+         * that support payloads store it
+         */
+        final ByteBuffer payload;
 
         public static int size() {
             return Byte.BYTES +
@@ -123,22 +306,62 @@ public class LedgerImpl implements Ledger {
                 value = bb.getLong();
                 maxVBal = new BallotNum(bb);
             }
+            payload = Decree.EMPTY_PAYLOAD;
         }
 
         public Value(byte status, BallotNum maxVBal, long value) {
+            this(status, maxVBal, value, Decree.EMPTY_PAYLOAD);
+        }
+
+        public Value(byte status, BallotNum maxVBal, long value, ByteBuffer payload) {
             this.status = status;
             this.maxVBal = maxVBal;
             this.value = value;
+            this.payload = payload;
+        }
+
+        Decree toDecree(long dnum) {
+            return new Decree(dnum, value, payload);
+        }
+
+        /**
+         * Reads a value at an absolute offset without changing the buffer's position.
+         */
+        static Value read(ByteBuffer bb, int offset, int id) {
+            byte status = bb.get(offset);
+            if (status == VALUE_UNINITIALISED)
+                return new Value(status, new BallotNum(-1, id), 0);
+            long value = bb.getLong(offset + Byte.BYTES);
+            BallotNum maxVBal = new BallotNum(bb.getLong(offset + Byte.BYTES + Long.BYTES),
+                    bb.getInt(offset + Byte.BYTES + Long.BYTES + Long.BYTES));
+            return new Value(status, maxVBal, value);
+        }
+
+        /**
+         * Writes the value at an absolute offset without changing the buffer's position.
+         * The status byte is written last.
+         */
+        void store(ByteBuffer bb, int offset) {
+            bb.putLong(offset + Byte.BYTES, value);
+            bb.putLong(offset + Byte.BYTES + Long.BYTES, maxVBal.proposalNumber);
+            bb.putInt(offset + Byte.BYTES + Long.BYTES + Long.BYTES, maxVBal.processNum);
+            bb.put(offset, status);
         }
     }
 
-    private LedgerImpl(int id, RandomAccessFile file, String name, String flushMode) {
+    private LedgerImpl(int id, RandomAccessFile file, File path, String name, DurabilityPolicy durability, int extentSize) {
         this.id = id;
         this.file = file;
+        this.path = path;
         this.name = name;
-        this.flushMode = flushMode;
-        this.createMode = defaultCreateMode;
-        this.openMode = defaultOpenMode;
+        this.durability = durability;
+        this.extentSize = extentSize;
+        if (durability == DurabilityPolicy.GROUP) {
+            this.groupCommitWriter = new GroupCommitWriter(name, () -> forceFile(durability.metaData));
+            this.groupCommitWriter.start();
+        } else {
+            this.groupCommitWriter = null;
+        }
     }
 
     /**
@@ -166,7 +389,7 @@ public class LedgerImpl implements Ledger {
      * Converts a logical name to a file name that. Optionally creates the path
      * to the file.
      */
-    private static String getFileName(String basePath, String name, boolean checkParent) {
+    static String getFileName(String basePath, String name, boolean checkParent) {
         File file = new File(basePath, name);
         String s = file.getPath();
         if (checkParent) {
@@ -195,25 +418,40 @@ public class LedgerImpl implements Ledger {
      * opened in read/write mode.
      */
     public static Ledger createIfNotExisting(String basePath, String logicalName, int id) {
+        return createIfNotExisting(basePath, logicalName, id, new Properties());
+    }
+
+    /**
+     * Creates a new File based Storage Container object using the supplied
+     * storage properties.
+     *
+     * @see DurabilityPolicy#DURABILITY
+     * @see #GROUP_COMMIT
+     */
+    public static Ledger createIfNotExisting(String basePath, String logicalName, int id, Properties props) {
         log.info(LedgerImpl.class, "createIfNotExisting", "Creating Ledger " + logicalName + " in " + basePath);
         checkBasePath(basePath, true);
         String name = getFileName(basePath, logicalName, true);
         RandomAccessFile rafile;
         File file = new File(name);
-        String createMode = defaultCreateMode;
+        DurabilityPolicy durability = DurabilityPolicy.fromProperties(props);
+        int extentSize = getExtentSize(props);
         try {
             // Create the file atomically.
             boolean created = file.createNewFile();
             if (!created) {
                 throw new LedgerException("Failed to create " + name);
             }
-            rafile = new RandomAccessFile(name, createMode);
+            rafile = new RandomAccessFile(name, durability.mode);
         } catch (IOException e) {
             throw new LedgerException("Error creating " + name, e);
         }
-        LedgerImpl ledger = new LedgerImpl(id, rafile, logicalName, DEFAULT_FLUSH_MODE);
+        LedgerImpl ledger = new LedgerImpl(id, rafile, file, logicalName, durability, extentSize);
         ledger.header = initialHeader(id);
-        ledger.writeHeader();
+        ledger.writeHeaderPage();
+        ledger.allocated = PAGE_SIZE;
+        // The new ledger must be durable before it is used
+        ledger.flush();
         return ledger;
     }
 
@@ -226,22 +464,45 @@ public class LedgerImpl implements Ledger {
      */
     public static Ledger open(String basePath, String logicalName, int id)
             throws LedgerException {
+        return open(basePath, logicalName, id, new Properties());
+    }
+
+    /**
+     * Opens an existing File based Storage Container object using the supplied
+     * storage properties.
+     *
+     * @see DurabilityPolicy#DURABILITY
+     * @see #GROUP_COMMIT
+     * @see #RECOVERY_THREADS
+     */
+    public static Ledger open(String basePath, String logicalName, int id, Properties props)
+            throws LedgerException {
         log.info(LedgerImpl.class, "open", "Opening Ledger " + logicalName);
         checkBasePath(basePath, false);
         String name = getFileName(basePath, logicalName, false);
         RandomAccessFile rafile = null;
         File file = new File(name);
+        DurabilityPolicy durability = DurabilityPolicy.fromProperties(props);
+        int recoveryThreads = getRecoveryThreads(props);
         try {
             if (!file.exists() || !file.isFile() || !file.canRead()
                     || !file.canWrite()) {
                 throw new LedgerException("Ledger " + name + " not found");
             }
-            String openMode = defaultOpenMode;
-            rafile = new RandomAccessFile(name, openMode);
+            rafile = new RandomAccessFile(name, durability.mode);
         } catch (FileNotFoundException e) {
             throw new LedgerException("Ledger " + name + " not found");
         }
-        return new LedgerImpl(id, rafile, logicalName, DEFAULT_FLUSH_MODE).readHeader(id);
+        LedgerImpl ledger = new LedgerImpl(id, rafile, file, logicalName, durability, getExtentSize(props)).readHeader(id);
+        ledger.recover(recoveryThreads);
+        return ledger;
+    }
+
+    static int getExtentSize(Properties props) {
+        int extentSize = Integer.parseInt(props.getProperty(EXTENT_SIZE, Integer.toString(DEFAULT_EXTENT_SIZE)));
+        if (extentSize < MIN_EXTENT_SIZE)
+            throw new LedgerException("Extent size must be at least " + MIN_EXTENT_SIZE + " bytes");
+        return extentSize;
     }
 
     public static void delete(String basePath, String logicalName) throws LedgerException {
@@ -257,6 +518,17 @@ public class LedgerImpl implements Ledger {
                 throw new LedgerException("Ledger " + name + " not found");
             }
         }
+        File snapshotFile = getSnapshotFile(file);
+        if (snapshotFile.exists() && !snapshotFile.delete()) {
+            throw new LedgerException("Failed to delete " + snapshotFile.getPath());
+        }
+    }
+
+    /**
+     * The snapshot is kept in a file alongside the ledger
+     */
+    static File getSnapshotFile(File file) {
+        return new File(file.getPath() + ".snapshot");
     }
 
     /* (non-Javadoc)
@@ -279,21 +551,207 @@ public class LedgerImpl implements Ledger {
     LedgerImpl readHeader(int id) {
         if (header != null)
             throw new IllegalStateException();
-        byte[] data = new byte[Header.size()];
+        byte[] data = new byte[Header.SLOTS_END];
         int n = read(0, data, 0, data.length);
         if (n != data.length)
             throw new LedgerException("Failed to read header from ledger " + name);
-        header = new Header(ByteBuffer.wrap(data));
+        header = Header.read(ByteBuffer.wrap(data));
         if (header.id != id)
             throw new LedgerException("Invalid Ledger - id is " + header.id + " expected " + id);
         return this;
     }
 
-    void writeHeader() {
+    /**
+     * Rebuilds the in memory state from the records past commitNum in a single pass: the
+     * committed bitmap, the undecided index and lastDnum. The records are split into ranges
+     * that are scanned by up to threads threads with large sequential reads, and the results
+     * are then merged in decree number order.
+     */
+    void recover(int threads) {
+        long start = System.nanoTime();
+        snapshot = SnapshotFile.read(getSnapshotFile(path), id);
+        header.commitNum = Math.max(header.commitNum, header.firstDnum - 1);
+        committed.setAllBelow(header.firstDnum);
+        try {
+            allocated = file.length();
+        } catch (IOException e) {
+            throw new LedgerException("Cannot get length of ledger " + name, e);
+        }
+        long fileEnd = header.firstDnum + Math.max(0, allocated - PAGE_SIZE) / Value.size();
+        long from = header.commitNum + 1;
+        long records = Math.max(0, fileEnd - from);
+        // A few ranges per thread so that the threads finish together
+        long rangeSize = Math.max(SCAN_BATCH_SIZE, (records + threads * 4L - 1) / (threads * 4L));
+        List<RecoveredRange> ranges = new ArrayList<>();
+        for (long dnum = from; dnum < fileEnd; dnum += rangeSize) {
+            ranges.add(new RecoveredRange(dnum, Math.min(fileEnd, dnum + rangeSize)));
+        }
+        int threadsUsed = Math.min(threads, ranges.size());
+        if (threadsUsed <= 1) {
+            for (RecoveredRange range : ranges) {
+                recoverRange(range);
+            }
+        } else {
+            recoverInParallel(ranges, threadsUsed);
+        }
+        long highest = header.commitNum;
+        for (RecoveredRange range : ranges) {
+            for (int w = 0; w < range.committedBits.length; w++) {
+                long word = range.committedBits[w];
+                while (word != 0) {
+                    committed.set(range.from + ((long) w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            for (Map.Entry<Long, Value> e : range.undecided.entrySet()) {
+                undecided.put(e.getKey(), e.getValue());
+            }
+            highest = Math.max(highest, range.highest);
+        }
+        lastDnum = Math.max(highest + 1, header.firstDnum);
+        header.commitNum = committed.advance(header.commitNum);
+        log.info(getClass(), "recover", "Ledger " + name + " recovered in " + (System.nanoTime() - start) / 1_000_000 + " ms: scanned "
+                + records + " records using " + Math.max(1, threadsUsed) + " threads, commitNum " + header.commitNum
+                + ", lastDnum " + lastDnum + ", " + undecided.size() + " undecided");
+    }
+
+    /**
+     * What recovery found in a range of decrees [from, to)
+     */
+    private static final class RecoveredRange {
+        final long from;
+        final long to;
+        /**
+         * Bit n is set if decree from + n is committed
+         */
+        final long[] committedBits;
+        final TreeMap<Long, Value> undecided = new TreeMap<>();
+        /**
+         * Highest decree in the range that has a record, -1 if none
+         */
+        long highest = -1;
+
+        RecoveredRange(long from, long to) {
+            this.from = from;
+            this.to = to;
+            this.committedBits = new long[(int) ((to - from + 63) >>> 6)];
+        }
+    }
+
+    private void recoverRange(RecoveredRange range) {
+        ByteBuffer bb = ByteBuffer.allocateDirect((int) Math.min(RECOVERY_BATCH_SIZE, range.to - range.from) * Value.size());
+        scan(range.from, range.to, bb, (dnum, buf, offset) -> {
+            byte status = buf.get(offset);
+            if (status == VALUE_COMMITTED) {
+                int n = (int) (dnum - range.from);
+                range.committedBits[n >>> 6] |= 1L << (n & 63);
+            } else if (status == VALUE_IN_BALLOT) {
+                range.undecided.put(dnum, Value.read(buf, offset, id));
+            }
+            if (status != VALUE_UNINITIALISED) {
+                range.highest = dnum;
+            }
+        });
+    }
+
+    private void recoverInParallel(List<RecoveredRange> ranges, int threads) {
+        AtomicInteger threadNum = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "LedgerRecovery-" + name + "-" + threadNum.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (RecoveredRange range : ranges) {
+                futures.add(executor.submit(() -> recoverRange(range)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LedgerException)
+                throw (LedgerException) e.getCause();
+            throw new LedgerException("Failed to recover ledger " + name, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LedgerException("Interrupted while recovering ledger " + name, e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static int getRecoveryThreads(Properties props) {
+        int threads = Integer.parseInt(props.getProperty(RECOVERY_THREADS,
+                Integer.toString(Math.min(4, Runtime.getRuntime().availableProcessors()))));
+        if (threads < 1)
+            throw new LedgerException("Number of recovery threads must be at least 1");
+        return threads;
+    }
+
+    interface RecordVisitor {
+        /**
+         * Called with the record for decree dnum, which is at offset in bb
+         */
+        void visit(long dnum, ByteBuffer bb, int offset);
+    }
+
+    /**
+     * Reads the records in the range [fromDnum, toDnum) sequentially, SCAN_BATCH_SIZE
+     * records at a time, into this thread's scan buffer. The visitor must not start
+     * another scan.
+     */
+    void scan(long fromDnum, long toDnum, RecordVisitor visitor) {
+        scan(fromDnum, toDnum, SCAN_BUFFER.get(), visitor);
+    }
+
+    /**
+     * Scans using the given buffer, which determines how many records are read at a time
+     */
+    void scan(long fromDnum, long toDnum, ByteBuffer bb, RecordVisitor visitor) {
+        if (fromDnum >= toDnum)
+            return;
+        int batchSize = bb.capacity() / Value.size();
+        compactionLock.readLock().lock();
+        try {
+            for (long dnum = fromDnum; dnum < toDnum; ) {
+                int n = (int) Math.min(batchSize, toDnum - dnum);
+                bb.clear().limit(n * Value.size());
+                if (readAt(getOffsetOf(dnum), bb) != n * Value.size())
+                    throw new LedgerException("Failed to read decrees from ledger " + name);
+                for (int i = 0; i < n; i++) {
+                    visitor.visit(dnum + i, bb, i * Value.size());
+                }
+                dnum += n;
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the whole header page, used when the ledger is created
+     */
+    void writeHeaderPage() {
         byte[] data = new byte[PAGE_SIZE];
-        header.store(ByteBuffer.wrap(data));
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        header.store(bb);
+        header.sequence++;
+        bb.position(header.slotOffset());
+        header.storeSlot(bb);
         write(0, data, 0, data.length);
-        flush();
+        flushIfRequired();
+    }
+
+    /**
+     * Writes the header to the next slot
+     */
+    void writeHeader() {
+        byte[] data = new byte[Header.SLOT_SIZE];
+        header.sequence++;
+        header.storeSlot(ByteBuffer.wrap(data));
+        write(header.slotOffset(), data, 0, data.length);
+        flushIfRequired();
     }
 
     /**
@@ -307,50 +765,145 @@ public class LedgerImpl implements Ledger {
         }
     }
 
-    public final synchronized void write(long position,
-                                         byte[] data,
-                                         int offset,
-                                         int length) {
-        isValid();
+    public final void write(long position,
+                            byte[] data,
+                            int offset,
+                            int length) {
+        compactionLock.readLock().lock();
         try {
-            file.seek(position);
-            file.write(data, offset, length);
+            isValid();
+            FileChannel channel = file.getChannel();
+            ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+            long start = durability.isSyncWrites() ? System.nanoTime() : 0;
+            while (bb.hasRemaining()) {
+                channel.write(bb, position + bb.position() - offset);
+            }
+            if (durability.isSyncWrites()) {
+                syncCount.increment();
+                syncNanos.add(System.nanoTime() - start);
+            }
         } catch (IOException e) {
             throw new LedgerException("Failure when writing to ledger " + name, e);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads up to length bytes, returning the number read, or -1 if position is at
+     * or beyond the end of the file.
+     */
+    public final int read(long position,
+                          byte[] data,
+                          int offset,
+                          int length) {
+        compactionLock.readLock().lock();
+        try {
+            int n = readAt(position, ByteBuffer.wrap(data, offset, length));
+            return n == 0 && length > 0 ? -1 : n;
+        } finally {
+            compactionLock.readLock().unlock();
         }
     }
 
-    public final synchronized int read(long position,
-                                       byte[] data,
-                                       int offset,
-                                       int length) {
+    /**
+     * Reads into the remaining space in bb using positional reads, which unlike seek and
+     * read do not need to be serialized. Stops short only at the end of the file.
+     */
+    private int readAt(long position, ByteBuffer bb) {
         isValid();
-        int n = 0;
         try {
-            file.seek(position);
-            n = file.read(data, offset, length);
+            FileChannel channel = file.getChannel();
+            int n = 0;
+            while (bb.hasRemaining()) {
+                int r = channel.read(bb, position + n);
+                if (r < 0)
+                    break;
+                n += r;
+            }
+            return n;
         } catch (IOException e) {
             throw new LedgerException("Failure when reading from ledger " + name, e);
         }
-        return n;
     }
 
+    /**
+     * Forces the file for the group commit writer, which does not hold the ledger lock.
+     * If the file was replaced by compaction in the meantime, the compaction made everything
+     * written to the old file durable, and the new file is forced instead.
+     */
+    private void forceFile(boolean metaData) throws IOException {
+        while (true) {
+            RandomAccessFile f = file;
+            try {
+                long start = System.nanoTime();
+                f.getChannel().force(metaData);
+                syncCount.increment();
+                syncNanos.add(System.nanoTime() - start);
+                return;
+            } catch (ClosedChannelException e) {
+                if (f == file)
+                    throw e;
+            }
+        }
+    }
+
+    private void readFully(long position, byte[] data, int length) {
+        if (read(position, data, 0, length) != length)
+            throw new LedgerException("Failed to read from ledger " + name);
+    }
+
+    /**
+     * Forces the file as required by the durability policy. Under the sync and dsync
+     * policies every write was already durable so there is nothing to do.
+     */
     public final synchronized void flush() {
         isValid();
+        if (durability.isSyncWrites())
+            return;
         try {
-            // FIXME hard coded values
-            if ("force.true".equals(flushMode)) {
-                file.getChannel().force(true);
-            } else if ("force.false".equals(flushMode)) {
-                file.getChannel().force(false);
-            }
+            forceFile(durability.metaData);
         } catch (IOException e) {
             throw new LedgerException("Failure when flushing ledger " + name + " to disk", e);
         }
     }
 
+    /**
+     * Forces the update if the durability policy asks for a force after each update;
+     * in group commit mode it is up to the caller to use flushAsync().
+     */
+    private void flushIfRequired() {
+        if (durability.forceEachUpdate) {
+            flush();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> flushAsync() {
+        if (groupCommitWriter == null) {
+            // Every update was already made durable, or is never forced under the unsafe policy
+            return CompletableFuture.completedFuture(null);
+        }
+        return groupCommitWriter.requestSync();
+    }
+
     public final synchronized void close() throws LedgerException {
         isValid();
+        if (groupCommitWriter != null) {
+            groupCommitWriter.close();
+        }
+        // Saves the current commitNum so that the next open has less to scan
+        writeHeader();
+        try {
+            // Give back the preallocated space
+            file.getChannel().truncate(PAGE_SIZE + (lastDnum - header.firstDnum) * Value.size());
+            if (durability != DurabilityPolicy.UNSAFE)
+                forceFile(true);
+        } catch (IOException e) {
+            throw new LedgerException("Failure when flushing ledger " + name + " to disk", e);
+        }
+        log.info(getClass(), "close", "Ledger " + name + " durability " + durability.propertyValue() + ": "
+                + syncCount.sum() + " syncs in " + syncNanos.sum() / 1000000 + " ms");
         try {
             file.close();
         } catch (IOException e) {
@@ -395,55 +948,176 @@ public class LedgerImpl implements Ledger {
     long getOffsetOf(long decreeNum) {
         if (decreeNum < 0)
             throw new IllegalArgumentException("decree number cannot be < 0");
-        return PAGE_SIZE+decreeNum*(Value.size());
+        if (decreeNum < header.firstDnum)
+            throw new IllegalArgumentException("decree number " + decreeNum + " has been discarded");
+        return PAGE_SIZE+(decreeNum-header.firstDnum)*(Value.size());
     }
 
     @Override
     public void setOutcome(long decreeNum, long data) {
+        if (decreeNum < header.firstDnum)
+            // already committed and discarded
+            return;
         // Since value is committed ballot must be set to neg INF i.e. null
         setValue(decreeNum, new Value(VALUE_COMMITTED, new BallotNum(-1,id), data));
-        // This is not efficient as we don't have caching yet
+        committed.set(decreeNum);
+        undecided.remove(decreeNum);
         // We want to ensure that commitNum tracks the lowest consecutive committed decree
         // If we see the next decree is committed, we increment it but we need to also see
         // if we can advance even more
+        // commitNum is not written here, it is recomputed when the ledger is opened
         if (header.commitNum+1 == decreeNum) {
-            header.commitNum = decreeNum;
-            for (long i = header.commitNum+1; i <= getLastDnum(); i++) {
-                Value v = getValue(i);
-                if (v.status == VALUE_COMMITTED) {
-                    header.commitNum++;
-                }
-                else {
-                    break;
-                }
+            header.commitNum = committed.advance(header.commitNum);
+        }
+    }
+
+    /**
+     * Converts a batch of updates to the values to be stored, ordered by decree number.
+     * Checks that none of the votes is for a decree that is committed, either already or
+     * in the batch, before anything is written. Outcomes for discarded decrees are skipped.
+     */
+    static TreeMap<Long, Value> toValues(Ledger ledger, int id, Decree[] outcomes, BallotNum ballot, Decree[] votes) {
+        long firstDnum = ledger.getFirstDnum();
+        TreeMap<Long, Value> values = new TreeMap<>();
+        for (Decree d : outcomes) {
+            checkPayload(ledger, d);
+            if (d.decreeNum >= firstDnum)
+                values.put(d.decreeNum, new Value(VALUE_COMMITTED, new BallotNum(-1, id), d.value, d.payload));
+        }
+        for (Decree d : votes) {
+            checkPayload(ledger, d);
+            if (d.decreeNum < firstDnum || values.containsKey(d.decreeNum) || ledger.getOutcome(d.decreeNum) != null)
+                throw new IllegalArgumentException("Outcome already stored at decree number " + d.decreeNum);
+            values.put(d.decreeNum, new Value(VALUE_IN_BALLOT, ballot, d.value, d.payload));
+        }
+        return values;
+    }
+
+    private static void checkPayload(Ledger ledger, Decree d) {
+        if (d.hasPayload() && !ledger.supportsPayloads())
+            throw new UnsupportedOperationException("Decree payloads are not supported by " + ledger.getClass().getName());
+    }
+
+    /**
+     * Writes each run of consecutive decrees with a single write, and then
+     * forces the file once.
+     */
+    @Override
+    public void setValues(Decree[] outcomes, BallotNum ballot, Decree[] votes) {
+        TreeMap<Long, Value> values = toValues(this, id, outcomes, ballot, votes);
+        if (values.isEmpty())
+            return;
+        for (Long dnum : values.keySet()) {
+            cache.invalidate(dnum);
+        }
+        Map.Entry<Long, Value> first = values.firstEntry();
+        while (first != null) {
+            long start = first.getKey();
+            long end = start;
+            while (values.containsKey(end + 1)) {
+                end++;
             }
-            writeHeader();
+            byte[] bytes = new byte[(int) (end - start + 1) * Value.size()];
+            ByteBuffer bb = ByteBuffer.wrap(bytes);
+            for (long dnum = start; dnum <= end; dnum++) {
+                values.get(dnum).store(bb);
+            }
+            writeAt(start, bytes);
+            first = values.higherEntry(end);
         }
+        flushIfRequired();
+        for (Map.Entry<Long, Value> e : values.entrySet()) {
+            long dnum = e.getKey();
+            Value v = e.getValue();
+            cache.put(dnum, v);
+            if (v.status == VALUE_COMMITTED) {
+                committed.set(dnum);
+                undecided.remove(dnum);
+            } else {
+                undecided.put(dnum, v.maxVBal, v.value);
+            }
+        }
+        header.commitNum = committed.advance(header.commitNum);
     }
 
     public void setValue(long decreeNum, Value v) {
-        long offset = getOffsetOf(decreeNum);
         byte[] bytes = new byte[Value.size()];
         ByteBuffer bb = ByteBuffer.wrap(bytes);
         v.store(bb);
-        write(offset, bytes, 0, bytes.length);
-        flush();
+        cache.invalidate(decreeNum);
+        writeAt(decreeNum, bytes);
+        flushIfRequired();
+        cache.put(decreeNum, v);
+    }
+
+    /**
+     * Writes records starting at decreeNum; the offset must be computed under
+     * the compaction lock as compaction moves the records.
+     */
+    private void writeAt(long decreeNum, byte[] bytes) {
+        compactionLock.readLock().lock();
+        try {
+            long offset = getOffsetOf(decreeNum);
+            allocate(decreeNum + bytes.length / Value.size());
+            write(offset, bytes, 0, bytes.length);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Makes sure the file covers the decrees below end, extending it by whole
+     * extents if not, and moves the logical end up to end.
+     */
+    private void allocate(long end) {
+        if (end <= lastDnum)
+            return;
+        synchronized (extentLock) {
+            long needed = PAGE_SIZE + (end - header.firstDnum) * Value.size();
+            if (needed > allocated) {
+                long length = allocated + (needed - allocated + extentSize - 1) / extentSize * extentSize;
+                byte[] zeroes = new byte[Math.min(extentSize, SCAN_BATCH_SIZE * Value.size())];
+                for (long position = allocated; position < length; position += zeroes.length) {
+                    write(position, zeroes, 0, (int) Math.min(zeroes.length, length - position));
+                }
+                if (durability != DurabilityPolicy.UNSAFE) {
+                    try {
+                        forceFile(true);
+                    } catch (IOException e) {
+                        throw new LedgerException("Failure when flushing ledger " + name + " to disk", e);
+                    }
+                }
+                allocated = length;
+            }
+            if (end > lastDnum)
+                lastDnum = end;
+        }
     }
 
     public Value getValue(long decreeNum) {
-        long offset = getOffsetOf(decreeNum);
+        if (decreeNum >= 0 && decreeNum < header.firstDnum)
+            return new Value(VALUE_UNINITIALISED, new BallotNum(-1,id), 0);
+        Value v = cache.get(decreeNum);
+        if (v != null)
+            return v;
+        long version = cache.version(decreeNum);
+        v = readValue(decreeNum);
+        cache.putIfUnchanged(decreeNum, v, version);
+        return v;
+    }
+
+    Value readValue(long decreeNum) {
+        ByteBuffer bb = RECORD_BUFFER.get();
+        bb.clear();
+        compactionLock.readLock().lock();
         try {
-            long length = file.length();
-            if (length < offset+Value.size())
+            if (decreeNum < header.firstDnum || readAt(getOffsetOf(decreeNum), bb) < Value.size())
+                // discarded by a concurrent compaction, or beyond the end of the file
                 return new Value(VALUE_UNINITIALISED, new BallotNum(-1,id), 0);
+        } finally {
+            compactionLock.readLock().unlock();
         }
-        catch (IOException e) {
-            throw new LedgerException("Cannot get length of ledger " + name, e);
-        }
-        byte[] bytes = new byte[Value.size()];
-        read(offset, bytes, 0, bytes.length);
-        ByteBuffer bb = ByteBuffer.wrap(bytes);
-        return new Value(bb, id);
+        return Value.read(bb, 0, id);
     }
 
     @Override
@@ -451,7 +1125,17 @@ public class LedgerImpl implements Ledger {
         Value v = getValue(decreeNum);
         if (v.status != VALUE_COMMITTED)
             return null;
-        return getValue(decreeNum).value;
+        return v.value;
+    }
+
+    @Override
+    public void forEachOutcome(long fromDnum, long toDnum, Consumer<Decree> consumer) {
+        long end = Math.min(toDnum, getLastDnum() - 1);
+        scan(Math.max(fromDnum, header.firstDnum), end + 1, (dnum, bb, offset) -> {
+            if (bb.get(offset) == VALUE_COMMITTED) {
+                consumer.accept(new Decree(dnum, bb.getLong(offset + Byte.BYTES)));
+            }
+        });
     }
 
     @Override
@@ -470,6 +1154,7 @@ public class LedgerImpl implements Ledger {
         if (getOutcome(dnum) != null)
             throw new IllegalArgumentException("Outcome already stored at decree number " + dnum);
         setValue(dnum,new Value(VALUE_IN_BALLOT, ballot, value));
+        undecided.put(dnum, ballot, value);
     }
 
     @Override
@@ -498,31 +1183,168 @@ public class LedgerImpl implements Ledger {
         return header.commitNum;
     }
 
+    /**
+     * Number of reads satisfied by the value cache
+     */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * Number of reads that had to go to the file
+     */
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    public DurabilityPolicy getDurabilityPolicy() {
+        return durability;
+    }
+
+    /**
+     * Number of syncs, see DurabilityPolicy
+     */
+    public long getSyncCount() {
+        return syncCount.sum();
+    }
+
+    /**
+     * Time spent in syncs, in nanoseconds
+     */
+    public long getSyncTimeNanos() {
+        return syncNanos.sum();
+    }
+
+    /**
+     * Number of forces issued in group commit mode
+     */
+    public long getGroupCommitCount() {
+        return groupCommitWriter != null ? groupCommitWriter.getSyncCount() : 0;
+    }
+
+    /**
+     * One past the highest decree written
+     */
     long getLastDnum() {
-        try {
-            long length = file.length();
-            length -= PAGE_SIZE;
-            if (length <= 0)
-                return 0;
-            return length/Value.size();
-        }
-        catch (IOException e) {
-            throw new LedgerException("Cannot get length of ledger " + name, e);
-        }
+        return lastDnum;
     }
 
     @Override
     public List<BallotedDecree> getUndecidedBallots() {
-        List<BallotedDecree> ballots = new ArrayList<>();
-        long cnum = getCommitNum();
-        long dnum = getLastDnum();
+        return undecided.list();
+    }
+
+    /**
+     * Saves the snapshot and then compacts the file: the records above the snapshot
+     * are copied to a new file that starts at snapshot.decreeNum + 1, which then
+     * atomically replaces the ledger file.
+     */
+    @Override
+    public synchronized void saveSnapshot(Snapshot snapshot) {
+        isValid();
+        if (snapshot.decreeNum < header.firstDnum - 1)
+            throw new IllegalArgumentException("Snapshot at decree " + snapshot.decreeNum + " is older than the ledger");
+        // The snapshot must be durable before any decree goes
+        SnapshotFile.write(getSnapshotFile(path), id, snapshot);
+        this.snapshot = snapshot;
+        compact(snapshot.decreeNum + 1);
+    }
+
+    private void compact(long newFirstDnum) {
+        compactionLock.writeLock().lock();
+        try {
+            doCompact(newFirstDnum);
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
 
-        for (long i = cnum+1; i <= dnum; i++) {
-            Value v = getValue(i);
-            if (v != null && v.status == VALUE_IN_BALLOT) {
-                ballots.add(new BallotedDecree(v.maxVBal, new Decree(i,v.value)));
+    private void doCompact(long newFirstDnum) {
+        long end = Math.max(lastDnum, newFirstDnum);
+        long oldFirstDnum = header.firstDnum;
+        File tmp = new File(path.getPath() + ".tmp");
+        // Offsets are computed from header.firstDnum, so the header is only changed
+        // once the new file has replaced the old one
+        Header next = new Header(header.id, header.lastTried, header.lastBallot,
+                Math.max(header.commitNum, newFirstDnum - 1));
+        next.firstDnum = newFirstDnum;
+        next.sequence = header.sequence;
+        byte[] page = new byte[PAGE_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(page);
+        next.store(bb);
+        next.sequence++;
+        bb.position(next.slotOffset());
+        next.storeSlot(bb);
+        RandomAccessFile newFile = null;
+        FileLock newLock = null;
+        try {
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                out.setLength(0);
+                out.write(page);
+                byte[] data = new byte[SCAN_BATCH_SIZE * Value.size()];
+                for (long dnum = newFirstDnum; dnum < end; ) {
+                    int n = (int) Math.min(SCAN_BATCH_SIZE, end - dnum);
+                    readFully(PAGE_SIZE + (dnum - oldFirstDnum) * Value.size(), data, n * Value.size());
+                    out.write(data, 0, n * Value.size());
+                    dnum += n;
+                }
+                out.getFD().sync();
+            }
+            // Lock the new file before it replaces the old one, so that the ledger
+            // is never without its exclusive lock
+            newFile = new RandomAccessFile(tmp, durability.mode);
+            if (lock != null) {
+                newLock = newFile.getChannel().tryLock();
+                if (newLock == null)
+                    throw new LedgerException("Failed to compact ledger " + name + ": unable to lock " + tmp.getPath());
             }
+            Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | LedgerException e) {
+            if (newFile != null) {
+                try {
+                    newFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (tmp.isFile() && !tmp.delete())
+                log.warn(getClass(), "compact", "Failed to delete " + tmp.getPath());
+            if (e instanceof LedgerException)
+                throw (LedgerException) e;
+            throw new LedgerException("Failed to compact ledger " + name, e);
         }
-        return ballots;
+        SnapshotFile.syncDirectory(path.getAbsoluteFile().getParentFile());
+        RandomAccessFile old = file;
+        FileLock oldLock = lock;
+        file = newFile;
+        lock = newLock;
+        header.firstDnum = next.firstDnum;
+        header.commitNum = next.commitNum;
+        header.sequence = next.sequence;
+        try {
+            if (oldLock != null)
+                oldLock.release();
+            old.close();
+            synchronized (extentLock) {
+                allocated = file.length();
+                lastDnum = end;
+            }
+        } catch (IOException e) {
+            throw new LedgerException("Failed to compact ledger " + name, e);
+        }
+        cache.clear();
+        committed.setAllBelow(newFirstDnum);
+        undecided.removeBelow(newFirstDnum);
+        header.commitNum = committed.advance(header.commitNum);
+        log.info(getClass(), "compact", "Ledger " + name + " now starts at decree " + newFirstDnum);
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public long getFirstDnum() {
+        return header.firstDnum;
     }
 }
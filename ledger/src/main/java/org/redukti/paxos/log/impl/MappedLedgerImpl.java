@@ -0,0 +1,647 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import org.redukti.logging.Logger;
+import org.redukti.logging.LoggerFactory;
+import org.redukti.paxos.log.api.*;
+import org.redukti.paxos.log.impl.LedgerImpl.Header;
+import org.redukti.paxos.log.impl.LedgerImpl.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static org.redukti.paxos.log.impl.LedgerImpl.PAGE_SIZE;
+import static org.redukti.paxos.log.impl.LedgerImpl.VALUE_COMMITTED;
+import static org.redukti.paxos.log.impl.LedgerImpl.VALUE_IN_BALLOT;
+import static org.redukti.paxos.log.impl.LedgerImpl.VALUE_UNINITIALISED;
+
+/**
+ * A ledger that uses the same file format as LedgerImpl, but accesses the file through
+ * memory mapped regions rather than seek/read/write calls.
+ * <p>
+ * The header page is mapped on its own; the records that follow are mapped in fixed size
+ * regions, each holding a whole number of records, as they are needed. Reading a record is
+ * therefore a memory load. Updates mark their region dirty, and durability comes from forcing
+ * the dirty regions - after each update, or in group commit mode once per batch.
+ * </p>
+ * <p>
+ * Mapping a region extends the file to cover it, so the number of records cannot be derived
+ * from the file length as LedgerImpl does. Instead it is tracked in memory: on open it is found
+ * by scanning back from the end of the file for the last initialised record, and on close the
+ * file is truncated back to it, so that the file can still be opened by LedgerImpl.
+ * </p>
+ * <p>
+ * Saving a snapshot compacts the file in the same way as LedgerImpl, after which the
+ * new file is mapped afresh.
+ * </p>
+ */
+public class MappedLedgerImpl implements Ledger {
+
+    final static Logger log = LoggerFactory.DEFAULT.getLogger(MappedLedgerImpl.class.getName());
+
+    /**
+     * Size in bytes of each mapped region, rounded down to a whole number of records
+     */
+    public static final String REGION_SIZE = "storage.mappedRegionSize";
+    static final int DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+    static final int MIN_REGION_SIZE = 4 * 1024;
+
+    private final int id;
+    private final String name;
+    private final File path;
+    /**
+     * The channel and header page are replaced when the file is compacted
+     */
+    private volatile FileChannel channel;
+    private volatile MappedByteBuffer headerPage;
+    private final int regionRecords;
+    private final int regionBytes;
+
+    /**
+     * Mapped regions, null until first used. The array is replaced when it grows;
+     * it is volatile as the group commit writer forces regions without holding the ledger lock.
+     */
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    /**
+     * Regions updated since they were last forced, guarded by itself
+     */
+    private final BitSet dirtyRegions = new BitSet();
+    /**
+     * Guarded by dirtyRegions
+     */
+    private boolean headerDirty;
+
+    /**
+     * Decrees committed above commitNum, rebuilt when the ledger is opened
+     */
+    private final CommitBitmap committed = new CommitBitmap();
+    /**
+     * Decrees voted for but not yet committed, rebuilt when the ledger is opened
+     */
+    private final UndecidedIndex undecided = new UndecidedIndex();
+
+    private GroupCommitWriter groupCommitWriter;
+    /**
+     * True under the unsafe durability policy, when updates are not forced
+     */
+    private boolean unsafe;
+
+    private final LongAdder syncCount = new LongAdder();
+    private final LongAdder syncNanos = new LongAdder();
+    private boolean closed;
+
+    /**
+     * The last snapshot saved, null if none
+     */
+    private Snapshot snapshot;
+
+    Header header;
+    /**
+     * One past the highest initialised record
+     */
+    long lastDnum;
+
+    private MappedLedgerImpl(int id, FileChannel channel, File path, String name, int regionSize) throws IOException {
+        this.id = id;
+        this.channel = channel;
+        this.path = path;
+        this.name = name;
+        this.regionRecords = regionSize / Value.size();
+        this.regionBytes = regionRecords * Value.size();
+        this.headerPage = channel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE);
+    }
+
+    /**
+     * Creates a new ledger. It is an error if a ledger of the same name exists.
+     */
+    public static Ledger createIfNotExisting(String basePath, String logicalName, int id) {
+        return createIfNotExisting(basePath, logicalName, id, new Properties());
+    }
+
+    /**
+     * Creates a new ledger using the supplied storage properties.
+     *
+     * @see #REGION_SIZE
+     * @see DurabilityPolicy#DURABILITY
+     * @see LedgerImpl#GROUP_COMMIT
+     */
+    public static Ledger createIfNotExisting(String basePath, String logicalName, int id, Properties props) {
+        log.info(MappedLedgerImpl.class, "createIfNotExisting", "Creating Ledger " + logicalName + " in " + basePath);
+        LedgerImpl.checkBasePath(basePath, true);
+        String name = LedgerImpl.getFileName(basePath, logicalName, true);
+        File file = new File(name);
+        MappedLedgerImpl ledger;
+        try {
+            if (!file.createNewFile()) {
+                throw new LedgerException("Failed to create " + name);
+            }
+            ledger = new MappedLedgerImpl(id, openChannel(file), file, logicalName, getRegionSize(props));
+            // the mapping has extended the file to cover the header page
+            ledger.channel.force(true);
+        } catch (IOException e) {
+            throw new LedgerException("Error creating " + name, e);
+        }
+        ledger.header = LedgerImpl.initialHeader(id);
+        ledger.header.store(ledger.headerPage.duplicate());
+        ledger.writeHeader();
+        ledger.forceDirty();
+        ledger.setDurability(props);
+        return ledger;
+    }
+
+    /**
+     * Opens an existing ledger, which may have been created by LedgerImpl.
+     */
+    public static Ledger open(String basePath, String logicalName, int id) {
+        return open(basePath, logicalName, id, new Properties());
+    }
+
+    /**
+     * Opens an existing ledger using the supplied storage properties.
+     *
+     * @see #REGION_SIZE
+     * @see DurabilityPolicy#DURABILITY
+     * @see LedgerImpl#GROUP_COMMIT
+     */
+    public static Ledger open(String basePath, String logicalName, int id, Properties props) {
+        log.info(MappedLedgerImpl.class, "open", "Opening Ledger " + logicalName);
+        LedgerImpl.checkBasePath(basePath, false);
+        String name = LedgerImpl.getFileName(basePath, logicalName, false);
+        File file = new File(name);
+        if (!file.exists() || !file.isFile() || !file.canRead() || !file.canWrite()) {
+            throw new LedgerException("Ledger " + name + " not found");
+        }
+        MappedLedgerImpl ledger;
+        try {
+            FileChannel channel = openChannel(file);
+            if (channel.size() < Header.size()) {
+                channel.close();
+                throw new LedgerException("Failed to read header from ledger " + name);
+            }
+            ledger = new MappedLedgerImpl(id, channel, file, logicalName, getRegionSize(props));
+            ledger.recover();
+        } catch (IOException e) {
+            throw new LedgerException("Error opening " + name, e);
+        }
+        ledger.setDurability(props);
+        return ledger;
+    }
+
+    public static boolean exists(String basePath, String logicalName) {
+        return LedgerImpl.exists(basePath, logicalName);
+    }
+
+    public static void delete(String basePath, String logicalName) {
+        LedgerImpl.delete(basePath, logicalName);
+    }
+
+    private static FileChannel openChannel(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    static int getRegionSize(Properties props) {
+        int regionSize = Integer.parseInt(props.getProperty(REGION_SIZE, Integer.toString(DEFAULT_REGION_SIZE)));
+        if (regionSize < MIN_REGION_SIZE)
+            throw new LedgerException("Mapped region size must be at least " + MIN_REGION_SIZE + " bytes");
+        return regionSize;
+    }
+
+    /**
+     * Only the group and unsafe durability policies differ here, the others all
+     * force after each update.
+     */
+    private void setDurability(Properties props) {
+        DurabilityPolicy durability = DurabilityPolicy.fromProperties(props);
+        if (durability == DurabilityPolicy.GROUP) {
+            groupCommitWriter = new GroupCommitWriter(name, this::forceDirty);
+            groupCommitWriter.start();
+        }
+        unsafe = durability == DurabilityPolicy.UNSAFE;
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        header = Header.read(headerPage);
+        if (header.id != id)
+            throw new LedgerException("Invalid Ledger - id is " + header.id + " expected " + id);
+        snapshot = SnapshotFile.read(LedgerImpl.getSnapshotFile(path), id);
+        long length = channel.size() - PAGE_SIZE;
+        long n = header.firstDnum + (length <= 0 ? 0 : length / Value.size());
+        // Regions extend the file with zeroes, so if we were not closed cleanly
+        // there may be uninitialised records at the end
+        lastDnum = n;
+        while (n > header.firstDnum && status(n - 1) == VALUE_UNINITIALISED) {
+            n--;
+        }
+        lastDnum = n;
+        header.commitNum = Math.max(header.commitNum, header.firstDnum - 1);
+        committed.setAllBelow(header.firstDnum);
+        for (long i = header.commitNum + 1; i < lastDnum; i++) {
+            byte status = status(i);
+            if (status == VALUE_COMMITTED) {
+                committed.set(i);
+            } else if (status == VALUE_IN_BALLOT) {
+                Value v = getValue(i);
+                undecided.put(i, v.maxVBal, v.value);
+            }
+        }
+        header.commitNum = committed.advance(header.commitNum);
+        log.info(getClass(), "recover", "Ledger " + name + " recovered in " + (System.nanoTime() - start) / 1_000_000
+                + " ms, it has " + lastDnum + " records, commitNum " + header.commitNum + ", " + undecided.size() + " undecided");
+    }
+
+    private long regionOffset(int r) {
+        return PAGE_SIZE + (long) r * regionBytes;
+    }
+
+    private int regionOf(long decreeNum) {
+        long r = (decreeNum - header.firstDnum) / regionRecords;
+        if (r >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("decree number " + decreeNum + " is too large");
+        return (int) r;
+    }
+
+    private int offsetInRegion(long decreeNum) {
+        return (int) ((decreeNum - header.firstDnum) % regionRecords) * Value.size();
+    }
+
+    /**
+     * Returns the region holding decreeNum, mapping it if necessary
+     */
+    private MappedByteBuffer region(long decreeNum) {
+        int r = regionOf(decreeNum);
+        MappedByteBuffer[] current = regions;
+        if (r < current.length && current[r] != null)
+            return current[r];
+        try {
+            boolean extending = channel.size() < regionOffset(r) + regionBytes;
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, regionOffset(r), regionBytes);
+            if (extending) {
+                // make the new file size durable once rather than relying on each force of the region
+                channel.force(true);
+            }
+            MappedByteBuffer[] grown = r < current.length ? current.clone() : Arrays.copyOf(current, Math.max(r + 1, current.length * 2));
+            grown[r] = region;
+            regions = grown;
+            return region;
+        } catch (IOException e) {
+            throw new LedgerException("Failure when mapping ledger " + name, e);
+        }
+    }
+
+    private void isValid() {
+        if (closed) {
+            throw new IllegalStateException("Ledger " + name + " is not open");
+        }
+    }
+
+    private byte status(long decreeNum) {
+        return region(decreeNum).get(offsetInRegion(decreeNum));
+    }
+
+    /**
+     * Writes the header to the next slot, see LedgerImpl.Header
+     */
+    void writeHeader() {
+        isValid();
+        ByteBuffer bb = headerPage.duplicate();
+        header.sequence++;
+        bb.position(header.slotOffset());
+        header.storeSlot(bb);
+        synchronized (dirtyRegions) {
+            headerDirty = true;
+        }
+        flushIfRequired();
+    }
+
+    void setValue(long decreeNum, Value v) {
+        isValid();
+        storeValue(decreeNum, v);
+        flushIfRequired();
+    }
+
+    private void storeValue(long decreeNum, Value v) {
+        if (decreeNum < 0)
+            throw new IllegalArgumentException("decree number cannot be < 0");
+        if (decreeNum < header.firstDnum)
+            throw new IllegalArgumentException("decree number " + decreeNum + " has been discarded");
+        v.store(region(decreeNum), offsetInRegion(decreeNum));
+        synchronized (dirtyRegions) {
+            dirtyRegions.set(regionOf(decreeNum));
+        }
+        if (decreeNum >= lastDnum)
+            lastDnum = decreeNum + 1;
+    }
+
+    Value getValue(long decreeNum) {
+        isValid();
+        if (decreeNum < 0)
+            throw new IllegalArgumentException("decree number cannot be < 0");
+        if (decreeNum >= lastDnum || decreeNum < header.firstDnum)
+            return new Value(VALUE_UNINITIALISED, new BallotNum(-1, id), 0);
+        return Value.read(region(decreeNum), offsetInRegion(decreeNum), id);
+    }
+
+    /**
+     * Forces the header page and all regions updated since the last call.
+     * Safe to call concurrently with updates; an update that races with this
+     * call leaves its region marked dirty for the next one.
+     */
+    private void forceDirty() {
+        boolean forceHeader;
+        int[] dirty;
+        MappedByteBuffer[] current;
+        MappedByteBuffer page;
+        synchronized (dirtyRegions) {
+            forceHeader = headerDirty;
+            headerDirty = false;
+            dirty = dirtyRegions.stream().toArray();
+            dirtyRegions.clear();
+            // compaction replaces the mappings while holding the lock
+            current = regions;
+            page = headerPage;
+        }
+        if (dirty.length == 0 && !forceHeader)
+            return;
+        long start = System.nanoTime();
+        for (int r : dirty) {
+            current[r].force();
+        }
+        if (forceHeader) {
+            page.force();
+        }
+        syncCount.increment();
+        syncNanos.add(System.nanoTime() - start);
+    }
+
+    private void flushIfRequired() {
+        if (groupCommitWriter == null && !unsafe) {
+            forceDirty();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> flushAsync() {
+        if (groupCommitWriter == null) {
+            // Every update was already forced, or is never forced under the unsafe policy
+            return CompletableFuture.completedFuture(null);
+        }
+        return groupCommitWriter.requestSync();
+    }
+
+    @Override
+    public synchronized void setOutcome(long decreeNum, long data) {
+        if (decreeNum < header.firstDnum)
+            // already committed and discarded
+            return;
+        // Since value is committed ballot must be set to neg INF i.e. null
+        setValue(decreeNum, new Value(VALUE_COMMITTED, new BallotNum(-1, id), data));
+        committed.set(decreeNum);
+        undecided.remove(decreeNum);
+        // commitNum is not written here, it is recomputed when the ledger is opened
+        if (header.commitNum + 1 == decreeNum) {
+            header.commitNum = committed.advance(header.commitNum);
+        }
+    }
+
+    /**
+     * Stores the whole batch and then forces the dirty regions once
+     */
+    @Override
+    public synchronized void setValues(Decree[] outcomes, BallotNum ballot, Decree[] votes) {
+        isValid();
+        TreeMap<Long, Value> values = LedgerImpl.toValues(this, id, outcomes, ballot, votes);
+        if (values.isEmpty())
+            return;
+        for (Map.Entry<Long, Value> e : values.entrySet()) {
+            long dnum = e.getKey();
+            Value v = e.getValue();
+            storeValue(dnum, v);
+            if (v.status == VALUE_COMMITTED) {
+                committed.set(dnum);
+                undecided.remove(dnum);
+            } else {
+                undecided.put(dnum, v.maxVBal, v.value);
+            }
+        }
+        flushIfRequired();
+        header.commitNum = committed.advance(header.commitNum);
+    }
+
+    @Override
+    public synchronized Long getOutcome(long decreeNum) {
+        Value v = getValue(decreeNum);
+        if (v.status != VALUE_COMMITTED)
+            return null;
+        return v.value;
+    }
+
+    @Override
+    public synchronized void forEachOutcome(long fromDnum, long toDnum, Consumer<Decree> consumer) {
+        isValid();
+        long end = Math.min(toDnum, lastDnum - 1);
+        for (long dnum = Math.max(fromDnum, header.firstDnum); dnum <= end; dnum++) {
+            MappedByteBuffer region = region(dnum);
+            int offset = offsetInRegion(dnum);
+            if (region.get(offset) == VALUE_COMMITTED) {
+                consumer.accept(new Decree(dnum, region.getLong(offset + Byte.BYTES)));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void setLastTried(BallotNum ballot) {
+        header.lastTried = ballot;
+        writeHeader();
+    }
+
+    @Override
+    public synchronized BallotNum getLastTried() {
+        return header.lastTried;
+    }
+
+    @Override
+    public synchronized void setMaxVBal(BallotNum ballot, long dnum, long value) {
+        if (getOutcome(dnum) != null)
+            throw new IllegalArgumentException("Outcome already stored at decree number " + dnum);
+        setValue(dnum, new Value(VALUE_IN_BALLOT, ballot, value));
+        undecided.put(dnum, ballot, value);
+    }
+
+    @Override
+    public synchronized BallotNum getMaxVBal(long dnum) {
+        return getValue(dnum).maxVBal;
+    }
+
+    @Override
+    public synchronized Decree getMaxVal(long dnum) {
+        return new Decree(dnum, getValue(dnum).value);
+    }
+
+    @Override
+    public synchronized void setMaxBal(BallotNum ballot) {
+        header.lastBallot = ballot;
+        writeHeader();
+    }
+
+    @Override
+    public synchronized BallotNum getMaxBal() {
+        return header.lastBallot;
+    }
+
+    @Override
+    public synchronized long getCommitNum() {
+        return header.commitNum;
+    }
+
+    @Override
+    public synchronized List<BallotedDecree> getUndecidedBallots() {
+        isValid();
+        return undecided.list();
+    }
+
+    /**
+     * Saves the snapshot and compacts the file, see LedgerImpl.saveSnapshot()
+     */
+    @Override
+    public synchronized void saveSnapshot(Snapshot snapshot) {
+        isValid();
+        if (snapshot.decreeNum < header.firstDnum - 1)
+            throw new IllegalArgumentException("Snapshot at decree " + snapshot.decreeNum + " is older than the ledger");
+        SnapshotFile.write(LedgerImpl.getSnapshotFile(path), id, snapshot);
+        this.snapshot = snapshot;
+        compact(snapshot.decreeNum + 1);
+    }
+
+    private void compact(long newFirstDnum) {
+        forceDirty();
+        File tmp = new File(path.getPath() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                out.position(PAGE_SIZE);
+                for (long dnum = newFirstDnum; dnum < lastDnum; ) {
+                    int offset = offsetInRegion(dnum);
+                    int n = (int) Math.min(regionRecords - offset / Value.size(), lastDnum - dnum);
+                    ByteBuffer src = region(dnum).duplicate();
+                    src.limit(offset + n * Value.size()).position(offset);
+                    while (src.hasRemaining())
+                        out.write(src);
+                    dnum += n;
+                }
+                header.firstDnum = newFirstDnum;
+                header.commitNum = Math.max(header.commitNum, newFirstDnum - 1);
+                ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+                header.store(page);
+                header.sequence++;
+                page.position(header.slotOffset());
+                header.storeSlot(page);
+                page.clear();
+                while (page.hasRemaining())
+                    out.write(page, page.position());
+                out.force(true);
+            }
+            Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            SnapshotFile.syncDirectory(path.getAbsoluteFile().getParentFile());
+            FileChannel old = channel;
+            channel = openChannel(path);
+            MappedByteBuffer page = channel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE);
+            synchronized (dirtyRegions) {
+                headerPage = page;
+                regions = new MappedByteBuffer[0];
+                dirtyRegions.clear();
+                headerDirty = false;
+            }
+            old.close();
+        } catch (IOException e) {
+            throw new LedgerException("Failed to compact ledger " + name, e);
+        }
+        if (lastDnum < newFirstDnum)
+            lastDnum = newFirstDnum;
+        committed.setAllBelow(newFirstDnum);
+        undecided.removeBelow(newFirstDnum);
+        header.commitNum = committed.advance(header.commitNum);
+        log.info(getClass(), "compact", "Ledger " + name + " now starts at decree " + newFirstDnum);
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public synchronized long getFirstDnum() {
+        return header.firstDnum;
+    }
+
+    /**
+     * Number of forces issued in group commit mode
+     */
+    public long getGroupCommitCount() {
+        return groupCommitWriter != null ? groupCommitWriter.getSyncCount() : 0;
+    }
+
+    /**
+     * Number of syncs, each forcing all the dirty regions; see DurabilityPolicy
+     */
+    public long getSyncCount() {
+        return syncCount.sum();
+    }
+
+    /**
+     * Time spent in syncs, in nanoseconds
+     */
+    public long getSyncTimeNanos() {
+        return syncNanos.sum();
+    }
+
+    /**
+     * Closes the ledger, truncating the file to the last initialised record.
+     * The regions stay mapped until they are garbage collected, so they must not be used after this.
+     */
+    @Override
+    public synchronized void close() {
+        isValid();
+        if (groupCommitWriter != null) {
+            groupCommitWriter.close();
+        }
+        // Saves the current commitNum so that the next open has less to scan
+        writeHeader();
+        forceDirty();
+        closed = true;
+        try {
+            try {
+                channel.truncate(PAGE_SIZE + (lastDnum - header.firstDnum) * Value.size());
+                channel.force(true);
+            } catch (IOException e) {
+                // Some platforms do not allow a mapped file to be truncated; the extra
+                // records are uninitialised so this only costs space
+                log.warn(getClass(), "close", "Failed to truncate ledger " + name + ": " + e.getMessage());
+            }
+            channel.close();
+        } catch (IOException e) {
+            throw new LedgerException("Error closing ledger " + name, e);
+        }
+        regions = new MappedByteBuffer[0];
+        log.info(getClass(), "close", "Ledger " + name + " closed");
+    }
+}
@@ -0,0 +1,1076 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import org.redukti.logging.Logger;
+import org.redukti.logging.LoggerFactory;
+import org.redukti.paxos.log.api.*;
+import org.redukti.paxos.log.impl.LedgerImpl.Header;
+import org.redukti.paxos.log.impl.LedgerImpl.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static org.redukti.paxos.log.impl.LedgerImpl.VALUE_COMMITTED;
+import static org.redukti.paxos.log.impl.LedgerImpl.VALUE_IN_BALLOT;
+import static org.redukti.paxos.log.impl.LedgerImpl.VALUE_UNINITIALISED;
+
+/**
+ * A ledger that is stored as a write ahead log made up of fixed size, append-only segment files.
+ * <p>
+ * Unlike LedgerImpl, which updates records in place, every update is appended to the active
+ * segment - a value record when a decree is voted for or committed, and a header record when
+ * lastTried or maxBal change. When the active segment is full a new segment is started; each
+ * segment begins with a header record so that older segments are never needed for the header.
+ * The location of the latest record of each decree is kept in a compact in memory index that is
+ * rebuilt by replaying the segments when the ledger is opened.
+ * </p>
+ * <p>
+ * Disk space is reclaimed a segment at a time: see {@link #purge(long)}. Saving a snapshot
+ * purges everything up to the snapshot; the snapshot is kept in the ledger directory.
+ * </p>
+ * <p>
+ * The ledger is stored in a directory named after the ledger. Each record is framed by its length
+ * and a CRC32 checksum so that a torn write at the end of the last segment can be detected
+ * and discarded during recovery.
+ * </p>
+ * <p>
+ * As records are variable length this is the ledger to use for decrees with payloads: the payload
+ * is stored after the value in a record of its own type.
+ * </p>
+ */
+public class SegmentedLedgerImpl implements Ledger {
+
+    final static Logger log = LoggerFactory.DEFAULT.getLogger(SegmentedLedgerImpl.class.getName());
+
+    /**
+     * Size of each segment file in bytes
+     */
+    public static final String SEGMENT_SIZE = "storage.segmentSize";
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int MIN_SEGMENT_SIZE = 4 * 1024;
+
+    static final int SEGMENT_MAGIC = 0x5041584C;
+    /**
+     * magic, ledger id, segment sequence number, reserved
+     */
+    static final int SEGMENT_HEADER_SIZE = Integer.BYTES * 4;
+
+    static final byte RECORD_VALUE = 1;
+    static final byte RECORD_HEADER = 2;
+    /**
+     * A value record whose body is followed by the length of the decree payload and the payload
+     */
+    static final byte RECORD_VALUE_PAYLOAD = 3;
+    /**
+     * Each record has a length, type and checksum in addition to its body
+     */
+    static final int RECORD_OVERHEAD = Integer.BYTES + Byte.BYTES + Integer.BYTES;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment_(\\d+)\\.log");
+
+    static final class Segment {
+        final int seq;
+        final File file;
+        final FileChannel channel;
+        /**
+         * Logical size of the segment, i.e. where the next record goes
+         */
+        long size;
+        /**
+         * Highest decree number that has a record in this segment
+         */
+        long maxDnum = -1;
+
+        Segment(int seq, File file, FileChannel channel) {
+            this.seq = seq;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    private final int id;
+    private final String name;
+    private final File dir;
+    private final int segmentSize;
+    /**
+     * The last snapshot saved, null if none
+     */
+    private Snapshot snapshot;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    /**
+     * The segment being appended to; volatile as the group commit writer
+     * forces it without holding the ledger lock
+     */
+    private volatile Segment active;
+
+    private final DecreeIndex index = new DecreeIndex(0);
+    private final ValueCache cache = new ValueCache(ValueCache.DEFAULT_CAPACITY);
+    /**
+     * Decrees committed above commitNum, rebuilt during replay
+     */
+    private final CommitBitmap committed = new CommitBitmap();
+    /**
+     * Decrees voted for but not yet committed, rebuilt during replay
+     */
+    private final UndecidedIndex undecided = new UndecidedIndex();
+    private GroupCommitWriter groupCommitWriter;
+    /**
+     * True under the unsafe durability policy, when updates are not forced
+     */
+    private boolean unsafe;
+
+    private final LongAdder syncCount = new LongAdder();
+    private final LongAdder syncNanos = new LongAdder();
+
+    Header header;
+    /**
+     * Lowest decree number retained, all decrees below this have been committed and purged
+     */
+    long firstDnum;
+    /**
+     * One past the highest decree number recorded
+     */
+    long lastDnum;
+
+    private SegmentedLedgerImpl(int id, File dir, String name, int segmentSize) {
+        this.id = id;
+        this.dir = dir;
+        this.name = name;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Creates a new segmented ledger. It is an error if a ledger of the same name exists.
+     */
+    public static Ledger createIfNotExisting(String basePath, String logicalName, int id) {
+        return createIfNotExisting(basePath, logicalName, id, new Properties());
+    }
+
+    /**
+     * Creates a new segmented ledger using the supplied storage properties.
+     *
+     * @see #SEGMENT_SIZE
+     * @see DurabilityPolicy#DURABILITY
+     * @see LedgerImpl#GROUP_COMMIT
+     */
+    public static Ledger createIfNotExisting(String basePath, String logicalName, int id, Properties props) {
+        log.info(SegmentedLedgerImpl.class, "createIfNotExisting", "Creating Ledger " + logicalName + " in " + basePath);
+        LedgerImpl.checkBasePath(basePath, true);
+        File dir = new File(basePath, logicalName);
+        if (dir.exists() || !dir.mkdirs()) {
+            throw new LedgerException("Failed to create " + dir.getPath());
+        }
+        SegmentedLedgerImpl ledger = new SegmentedLedgerImpl(id, dir, logicalName, getSegmentSize(props));
+        ledger.header = LedgerImpl.initialHeader(id);
+        ledger.roll();
+        ledger.setDurability(props);
+        return ledger;
+    }
+
+    /**
+     * Opens an existing segmented ledger, replaying its segments.
+     */
+    public static Ledger open(String basePath, String logicalName, int id) {
+        return open(basePath, logicalName, id, new Properties());
+    }
+
+    /**
+     * Opens an existing segmented ledger using the supplied storage properties.
+     *
+     * @see #SEGMENT_SIZE
+     * @see DurabilityPolicy#DURABILITY
+     * @see LedgerImpl#GROUP_COMMIT
+     * @see LedgerImpl#RECOVERY_THREADS
+     */
+    public static Ledger open(String basePath, String logicalName, int id, Properties props) {
+        log.info(SegmentedLedgerImpl.class, "open", "Opening Ledger " + logicalName);
+        LedgerImpl.checkBasePath(basePath, false);
+        File dir = new File(basePath, logicalName);
+        if (!dir.isDirectory() || !dir.canRead() || !dir.canWrite()) {
+            throw new LedgerException("Ledger " + dir.getPath() + " not found");
+        }
+        SegmentedLedgerImpl ledger = new SegmentedLedgerImpl(id, dir, logicalName, getSegmentSize(props));
+        ledger.recover(LedgerImpl.getRecoveryThreads(props));
+        ledger.setDurability(props);
+        return ledger;
+    }
+
+    public static boolean exists(String basePath, String logicalName) {
+        LedgerImpl.checkBasePath(basePath, false);
+        return new File(basePath, logicalName).isDirectory();
+    }
+
+    public static void delete(String basePath, String logicalName) {
+        LedgerImpl.checkBasePath(basePath, false);
+        File dir = new File(basePath, logicalName);
+        if (!dir.exists())
+            return;
+        if (!dir.isDirectory())
+            throw new LedgerException("Ledger " + dir.getPath() + " not found");
+        for (File f : listSegments(dir).values()) {
+            if (!f.delete())
+                throw new LedgerException("Failed to delete " + f.getPath());
+        }
+        File snapshotFile = new File(dir, SNAPSHOT_FILE);
+        if (snapshotFile.exists() && !snapshotFile.delete())
+            throw new LedgerException("Failed to delete " + snapshotFile.getPath());
+        if (!dir.delete())
+            throw new LedgerException("Failed to delete " + dir.getPath());
+    }
+
+    private static int getSegmentSize(Properties props) {
+        int size = Integer.parseInt(props.getProperty(SEGMENT_SIZE, Integer.toString(DEFAULT_SEGMENT_SIZE)));
+        if (size < MIN_SEGMENT_SIZE)
+            throw new LedgerException("Segment size must be at least " + MIN_SEGMENT_SIZE);
+        return size;
+    }
+
+    /**
+     * Only the group and unsafe durability policies differ here, the others all
+     * force after each update. As in LedgerImpl the group commit writer forces
+     * with force(false).
+     */
+    private void setDurability(Properties props) {
+        DurabilityPolicy durability = DurabilityPolicy.fromProperties(props);
+        if (durability == DurabilityPolicy.GROUP) {
+            groupCommitWriter = new GroupCommitWriter(name, () -> sync(durability.metaData));
+            groupCommitWriter.start();
+        }
+        unsafe = durability == DurabilityPolicy.UNSAFE;
+    }
+
+    private static TreeMap<Integer, File> listSegments(File dir) {
+        TreeMap<Integer, File> files = new TreeMap<>();
+        File[] list = dir.listFiles();
+        if (list == null)
+            return files;
+        for (File f : list) {
+            Matcher m = SEGMENT_NAME.matcher(f.getName());
+            if (m.matches()) {
+                files.put(Integer.parseInt(m.group(1)), f);
+            }
+        }
+        return files;
+    }
+
+    private File segmentFile(int seq) {
+        return new File(dir, String.format("segment_%010d.log", seq));
+    }
+
+    static long location(int seq, long offset) {
+        return ((long) seq << 32) | offset;
+    }
+
+    /**
+     * Starts a new segment, the previous segment is forced to disk first
+     */
+    private void roll() {
+        int seq = active == null ? 0 : active.seq + 1;
+        File file = segmentFile(seq);
+        try {
+            if (active != null) {
+                active.channel.force(true);
+            }
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer bb = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            bb.putInt(SEGMENT_MAGIC);
+            bb.putInt(id);
+            bb.putInt(seq);
+            bb.putInt(0);
+            bb.flip();
+            writeFully(channel, bb, 0);
+            Segment segment = new Segment(seq, file, channel);
+            segment.size = SEGMENT_HEADER_SIZE;
+            segments.put(seq, segment);
+            active = segment;
+        } catch (IOException e) {
+            throw new LedgerException("Failed to create segment " + file.getPath() + " for ledger " + name, e);
+        }
+        // Every segment starts with the header so that older segments can be deleted
+        appendHeader();
+        force();
+        syncDirectory();
+        log.info(getClass(), "roll", "Ledger " + name + " started segment " + file.getName());
+    }
+
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on all platforms
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            int n = channel.read(bb, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of file");
+            position += n;
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if the active one is full.
+     *
+     * @param type Record type
+     * @param body Parts of the record body, each flipped and ready to be read; they are copied
+     *             straight into the record so a payload need not be copied into the body first
+     * @return location of the record
+     */
+    private long append(byte type, ByteBuffer... body) {
+        int length = Byte.BYTES;
+        for (ByteBuffer part : body) {
+            length += part.remaining();
+        }
+        int recordSize = Integer.BYTES + length + Integer.BYTES;
+        if (recordSize > segmentSize - SEGMENT_HEADER_SIZE) {
+            throw new LedgerException("Record of " + recordSize + " bytes does not fit in a segment of ledger " + name);
+        }
+        if (active.size + recordSize > segmentSize && active.size > SEGMENT_HEADER_SIZE) {
+            roll();
+        }
+        ByteBuffer bb = ByteBuffer.allocate(recordSize);
+        bb.putInt(length);
+        bb.put(type);
+        for (ByteBuffer part : body) {
+            bb.put(part.duplicate());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), Integer.BYTES, length);
+        bb.putInt((int) crc.getValue());
+        bb.flip();
+        long offset = active.size;
+        try {
+            writeFully(active.channel, bb, offset);
+        } catch (IOException e) {
+            throw new LedgerException("Failure when writing to ledger " + name, e);
+        }
+        active.size += recordSize;
+        return location(active.seq, offset);
+    }
+
+    private void appendHeader() {
+        ByteBuffer body = ByteBuffer.allocate(Header.size() + Long.BYTES);
+        header.store(body);
+        body.putLong(firstDnum);
+        body.flip();
+        append(RECORD_HEADER, body);
+    }
+
+    private void force() {
+        try {
+            sync(true);
+        } catch (IOException e) {
+            throw new LedgerException("Failure when flushing ledger " + name + " to disk", e);
+        }
+    }
+
+    /**
+     * Forces the active segment, counting the sync
+     */
+    private void sync(boolean metaData) throws IOException {
+        long start = System.nanoTime();
+        active.channel.force(metaData);
+        syncCount.increment();
+        syncNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Updates are forced individually unless we are in group commit mode,
+     * in which case it is up to the caller to use flushAsync().
+     */
+    private void flushIfRequired() {
+        if (groupCommitWriter == null && !unsafe) {
+            force();
+        }
+    }
+
+    /**
+     * The records of a segment, read and checked by a recovery thread so that they can
+     * then be applied in segment order by {@link #apply(ParsedSegment, boolean)}.
+     */
+    static final class ParsedSegment {
+        final Segment segment;
+        int count;
+        byte[] types = new byte[1024];
+        byte[] statuses = new byte[1024];
+        long[] dnums = new long[1024];
+        long[] offsets = new long[1024];
+        /**
+         * Values in VALUE_IN_BALLOT state, by record number
+         */
+        final Map<Integer, Value> inBallot = new HashMap<>();
+        /**
+         * Header records and the firstDnum stored with them, by record number
+         */
+        final Map<Integer, Header> headers = new HashMap<>();
+        final Map<Integer, Long> firstDnums = new HashMap<>();
+        /**
+         * Position after the last good record
+         */
+        long end;
+        /**
+         * Why the segment could not be read beyond end, null if it was read to the end
+         */
+        String problem;
+
+        ParsedSegment(Segment segment) {
+            this.segment = segment;
+        }
+
+        int add(byte type, long dnum, byte status, long offset) {
+            if (count == types.length) {
+                int n = count * 2;
+                types = Arrays.copyOf(types, n);
+                statuses = Arrays.copyOf(statuses, n);
+                dnums = Arrays.copyOf(dnums, n);
+                offsets = Arrays.copyOf(offsets, n);
+            }
+            types[count] = type;
+            dnums[count] = dnum;
+            statuses[count] = status;
+            offsets[count] = offset;
+            return count++;
+        }
+    }
+
+    /**
+     * Reads a segment from start to finish with large sequential reads, checking and decoding
+     * each record, without touching the ledger's state. Reading stops at the first damaged record,
+     * or at the segment header if that is short or invalid, as it is when a crash interrupts roll().
+     * Safe to run on several segments at once.
+     */
+    private ParsedSegment parse(Segment segment) throws IOException {
+        ParsedSegment parsed = new ParsedSegment(segment);
+        if (segment.channel.size() < SEGMENT_HEADER_SIZE) {
+            parsed.problem = "truncated segment header";
+            return parsed;
+        }
+        ByteBuffer sh = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        readFully(segment.channel, sh, 0);
+        sh.flip();
+        int magic = sh.getInt();
+        int ledgerId = sh.getInt();
+        int seq = sh.getInt();
+        if (magic != SEGMENT_MAGIC || ledgerId != id || seq != segment.seq) {
+            parsed.problem = "invalid segment header";
+            return parsed;
+        }
+        SegmentReader reader = new SegmentReader(segment.channel, SEGMENT_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (true) {
+            long pos = reader.position();
+            if (pos == reader.fileSize) {
+                break;
+            }
+            if (!reader.ensure(Integer.BYTES)) {
+                parsed.problem = "truncated record";
+                break;
+            }
+            ByteBuffer bb = reader.bb;
+            int start = bb.position();
+            int length = bb.getInt(start);
+            if (length <= 0 || length > segmentSize) {
+                parsed.problem = "invalid record length " + length;
+                break;
+            }
+            if (!reader.ensure(Integer.BYTES + length + Integer.BYTES)) {
+                parsed.problem = "truncated record";
+                break;
+            }
+            bb = reader.bb;
+            start = bb.position();
+            crc.reset();
+            crc.update(bb.array(), bb.arrayOffset() + start + Integer.BYTES, length);
+            if ((int) crc.getValue() != bb.getInt(start + Integer.BYTES + length)) {
+                parsed.problem = "checksum mismatch";
+                break;
+            }
+            bb.position(start + Integer.BYTES);
+            decode(parsed, bb.get(), bb, pos);
+            bb.position(start + Integer.BYTES + length + Integer.BYTES);
+        }
+        parsed.end = reader.position();
+        return parsed;
+    }
+
+    /**
+     * Decodes a record found by parse()
+     */
+    private void decode(ParsedSegment parsed, byte type, ByteBuffer bb, long offset) {
+        if (type == RECORD_VALUE || type == RECORD_VALUE_PAYLOAD) {
+            long dnum = bb.getLong();
+            Value v = new Value(bb, id);
+            int i = parsed.add(type, dnum, v.status, offset);
+            if (v.status == VALUE_IN_BALLOT) {
+                if (type == RECORD_VALUE_PAYLOAD) {
+                    // The read buffer is reused so the payload must be copied
+                    ByteBuffer payload = ByteBuffer.allocate(bb.getInt());
+                    payload.put(Decree.slicePayload(bb, payload.capacity())).flip();
+                    v = new Value(v.status, v.maxVBal, v.value, payload);
+                }
+                parsed.inBallot.put(i, v);
+            }
+        } else if (type == RECORD_HEADER) {
+            Header h = new Header(bb);
+            if (h.id != id)
+                throw new LedgerException("Invalid Ledger - id is " + h.id + " expected " + id);
+            int i = parsed.add(type, -1, VALUE_UNINITIALISED, offset);
+            parsed.headers.put(i, h);
+            parsed.firstDnums.put(i, bb.getLong());
+        } else {
+            throw new LedgerException("Unknown record type " + type + " in segment " + parsed.segment.file.getPath() + " of ledger " + name);
+        }
+    }
+
+    /**
+     * Applies the records of a parsed segment, updating the header, index and other in
+     * memory state. Segments must be applied in order. A damaged record at the end of the
+     * last segment is assumed to be the result of a torn write, and the segment is truncated there.
+     */
+    private void apply(ParsedSegment parsed, boolean last) throws IOException {
+        Segment segment = parsed.segment;
+        for (int i = 0; i < parsed.count; i++) {
+            if (parsed.types[i] == RECORD_HEADER) {
+                header = parsed.headers.get(i);
+                long first = parsed.firstDnums.get(i);
+                if (first > firstDnum) {
+                    firstDnum = first;
+                    index.truncate(first);
+                    committed.setAllBelow(first);
+                    undecided.removeBelow(first);
+                }
+                continue;
+            }
+            long dnum = parsed.dnums[i];
+            if (dnum >= firstDnum) {
+                index.put(dnum, location(segment.seq, parsed.offsets[i]));
+                lastDnum = Math.max(lastDnum, dnum + 1);
+                if (parsed.statuses[i] == VALUE_COMMITTED) {
+                    committed.set(dnum);
+                    undecided.remove(dnum);
+                } else if (parsed.statuses[i] == VALUE_IN_BALLOT) {
+                    undecided.put(dnum, parsed.inBallot.get(i));
+                }
+            }
+            segment.maxDnum = Math.max(segment.maxDnum, dnum);
+        }
+        if (parsed.problem != null) {
+            if (!last) {
+                throw new LedgerException("Segment " + segment.file.getPath() + " of ledger " + name + " is damaged at offset " + parsed.end + ": " + parsed.problem);
+            }
+            log.warn(getClass(), "replay", "Truncating segment " + segment.file.getPath() + " of ledger " + name + " at offset " + parsed.end + ": " + parsed.problem);
+            segment.channel.truncate(parsed.end);
+            segment.channel.force(true);
+        }
+        segment.size = parsed.end;
+    }
+
+    /**
+     * Replays the segments. Up to threads segments are read and checked ahead in parallel,
+     * while the segments are applied one at a time in order.
+     */
+    private void recover(int threads) {
+        long start = System.nanoTime();
+        TreeMap<Integer, File> files = listSegments(dir);
+        if (files.isEmpty()) {
+            throw new LedgerException("Ledger " + dir.getPath() + " has no segments");
+        }
+        ExecutorService executor = null;
+        try {
+            for (Map.Entry<Integer, File> e : files.entrySet()) {
+                FileChannel channel = FileChannel.open(e.getValue().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Segment segment = new Segment(e.getKey(), e.getValue(), channel);
+                segments.put(segment.seq, segment);
+            }
+            List<Segment> list = new ArrayList<>(segments.values());
+            int threadsUsed = Math.min(threads, list.size());
+            if (threadsUsed > 1) {
+                AtomicInteger threadNum = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(threadsUsed, r -> {
+                    Thread t = new Thread(r, "LedgerRecovery-" + name + "-" + threadNum.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            // Parsed segments are held in memory until applied, so only read a few ahead
+            ArrayDeque<Future<ParsedSegment>> ahead = new ArrayDeque<>();
+            int next = 0;
+            for (int i = 0; i < list.size(); i++) {
+                ParsedSegment parsed;
+                if (executor == null) {
+                    parsed = parse(list.get(i));
+                } else {
+                    while (next < list.size() && ahead.size() < threadsUsed) {
+                        Segment segment = list.get(next++);
+                        ahead.add(executor.submit(() -> parse(segment)));
+                    }
+                    parsed = ahead.poll().get();
+                }
+                boolean last = i == list.size() - 1;
+                if (last && i > 0 && parsed.count == 0) {
+                    // A crash in roll() left a new segment without even its header record
+                    discard(parsed);
+                    break;
+                }
+                apply(parsed, last);
+                active = parsed.segment;
+            }
+        } catch (IOException e) {
+            closeSegments();
+            throw new LedgerException("Failed to recover ledger " + name, e);
+        } catch (ExecutionException e) {
+            closeSegments();
+            if (e.getCause() instanceof LedgerException)
+                throw (LedgerException) e.getCause();
+            throw new LedgerException("Failed to recover ledger " + name, e.getCause());
+        } catch (InterruptedException e) {
+            closeSegments();
+            Thread.currentThread().interrupt();
+            throw new LedgerException("Interrupted while recovering ledger " + name, e);
+        } catch (RuntimeException e) {
+            closeSegments();
+            throw e;
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+        if (header == null) {
+            closeSegments();
+            throw new LedgerException("Failed to read header from ledger " + name);
+        }
+        snapshot = SnapshotFile.read(new File(dir, SNAPSHOT_FILE), id);
+        // commitNum is not logged on every commit, so catch up
+        header.commitNum = committed.advance(Math.max(header.commitNum, firstDnum - 1));
+        log.info(getClass(), "recover", "Ledger " + name + " recovered " + segments.size() + " segments in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms, commitNum=" + header.commitNum
+                + ", lastDnum=" + lastDnum + ", " + undecided.size() + " undecided");
+    }
+
+    /**
+     * Deletes the last segment, the previous one stays active
+     */
+    private void discard(ParsedSegment parsed) throws IOException {
+        Segment segment = parsed.segment;
+        log.warn(getClass(), "recover", "Deleting segment " + segment.file.getPath() + " of ledger " + name + " as it has no records"
+                + (parsed.problem != null ? ": " + parsed.problem : ""));
+        segments.remove(segment.seq);
+        segment.channel.close();
+        if (!segment.file.delete())
+            throw new IOException("Failed to delete " + segment.file.getPath());
+        syncDirectory();
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+        segments.clear();
+    }
+
+    /**
+     * Reclaims disk space by deleting segments that only hold decrees up to and including
+     * dnum. Decrees above the commitNum are never purged. Once purged, a decree reads as if it
+     * was never written, so callers must not purge decrees that another process may still need,
+     * unless those processes can be brought up to date by other means.
+     */
+    public synchronized void purge(long dnum) {
+        truncate(Math.min(dnum, header.commitNum));
+    }
+
+    /**
+     * Discards all decrees up to and including point, which may be above the commitNum
+     * when a snapshot is installed.
+     */
+    private void truncate(long point) {
+        if (point < firstDnum)
+            return;
+        firstDnum = point + 1;
+        header.commitNum = Math.max(header.commitNum, point);
+        // The new firstDnum must be durable before any segment goes
+        appendHeader();
+        force();
+        index.truncate(firstDnum);
+        cache.clear();
+        committed.setAllBelow(firstDnum);
+        undecided.removeBelow(firstDnum);
+        header.commitNum = committed.advance(header.commitNum);
+        Iterator<Segment> iter = segments.values().iterator();
+        while (iter.hasNext()) {
+            Segment segment = iter.next();
+            if (segment == active || segment.maxDnum >= firstDnum)
+                continue;
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                // ignored
+            }
+            if (!segment.file.delete()) {
+                log.warn(getClass(), "purge", "Failed to delete segment " + segment.file.getPath());
+            }
+            iter.remove();
+            log.info(getClass(), "purge", "Ledger " + name + " deleted segment " + segment.file.getName());
+        }
+    }
+
+    private void setValue(long decreeNum, Value v) {
+        appendValue(decreeNum, v);
+        flushIfRequired();
+    }
+
+    private void appendValue(long decreeNum, Value v) {
+        boolean hasPayload = v.payload.hasRemaining();
+        ByteBuffer body = ByteBuffer.allocate(Long.BYTES + Value.size() + (hasPayload ? Integer.BYTES : 0));
+        body.putLong(decreeNum);
+        v.store(body);
+        long loc;
+        if (hasPayload) {
+            body.putInt(v.payload.remaining());
+            body.flip();
+            loc = append(RECORD_VALUE_PAYLOAD, body, v.payload);
+        } else {
+            body.flip();
+            loc = append(RECORD_VALUE, body);
+        }
+        index.put(decreeNum, loc);
+        active.maxDnum = Math.max(active.maxDnum, decreeNum);
+        lastDnum = Math.max(lastDnum, decreeNum + 1);
+        cache.put(decreeNum, v);
+    }
+
+    Value getValue(long decreeNum) {
+        if (decreeNum < 0)
+            throw new IllegalArgumentException("decree number cannot be < 0");
+        if (decreeNum < firstDnum)
+            return new Value(VALUE_UNINITIALISED, new BallotNum(-1, id), 0);
+        Value v = cache.get(decreeNum);
+        if (v != null)
+            return v;
+        long loc = index.get(decreeNum);
+        if (loc == DecreeIndex.NONE) {
+            return new Value(VALUE_UNINITIALISED, new BallotNum(-1, id), 0);
+        }
+        v = readValue(loc);
+        cache.put(decreeNum, v);
+        return v;
+    }
+
+    /**
+     * Reads the value record at loc. A record with a payload is read with a second
+     * read once its length is known, directly into the buffer the payload is returned in.
+     */
+    private Value readValue(long loc) {
+        Segment segment = segments.get((int) (loc >>> 32));
+        long offset = loc & 0xFFFFFFFFL;
+        int fixedSize = Integer.BYTES + Byte.BYTES + Long.BYTES + Value.size();
+        ByteBuffer bb = ByteBuffer.allocate(fixedSize);
+        ByteBuffer rest = null;
+        try {
+            readFully(segment.channel, bb, offset);
+            bb.flip();
+            int length = bb.getInt();
+            byte type = bb.get();
+            if (type == RECORD_VALUE_PAYLOAD) {
+                rest = ByteBuffer.allocate(length - (fixedSize - Integer.BYTES));
+                readFully(segment.channel, rest, offset + fixedSize);
+                rest.flip();
+            } else if (type != RECORD_VALUE) {
+                throw new LedgerException("Ledger " + name + " has an invalid record at " + offset + " in " + segment.file.getPath());
+            }
+        } catch (IOException e) {
+            throw new LedgerException("Failure when reading from ledger " + name, e);
+        }
+        bb.getLong();
+        Value v = new Value(bb, id);
+        if (rest != null) {
+            ByteBuffer payload = Decree.slicePayload(rest, rest.getInt());
+            v = new Value(v.status, v.maxVBal, v.value, payload);
+        }
+        return v;
+    }
+
+    @Override
+    public synchronized void setOutcome(long decreeNum, long data) {
+        if (decreeNum < firstDnum)
+            // already committed and purged
+            return;
+        setValue(decreeNum, new Value(VALUE_COMMITTED, new BallotNum(-1, id), data));
+        committed.set(decreeNum);
+        undecided.remove(decreeNum);
+        // commitNum is not logged here, it is recomputed when the ledger is recovered
+        if (header.commitNum + 1 == decreeNum) {
+            header.commitNum = committed.advance(header.commitNum);
+        }
+    }
+
+    /**
+     * Appends the whole batch and then forces the segment once. Outcomes for
+     * purged decrees are ignored as by setOutcome().
+     */
+    @Override
+    public synchronized void setValues(Decree[] outcomes, BallotNum ballot, Decree[] votes) {
+        TreeMap<Long, Value> values = LedgerImpl.toValues(this, id, outcomes, ballot, votes);
+        if (values.isEmpty())
+            return;
+        for (Map.Entry<Long, Value> e : values.entrySet()) {
+            long dnum = e.getKey();
+            Value v = e.getValue();
+            appendValue(dnum, v);
+            if (v.status == VALUE_COMMITTED) {
+                committed.set(dnum);
+                undecided.remove(dnum);
+            } else {
+                undecided.put(dnum, v);
+            }
+        }
+        flushIfRequired();
+        header.commitNum = committed.advance(header.commitNum);
+    }
+
+    @Override
+    public synchronized Long getOutcome(long decreeNum) {
+        Value v = getValue(decreeNum);
+        if (v.status != VALUE_COMMITTED)
+            return null;
+        return v.value;
+    }
+
+    @Override
+    public synchronized void setLastTried(BallotNum ballot) {
+        header.lastTried = ballot;
+        appendHeader();
+        flushIfRequired();
+    }
+
+    @Override
+    public synchronized BallotNum getLastTried() {
+        return header.lastTried;
+    }
+
+    @Override
+    public synchronized void setMaxVBal(BallotNum ballot, long dnum, long value) {
+        if (dnum < firstDnum || getOutcome(dnum) != null)
+            throw new IllegalArgumentException("Outcome already stored at decree number " + dnum);
+        setValue(dnum, new Value(VALUE_IN_BALLOT, ballot, value));
+        undecided.put(dnum, ballot, value);
+    }
+
+    @Override
+    public synchronized BallotNum getMaxVBal(long dnum) {
+        return getValue(dnum).maxVBal;
+    }
+
+    @Override
+    public synchronized Decree getMaxVal(long dnum) {
+        return getValue(dnum).toDecree(dnum);
+    }
+
+    /**
+     * Passes the outcomes with their payloads. Decrees not in the cache are read
+     * without being added to it, so that a long scan does not evict the recent decrees.
+     */
+    @Override
+    public synchronized void forEachOutcome(long fromDnum, long toDnum, Consumer<Decree> consumer) {
+        for (long dnum = Math.max(fromDnum, firstDnum); dnum <= toDnum && dnum < lastDnum; dnum++) {
+            Value v = cache.get(dnum);
+            if (v == null) {
+                long loc = index.get(dnum);
+                if (loc == DecreeIndex.NONE)
+                    continue;
+                v = readValue(loc);
+            }
+            if (v.status == VALUE_COMMITTED)
+                consumer.accept(v.toDecree(dnum));
+        }
+    }
+
+    @Override
+    public boolean supportsPayloads() {
+        return true;
+    }
+
+    @Override
+    public synchronized void setMaxBal(BallotNum ballot) {
+        header.lastBallot = ballot;
+        appendHeader();
+        flushIfRequired();
+    }
+
+    @Override
+    public synchronized BallotNum getMaxBal() {
+        return header.lastBallot;
+    }
+
+    @Override
+    public synchronized long getCommitNum() {
+        return header.commitNum;
+    }
+
+    @Override
+    public synchronized List<BallotedDecree> getUndecidedBallots() {
+        return undecided.list();
+    }
+
+    @Override
+    public CompletableFuture<Void> flushAsync() {
+        if (groupCommitWriter == null) {
+            // Every update was already forced, or is never forced under the unsafe policy
+            return CompletableFuture.completedFuture(null);
+        }
+        return groupCommitWriter.requestSync();
+    }
+
+    @Override
+    public synchronized long getFirstDnum() {
+        return firstDnum;
+    }
+
+    /**
+     * Saves the snapshot and then purges all decrees up to and including
+     * the snapshot's decree number.
+     */
+    @Override
+    public synchronized void saveSnapshot(Snapshot snapshot) {
+        if (snapshot.decreeNum < firstDnum - 1)
+            throw new IllegalArgumentException("Snapshot at decree " + snapshot.decreeNum + " is older than the ledger");
+        SnapshotFile.write(new File(dir, SNAPSHOT_FILE), id, snapshot);
+        this.snapshot = snapshot;
+        truncate(snapshot.decreeNum);
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Number of syncs, see DurabilityPolicy
+     */
+    public long getSyncCount() {
+        return syncCount.sum();
+    }
+
+    /**
+     * Time spent in syncs, in nanoseconds
+     */
+    public long getSyncTimeNanos() {
+        return syncNanos.sum();
+    }
+
+    /**
+     * Number of forces issued in group commit mode
+     */
+    public long getGroupCommitCount() {
+        return groupCommitWriter != null ? groupCommitWriter.getSyncCount() : 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (segments.isEmpty()) {
+            throw new IllegalStateException("Ledger " + name + " is not open");
+        }
+        if (groupCommitWriter != null) {
+            groupCommitWriter.close();
+        }
+        force();
+        closeSegments();
+        log.info(getClass(), "close", "Ledger " + name + " closed");
+    }
+
+    /**
+     * Reads a segment sequentially using large reads
+     */
+    static final class SegmentReader {
+        final FileChannel channel;
+        final long fileSize;
+        ByteBuffer bb;
+        /**
+         * File position of the next byte to be read into the buffer
+         */
+        long filePos;
+
+        SegmentReader(FileChannel channel, long start) throws IOException {
+            this.channel = channel;
+            this.fileSize = channel.size();
+            this.bb = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.bb.limit(0);
+            this.filePos = start;
+        }
+
+        /**
+         * File position of the next byte to be consumed from the buffer
+         */
+        long position() {
+            return filePos - bb.remaining();
+        }
+
+        /**
+         * Makes sure at least n bytes are available in the buffer, returns false if
+         * there aren't enough bytes left in the file.
+         */
+        boolean ensure(int n) throws IOException {
+            if (bb.remaining() >= n)
+                return true;
+            bb.compact();
+            if (bb.capacity() < n) {
+                ByteBuffer larger = ByteBuffer.allocate(n);
+                bb.flip();
+                larger.put(bb);
+                bb = larger;
+            }
+            while (bb.position() < n && filePos < fileSize) {
+                int r = channel.read(bb, filePos);
+                if (r < 0)
+                    break;
+                filePos += r;
+            }
+            bb.flip();
+            return bb.remaining() >= n;
+        }
+    }
+}
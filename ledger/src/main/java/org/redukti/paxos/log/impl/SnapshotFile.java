@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import org.redukti.paxos.log.api.LedgerException;
+import org.redukti.paxos.log.api.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the file that holds a ledger's snapshot.
+ * The file holds a magic number, the ledger id, the decree number, the length of
+ * the state, the state, and a CRC32 over all of these. It is replaced atomically by
+ * writing a temporary file and renaming it.
+ */
+final class SnapshotFile {
+
+    static final int SNAPSHOT_MAGIC = 0x50584E53;
+    private static final int OVERHEAD = Integer.BYTES * 3 + Long.BYTES + Integer.BYTES;
+
+    private SnapshotFile() {
+    }
+
+    static void write(File file, int id, Snapshot snapshot) {
+        ByteBuffer bb = ByteBuffer.allocate(OVERHEAD + snapshot.state.length);
+        bb.putInt(SNAPSHOT_MAGIC);
+        bb.putInt(id);
+        bb.putLong(snapshot.decreeNum);
+        bb.putInt(snapshot.state.length);
+        bb.put(snapshot.state);
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), 0, bb.position());
+        bb.putInt((int) crc.getValue());
+        bb.flip();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new LedgerException("Failed to write snapshot " + file.getPath(), e);
+        }
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Returns the snapshot held in file, or null if the file does not exist
+     */
+    static Snapshot read(File file, int id) {
+        if (!file.exists())
+            return null;
+        ByteBuffer bb;
+        try {
+            bb = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            throw new LedgerException("Failed to read snapshot " + file.getPath(), e);
+        }
+        if (bb.remaining() < OVERHEAD || bb.getInt() != SNAPSHOT_MAGIC)
+            throw new LedgerException("Invalid snapshot " + file.getPath());
+        int ledgerId = bb.getInt();
+        if (ledgerId != id)
+            throw new LedgerException("Invalid snapshot " + file.getPath() + " - id is " + ledgerId + " expected " + id);
+        long decreeNum = bb.getLong();
+        int length = bb.getInt();
+        if (length < 0 || bb.remaining() != length + Integer.BYTES)
+            throw new LedgerException("Invalid snapshot " + file.getPath());
+        byte[] state = new byte[length];
+        bb.get(state);
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), 0, bb.position());
+        if ((int) crc.getValue() != bb.getInt())
+            throw new LedgerException("Snapshot " + file.getPath() + " is damaged");
+        return new Snapshot(decreeNum, state);
+    }
+
+    /**
+     * Makes a rename in dir durable
+     */
+    static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on all platforms
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import org.redukti.logging.Logger;
+import org.redukti.logging.LoggerFactory;
+import org.redukti.paxos.log.api.BallotNum;
+import org.redukti.paxos.log.api.BallotedDecree;
+import org.redukti.paxos.log.api.Decree;
+import org.redukti.paxos.log.api.Ledger;
+import org.redukti.paxos.log.api.LedgerException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * A ledger that stripes decrees across several ledgers, one in each of a number of
+ * directories, so that the writes and forces of a node are spread over several devices.
+ * <p>
+ * Decree dnum is stored in stripe dnum % n as decree dnum / n of that stripe, so a batch of
+ * consecutive decrees touches every stripe. Each stripe is a complete ledger of its own -
+ * by default a {@link LedgerImpl}, or a {@link SegmentedLedgerImpl} when {@link #STRIPE_TYPE}
+ * is segmented - with its own file, durability policy and group commit writer, and each stripe has
+ * a writer thread so that the stripes of a batch are written and forced in parallel. lastTried
+ * and maxBal are kept in the first stripe. commitNum is derived from the commitNum of each stripe.
+ * </p>
+ * <p>
+ * Each stripe's file name includes the stripe number and the number of stripes, so a ledger
+ * cannot be opened with the directories in a different order or with a different number of them.
+ * Snapshots are not supported.
+ * </p>
+ */
+public class StripedLedgerImpl implements Ledger {
+
+    final static Logger log = LoggerFactory.DEFAULT.getLogger(StripedLedgerImpl.class.getName());
+
+    /**
+     * Type of ledger used for each stripe, file (the default) or segmented
+     */
+    public static final String STRIPE_TYPE = "storage.stripeType";
+
+    private final String name;
+    private final Ledger[] stripes;
+    private final ExecutorService[] writers;
+
+    private StripedLedgerImpl(String name, Ledger[] stripes) {
+        this.name = name;
+        this.stripes = stripes;
+        this.writers = new ExecutorService[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            String threadName = "StripeWriter-" + name + "-" + i;
+            writers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Creates a ledger striped across the given directories
+     */
+    public static Ledger createIfNotExisting(String[] basePaths, String logicalName, int id, Properties props) {
+        log.info(StripedLedgerImpl.class, "createIfNotExisting", "Creating Ledger " + logicalName + " striped across " + basePaths.length + " directories");
+        boolean segmented = isSegmented(props);
+        Ledger[] stripes = new Ledger[basePaths.length];
+        try {
+            for (int i = 0; i < stripes.length; i++) {
+                String stripeName = stripeName(logicalName, i, stripes.length);
+                stripes[i] = segmented
+                        ? SegmentedLedgerImpl.createIfNotExisting(basePaths[i], stripeName, id, props)
+                        : LedgerImpl.createIfNotExisting(basePaths[i], stripeName, id, props);
+            }
+        } catch (RuntimeException e) {
+            closeAll(stripes);
+            throw e;
+        }
+        return new StripedLedgerImpl(logicalName, stripes);
+    }
+
+    /**
+     * Opens a striped ledger, the directories must be given in the order used when it was created.
+     * The stripes are opened, and so recovered, in parallel.
+     */
+    public static Ledger open(String[] basePaths, String logicalName, int id, Properties props) {
+        log.info(StripedLedgerImpl.class, "open", "Opening Ledger " + logicalName + " striped across " + basePaths.length + " directories");
+        long start = System.nanoTime();
+        boolean segmented = isSegmented(props);
+        Ledger[] stripes = new Ledger[basePaths.length];
+        ExecutorService executor = Executors.newFixedThreadPool(stripes.length, r -> {
+            Thread t = new Thread(r, "StripeRecovery-" + logicalName);
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Ledger>> futures = new ArrayList<>();
+            for (int i = 0; i < stripes.length; i++) {
+                String basePath = basePaths[i];
+                String stripeName = stripeName(logicalName, i, stripes.length);
+                futures.add(executor.submit(() -> segmented
+                        ? SegmentedLedgerImpl.open(basePath, stripeName, id, props)
+                        : LedgerImpl.open(basePath, stripeName, id, props)));
+            }
+            RuntimeException failure = null;
+            for (int i = 0; i < stripes.length; i++) {
+                try {
+                    stripes[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause()
+                                : new LedgerException("Failed to open ledger " + logicalName, e.getCause());
+                    }
+                }
+            }
+            if (failure != null)
+                throw failure;
+        } catch (InterruptedException e) {
+            closeAll(stripes);
+            Thread.currentThread().interrupt();
+            throw new LedgerException("Interrupted while opening ledger " + logicalName, e);
+        } catch (RuntimeException e) {
+            closeAll(stripes);
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+        log.info(StripedLedgerImpl.class, "open", "Ledger " + logicalName + " recovered in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return new StripedLedgerImpl(logicalName, stripes);
+    }
+
+    /**
+     * True if every stripe exists
+     */
+    public static boolean exists(String[] basePaths, String logicalName, Properties props) {
+        boolean segmented = isSegmented(props);
+        for (int i = 0; i < basePaths.length; i++) {
+            String stripeName = stripeName(logicalName, i, basePaths.length);
+            boolean exists = segmented
+                    ? SegmentedLedgerImpl.exists(basePaths[i], stripeName)
+                    : LedgerImpl.exists(basePaths[i], stripeName);
+            if (!exists)
+                return false;
+        }
+        return true;
+    }
+
+    public static void delete(String[] basePaths, String logicalName, Properties props) {
+        boolean segmented = isSegmented(props);
+        for (int i = 0; i < basePaths.length; i++) {
+            String stripeName = stripeName(logicalName, i, basePaths.length);
+            if (segmented)
+                SegmentedLedgerImpl.delete(basePaths[i], stripeName);
+            else
+                LedgerImpl.delete(basePaths[i], stripeName);
+        }
+    }
+
+    static String stripeName(String logicalName, int stripe, int stripeCount) {
+        return logicalName + ".stripe" + stripe + "of" + stripeCount;
+    }
+
+    private static boolean isSegmented(Properties props) {
+        String type = props.getProperty(STRIPE_TYPE, "file");
+        if ("segmented".equals(type))
+            return true;
+        if (!"file".equals(type))
+            throw new LedgerException("Unknown stripe type " + type);
+        return false;
+    }
+
+    private static void closeAll(Ledger[] stripes) {
+        for (Ledger stripe : stripes) {
+            if (stripe == null)
+                continue;
+            try {
+                stripe.close();
+            } catch (Exception e) {
+                log.error(StripedLedgerImpl.class, "closeAll", "Failed to close stripe", e);
+            }
+        }
+    }
+
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    private Ledger stripe(long dnum) {
+        return stripes[(int) (dnum % stripes.length)];
+    }
+
+    private long local(long dnum) {
+        return dnum / stripes.length;
+    }
+
+    private long global(int stripe, long localDnum) {
+        return localDnum * stripes.length + stripe;
+    }
+
+    private Decree toGlobal(int stripe, Decree d) {
+        return new Decree(global(stripe, d.decreeNum), d.value, d.payload);
+    }
+
+    @Override
+    public synchronized void setOutcome(long decreeNum, long value) {
+        stripe(decreeNum).setOutcome(local(decreeNum), value);
+    }
+
+    @Override
+    public synchronized Long getOutcome(long decreeNum) {
+        return stripe(decreeNum).getOutcome(local(decreeNum));
+    }
+
+    /**
+     * Each stripe passes its part of the range, and the parts are then merged in decree number order
+     */
+    @Override
+    public synchronized void forEachOutcome(long fromDnum, long toDnum, Consumer<Decree> consumer) {
+        List<Decree> outcomes = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            if (toDnum < i)
+                continue;
+            final int stripe = i;
+            long from = fromDnum <= i ? 0 : (fromDnum - i + stripes.length - 1) / stripes.length;
+            long to = (toDnum - i) / stripes.length;
+            stripes[i].forEachOutcome(from, to, d -> outcomes.add(toGlobal(stripe, d)));
+        }
+        outcomes.sort(Comparator.comparingLong(d -> d.decreeNum));
+        outcomes.forEach(consumer);
+    }
+
+    @Override
+    public synchronized void setLastTried(BallotNum ballot) {
+        stripes[0].setLastTried(ballot);
+    }
+
+    @Override
+    public synchronized BallotNum getLastTried() {
+        return stripes[0].getLastTried();
+    }
+
+    @Override
+    public synchronized void setMaxVBal(BallotNum ballot, long dnum, long value) {
+        stripe(dnum).setMaxVBal(ballot, local(dnum), value);
+    }
+
+    /**
+     * Splits the batch by stripe and writes the parts in parallel, each on its stripe's
+     * writer thread. The batch is validated first so that an invalid vote does not leave
+     * some of the stripes updated.
+     */
+    @Override
+    public synchronized void setValues(Decree[] outcomes, BallotNum ballot, Decree[] votes) {
+        List<List<Decree>> stripeOutcomes = split(outcomes);
+        List<List<Decree>> stripeVotes = split(votes);
+        for (Decree d : outcomes) {
+            checkPayload(d);
+        }
+        for (Decree d : votes) {
+            checkPayload(d);
+            if (getOutcome(d.decreeNum) != null)
+                throw new IllegalArgumentException("Outcome already stored at decree number " + d.decreeNum);
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripeOutcomes.get(i).isEmpty() && stripeVotes.get(i).isEmpty())
+                continue;
+            Ledger stripe = stripes[i];
+            Decree[] o = stripeOutcomes.get(i).toArray(new Decree[0]);
+            Decree[] v = stripeVotes.get(i).toArray(new Decree[0]);
+            futures.add(writers[i].submit(() -> stripe.setValues(o, ballot, v)));
+        }
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new LedgerException("Failure when writing to ledger " + name, e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LedgerException("Interrupted while writing to ledger " + name, e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private List<List<Decree>> split(Decree[] decrees) {
+        List<List<Decree>> result = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            result.add(new ArrayList<>());
+        }
+        for (Decree d : decrees) {
+            result.get((int) (d.decreeNum % stripes.length)).add(new Decree(local(d.decreeNum), d.value, d.payload));
+        }
+        return result;
+    }
+
+    private void checkPayload(Decree d) {
+        if (d.hasPayload() && !supportsPayloads())
+            throw new UnsupportedOperationException("Decree payloads are not supported by " + stripes[0].getClass().getName());
+    }
+
+    @Override
+    public boolean supportsPayloads() {
+        return stripes[0].supportsPayloads();
+    }
+
+    @Override
+    public synchronized BallotNum getMaxVBal(long dnum) {
+        return stripe(dnum).getMaxVBal(local(dnum));
+    }
+
+    @Override
+    public synchronized Decree getMaxVal(long dnum) {
+        Decree d = stripe(dnum).getMaxVal(local(dnum));
+        return d == null ? null : new Decree(dnum, d.value, d.payload);
+    }
+
+    @Override
+    public synchronized void setMaxBal(BallotNum ballot) {
+        stripes[0].setMaxBal(ballot);
+    }
+
+    @Override
+    public synchronized BallotNum getMaxBal() {
+        return stripes[0].getMaxBal();
+    }
+
+    /**
+     * If stripe i has committed its decrees up to c, the first global decree that is
+     * not known to be committed in that stripe is (c + 1) * n + i; commitNum is one less
+     * than the lowest such decree across the stripes.
+     */
+    @Override
+    public synchronized long getCommitNum() {
+        long firstUncommitted = Long.MAX_VALUE;
+        for (int i = 0; i < stripes.length; i++) {
+            firstUncommitted = Math.min(firstUncommitted, global(i, stripes[i].getCommitNum() + 1));
+        }
+        return firstUncommitted - 1;
+    }
+
+    @Override
+    public synchronized List<BallotedDecree> getUndecidedBallots() {
+        List<BallotedDecree> result = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            for (BallotedDecree bd : stripes[i].getUndecidedBallots()) {
+                result.add(new BallotedDecree(bd.b, toGlobal(i, bd.decree)));
+            }
+        }
+        result.sort(Comparator.comparingLong(bd -> bd.decree.decreeNum));
+        return result;
+    }
+
+    /**
+     * Completes when every stripe is durable; with group commit the stripes are forced in parallel
+     */
+    @Override
+    public CompletableFuture<Void> flushAsync() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            futures[i] = stripes[i].flushAsync();
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    @Override
+    public synchronized void close() {
+        for (ExecutorService writer : writers) {
+            writer.shutdown();
+        }
+        closeAll(stripes);
+        log.info(getClass(), "close", "Ledger " + name + " closed");
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import org.redukti.paxos.log.api.BallotNum;
+import org.redukti.paxos.log.api.BallotedDecree;
+import org.redukti.paxos.log.api.Decree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * In memory index of the decrees that have been voted for but not yet committed,
+ * i.e. the records in VALUE_IN_BALLOT state, ordered by decree number. This lets
+ * getUndecidedBallots() answer without scanning the ledger; its cost is proportional
+ * to the number of undecided decrees.
+ */
+final class UndecidedIndex {
+
+    private final TreeMap<Long, BallotedDecree> ballots = new TreeMap<>();
+
+    synchronized void put(long decreeNum, BallotNum ballot, long value) {
+        ballots.put(decreeNum, new BallotedDecree(ballot, new Decree(decreeNum, value)));
+    }
+
+    /**
+     * Adds a value in VALUE_IN_BALLOT state, including its payload
+     */
+    synchronized void put(long decreeNum, LedgerImpl.Value v) {
+        ballots.put(decreeNum, new BallotedDecree(v.maxVBal, v.toDecree(decreeNum)));
+    }
+
+    synchronized void remove(long decreeNum) {
+        ballots.remove(decreeNum);
+    }
+
+    /**
+     * Drops all entries below decreeNum
+     */
+    synchronized void removeBelow(long decreeNum) {
+        ballots.headMap(decreeNum).clear();
+    }
+
+    synchronized List<BallotedDecree> list() {
+        return new ArrayList<>(ballots.values());
+    }
+
+    synchronized int size() {
+        return ballots.size();
+    }
+}
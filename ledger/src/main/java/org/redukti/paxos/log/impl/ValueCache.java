@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.log.impl;
+
+import org.redukti.paxos.log.api.BallotNum;
+
+import java.util.Arrays;
+
+/**
+ * A bounded write-through cache of ledger values keyed by decree number.
+ * The cache is direct mapped - decree number dnum lives in slot (dnum % capacity) - so
+ * the most recent capacity decrees are always resident. Values are held in primitive
+ * arrays rather than as objects to keep the footprint small and avoid GC overhead.
+ * <p>
+ * Readers fill the cache from the file on a miss, which races with a writer updating the
+ * same decree: the reader may read the old record and cache it after the writer cached the
+ * new one. Each slot therefore has a version that a writer bumps with {@link #invalidate(long)}
+ * before it writes the record; a reader takes the version before it reads the record, and
+ * {@link #putIfUnchanged(long, LedgerImpl.Value, long)} only fills the slot if no writer has
+ * been there since.
+ * </p>
+ */
+final class ValueCache {
+
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private static final long EMPTY = -1;
+
+    private final int capacity;
+    private final long[] decreeNums;
+    private final byte[] statuses;
+    private final long[] values;
+    private final long[] proposalNums;
+    private final int[] processNums;
+    private final long[] versions;
+
+    private long hits;
+    private long misses;
+
+    ValueCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("cache capacity must be > 0");
+        this.capacity = capacity;
+        this.decreeNums = new long[capacity];
+        this.statuses = new byte[capacity];
+        this.values = new long[capacity];
+        this.proposalNums = new long[capacity];
+        this.processNums = new int[capacity];
+        this.versions = new long[capacity];
+        Arrays.fill(decreeNums, EMPTY);
+    }
+
+    private int slot(long decreeNum) {
+        return (int) (decreeNum % capacity);
+    }
+
+    /**
+     * Returns the cached value for decreeNum, or null if it is not resident.
+     */
+    synchronized LedgerImpl.Value get(long decreeNum) {
+        int i = slot(decreeNum);
+        if (decreeNums[i] != decreeNum) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new LedgerImpl.Value(statuses[i], new BallotNum(proposalNums[i], processNums[i]), values[i]);
+    }
+
+    /**
+     * Stores the value for decreeNum, evicting whatever decree previously occupied the slot.
+     * Values with a payload are not cached, so that the cache's footprint stays fixed; the
+     * slot is still cleared so that an older value for decreeNum cannot be returned.
+     */
+    synchronized void put(long decreeNum, LedgerImpl.Value v) {
+        int i = slot(decreeNum);
+        versions[i]++;
+        store(i, decreeNum, v);
+    }
+
+    /**
+     * Called by a writer before it writes the record for decreeNum: empties the slot and
+     * stops readers that read the record before the write from caching what they read.
+     */
+    synchronized void invalidate(long decreeNum) {
+        int i = slot(decreeNum);
+        versions[i]++;
+        decreeNums[i] = EMPTY;
+    }
+
+    /**
+     * Version of the slot of decreeNum, to be taken before reading the record from the file
+     */
+    synchronized long version(long decreeNum) {
+        return versions[slot(decreeNum)];
+    }
+
+    /**
+     * Caches a value read from the file, unless the slot has been written or invalidated
+     * since version was taken, in which case the value read may be stale.
+     */
+    synchronized void putIfUnchanged(long decreeNum, LedgerImpl.Value v, long version) {
+        int i = slot(decreeNum);
+        if (versions[i] != version)
+            return;
+        store(i, decreeNum, v);
+    }
+
+    private void store(int i, long decreeNum, LedgerImpl.Value v) {
+        if (v.payload.hasRemaining()) {
+            decreeNums[i] = EMPTY;
+            return;
+        }
+        decreeNums[i] = decreeNum;
+        statuses[i] = v.status;
+        values[i] = v.value;
+        proposalNums[i] = v.maxVBal.proposalNumber;
+        processNums[i] = v.maxVBal.processNum;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(decreeNums, EMPTY);
+        for (int i = 0; i < capacity; i++)
+            versions[i]++;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,54 @@
+package org.redukti.paxos.log.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TestCommitBitmap {
+
+    @Test
+    public void testAdvance() {
+        CommitBitmap bitmap = new CommitBitmap();
+        Assertions.assertEquals(-1, bitmap.advance(-1));
+        bitmap.set(1);
+        bitmap.set(2);
+        Assertions.assertEquals(-1, bitmap.advance(-1));
+        bitmap.set(0);
+        Assertions.assertEquals(2, bitmap.advance(-1));
+        Assertions.assertTrue(bitmap.get(1));
+        Assertions.assertFalse(bitmap.get(3));
+    }
+
+    @Test
+    public void testLargeGap() {
+        CommitBitmap bitmap = new CommitBitmap();
+        int gap = 10000;
+        for (int i = gap; i > 0; i--) {
+            bitmap.set(i);
+            Assertions.assertEquals(-1, bitmap.advance(-1));
+        }
+        bitmap.set(gap + 2);
+        bitmap.set(0);
+        Assertions.assertEquals(gap, bitmap.advance(-1));
+        // window has slid forward, everything below is committed
+        Assertions.assertTrue(bitmap.get(5));
+        Assertions.assertFalse(bitmap.get(gap + 1));
+        Assertions.assertTrue(bitmap.get(gap + 2));
+        bitmap.set(gap + 1);
+        Assertions.assertEquals(gap + 2, bitmap.advance(gap));
+    }
+
+    @Test
+    public void testSetAllBelow() {
+        CommitBitmap bitmap = new CommitBitmap();
+        bitmap.set(200);
+        bitmap.setAllBelow(130);
+        Assertions.assertTrue(bitmap.get(129));
+        Assertions.assertFalse(bitmap.get(130));
+        Assertions.assertEquals(129, bitmap.advance(-1));
+        Assertions.assertEquals(130, bitmap.nextClear(0));
+        for (int i = 130; i < 200; i++) {
+            bitmap.set(i);
+        }
+        Assertions.assertEquals(200, bitmap.advance(129));
+    }
+}
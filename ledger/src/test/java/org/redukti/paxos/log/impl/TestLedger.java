@@ -5,13 +5,28 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.redukti.paxos.log.api.BallotNum;
+import org.redukti.paxos.log.api.BallotedDecree;
 import org.redukti.paxos.log.api.Decree;
 import org.redukti.paxos.log.api.Ledger;
+import org.redukti.paxos.log.api.LedgerException;
+import org.redukti.paxos.log.api.Snapshot;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestLedger {
 
@@ -49,8 +64,10 @@ public class TestLedger {
             ledger.setOutcome(d4.decreeNum, d4.value);
             Assertions.assertEquals(d4.value, ledger.getOutcome(d4.decreeNum).longValue());
             Assertions.assertEquals(d1.decreeNum, ledger.getCommitNum());
-            checkSize(new File(basePath, "l1"), 4);
+            // the file is preallocated while open, and truncated on close
+            Assertions.assertEquals(4, ((LedgerImpl) ledger).getLastDnum());
         }
+        checkSize(new File(basePath, "l1"), 4);
 
         try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
             checkSize(new File(basePath, "l1"), 4);
@@ -66,8 +83,9 @@ public class TestLedger {
             ledger.setOutcome(d5.decreeNum, d5.value);
             Assertions.assertEquals(d5.value, ledger.getOutcome(d5.decreeNum).longValue());
             Assertions.assertEquals(d5.decreeNum, ledger.getCommitNum());
-            checkSize(new File(basePath, "l1"), 5);
+            Assertions.assertEquals(5, ((LedgerImpl) ledger).getLastDnum());
         }
+        checkSize(new File(basePath, "l1"), 5);
 
     }
 
@@ -139,4 +157,550 @@ public class TestLedger {
         }
         checkSize(new File(basePath,"l1"), 2);
     }
+
+    @Test
+    public void testValueCache() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            Assertions.assertNotNull(ledger);
+        }
+        BallotNum b1 = new BallotNum(1, ID);
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            LedgerImpl impl = (LedgerImpl) ledger;
+            ledger.setOutcome(0, 101);
+            ledger.setMaxVBal(b1, 1, 103);
+            // values written are cached
+            long misses = impl.getCacheMisses();
+            Assertions.assertEquals(101, ledger.getOutcome(0).longValue());
+            Assertions.assertEquals(b1, ledger.getMaxVBal(1));
+            Assertions.assertEquals(new Decree(1, 103), ledger.getMaxVal(1));
+            Assertions.assertEquals(misses, impl.getCacheMisses());
+            Assertions.assertTrue(impl.getCacheHits() >= 3);
+        }
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            LedgerImpl impl = (LedgerImpl) ledger;
+            // first read must go to the file, the second is from cache
+            Assertions.assertEquals(101, ledger.getOutcome(0).longValue());
+            long misses = impl.getCacheMisses();
+            long hits = impl.getCacheHits();
+            Assertions.assertEquals(101, ledger.getOutcome(0).longValue());
+            Assertions.assertEquals(misses, impl.getCacheMisses());
+            Assertions.assertEquals(hits + 1, impl.getCacheHits());
+            Assertions.assertEquals(b1, ledger.getMaxVBal(1));
+            Assertions.assertNull(ledger.getOutcome(1));
+        }
+    }
+
+    @Test
+    public void testValueCacheEviction() {
+        ValueCache cache = new ValueCache(4);
+        BallotNum b1 = new BallotNum(1, ID);
+        for (long dnum = 0; dnum < 6; dnum++) {
+            cache.put(dnum, new LedgerImpl.Value(LedgerImpl.VALUE_IN_BALLOT, b1, 100 + dnum));
+        }
+        // 0 and 1 were evicted by 4 and 5
+        Assertions.assertNull(cache.get(0));
+        Assertions.assertNull(cache.get(1));
+        for (long dnum = 2; dnum < 6; dnum++) {
+            LedgerImpl.Value v = cache.get(dnum);
+            Assertions.assertNotNull(v);
+            Assertions.assertEquals(100 + dnum, v.value);
+            Assertions.assertEquals(b1, v.maxVBal);
+            Assertions.assertEquals(LedgerImpl.VALUE_IN_BALLOT, v.status);
+        }
+        Assertions.assertEquals(2, cache.getMisses());
+        Assertions.assertEquals(4, cache.getHits());
+    }
+
+    @Test
+    public void testValueCacheVersions() {
+        ValueCache cache = new ValueCache(4);
+        BallotNum b1 = new BallotNum(1, ID);
+        BallotNum b2 = new BallotNum(2, ID);
+        LedgerImpl.Value stale = new LedgerImpl.Value(LedgerImpl.VALUE_IN_BALLOT, b1, 100);
+        LedgerImpl.Value fresh = new LedgerImpl.Value(LedgerImpl.VALUE_IN_BALLOT, b2, 200);
+        // A reader misses and reads the old record, then a writer updates it
+        long version = cache.version(1);
+        cache.invalidate(1);
+        cache.put(1, fresh);
+        cache.putIfUnchanged(1, stale, version);
+        Assertions.assertEquals(fresh.value, cache.get(1).value);
+        // The reader read the record while the write was in progress
+        version = cache.version(1);
+        cache.invalidate(1);
+        cache.putIfUnchanged(1, stale, version);
+        Assertions.assertNull(cache.get(1));
+        cache.put(1, fresh);
+        // Nothing written since the reader took the version
+        cache.clear();
+        version = cache.version(1);
+        cache.putIfUnchanged(1, fresh, version);
+        Assertions.assertEquals(fresh.value, cache.get(1).value);
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        Properties props = new Properties();
+        props.setProperty(DurabilityPolicy.DURABILITY, DurabilityPolicy.UNSAFE.propertyValue());
+        int decrees = 4;
+        int n = 5000;
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID, props)) {
+            AtomicBoolean done = new AtomicBoolean();
+            List<Throwable> errors = new ArrayList<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread reader = new Thread(() -> {
+                    try {
+                        // Values only go up, so a reader must never see one go down
+                        long[] seen = new long[decrees];
+                        while (!done.get()) {
+                            for (int d = 0; d < decrees; d++) {
+                                long value = ledger.getMaxVal(d).value;
+                                Assertions.assertTrue(value >= seen[d], "decree " + d + " went back from " + seen[d] + " to " + value);
+                                seen[d] = value;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+            for (int i = 1; i <= n; i++) {
+                for (int d = 0; d < decrees; d++) {
+                    ledger.setMaxVBal(new BallotNum(i, ID), d, i);
+                }
+            }
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            Assertions.assertEquals(Collections.emptyList(), errors);
+            for (int d = 0; d < decrees; d++) {
+                Assertions.assertEquals(n, ledger.getMaxVal(d).value);
+                Assertions.assertEquals(new BallotNum(n, ID), ledger.getMaxVBal(d));
+            }
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        Properties props = new Properties();
+        props.setProperty(LedgerImpl.GROUP_COMMIT, "true");
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID, props)) {
+            Assertions.assertNotNull(ledger);
+        }
+        checkInvariantsForNewLedger(basePath);
+        BallotNum b1 = new BallotNum(1, ID);
+        int n = 100;
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID, props)) {
+            ledger.setMaxBal(b1);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                ledger.setMaxVBal(b1, i, 100 + i);
+                futures.add(ledger.flushAsync());
+            }
+            for (CompletableFuture<Void> f : futures) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+            long forces = ((LedgerImpl) ledger).getGroupCommitCount();
+            Assertions.assertTrue(forces >= 1 && forces <= n);
+        }
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(b1, ledger.getMaxBal());
+            Assertions.assertEquals(n, ledger.getUndecidedBallots().size());
+            Assertions.assertEquals(new Decree(n - 1, 100 + n - 1), ledger.getMaxVal(n - 1));
+            // not in group commit mode, so already durable
+            Assertions.assertTrue(ledger.flushAsync().isDone());
+        }
+    }
+
+    @Test
+    public void testGroupCommitFailure() throws Exception {
+        AtomicInteger syncs = new AtomicInteger();
+        GroupCommitWriter writer = new GroupCommitWriter("test", () -> {
+            if (syncs.incrementAndGet() == 1)
+                throw new UncheckedIOException(new IOException("force failed"));
+        });
+        writer.start();
+        try {
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                    () -> writer.requestSync().get(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(e.getCause() instanceof LedgerException);
+            // The writer survives and serves later requests
+            writer.requestSync().get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(1, writer.getSyncCount());
+        } finally {
+            writer.close();
+        }
+        Assertions.assertTrue(writer.requestSync().isCompletedExceptionally());
+    }
+
+    @Test
+    public void testHeaderSlots() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        BallotNum b2 = new BallotNum(2, ID);
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            ledger.setMaxBal(b1);
+            ledger.setMaxBal(b2);
+            for (int i = 0; i < 10; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+        }
+        checkSize(new File(basePath, "l1"), 10);
+        // header writes so far: create, b1, b2, close - so the latest is in slot 1
+        try (RandomAccessFile raf = new RandomAccessFile(new File(basePath, "l1"), "rw")) {
+            // simulate a torn write of the latest slot
+            raf.seek(LedgerImpl.Header.SLOT_OFFSET + LedgerImpl.Header.SLOT_SIZE + 20);
+            raf.write(0xFF);
+        }
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            // the previous slot still has b2, and commitNum is recomputed from the records
+            Assertions.assertEquals(b2, ledger.getMaxBal());
+            Assertions.assertEquals(9, ledger.getCommitNum());
+            ledger.setLastTried(b1);
+        }
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(b1, ledger.getLastTried());
+            Assertions.assertEquals(b2, ledger.getMaxBal());
+        }
+        // A ledger without slots is read using the original layout
+        try (RandomAccessFile raf = new RandomAccessFile(new File(basePath, "l1"), "rw")) {
+            raf.seek(LedgerImpl.Header.SLOT_OFFSET);
+            raf.write(new byte[LedgerImpl.Header.SLOT_SIZE * 2]);
+        }
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(NEG_INF, ledger.getMaxBal());
+            Assertions.assertEquals(9, ledger.getCommitNum());
+        }
+    }
+
+    @Test
+    public void testSetValues() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        int n = 500;
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            Decree[] outcomes = new Decree[n];
+            for (int i = 0; i < n; i++) {
+                outcomes[i] = new Decree(i, 100 + i);
+            }
+            Decree[] votes = { new Decree(n + 1, 42), new Decree(n + 2, 43), new Decree(n + 5, 44) };
+            ledger.setValues(outcomes, b1, votes);
+            Assertions.assertEquals(n - 1, ledger.getCommitNum());
+            Assertions.assertEquals(3, ledger.getUndecidedBallots().size());
+            // no vote may be for a committed decree, and nothing is written if one is
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> ledger.setValues(new Decree[0], b1, new Decree[] { new Decree(n, 1), new Decree(1, 1) }));
+            Assertions.assertNull(ledger.getOutcome(n));
+            Assertions.assertEquals(NEG_INF, ledger.getMaxVBal(n));
+            ledger.setValues(new Decree[] { new Decree(n, 7), new Decree(n + 1, 42) }, null, new Decree[0]);
+            Assertions.assertEquals(n + 1, ledger.getCommitNum());
+        }
+        checkSize(new File(basePath, "l1"), n + 6);
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(n + 1, ledger.getCommitNum());
+            Assertions.assertEquals(100 + n / 2, ledger.getOutcome(n / 2).longValue());
+            Assertions.assertEquals(2, ledger.getUndecidedBallots().size());
+            Assertions.assertEquals(new Decree(n + 2, 43), ledger.getUndecidedBallots().get(0).decree);
+            Assertions.assertEquals(b1, ledger.getUndecidedBallots().get(0).b);
+        }
+    }
+
+    @Test
+    public void testForEachOutcome() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        int n = 10000;
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            List<Decree> outcomes = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (i != 5000) {
+                    outcomes.add(new Decree(i, 100 + i));
+                }
+            }
+            ledger.setValues(outcomes.toArray(new Decree[0]), b1, new Decree[] { new Decree(5000, 1) });
+            List<Decree> decrees = new ArrayList<>();
+            ledger.forEachOutcome(10, n * 2, decrees::add);
+            // the decree that is only voted for is skipped
+            Assertions.assertEquals(n - 10 - 1, decrees.size());
+            Assertions.assertEquals(new Decree(10, 110), decrees.get(0));
+            Assertions.assertEquals(new Decree(5001, 5101), decrees.get(4990));
+            Assertions.assertEquals(new Decree(n - 1, 100 + n - 1), decrees.get(decrees.size() - 1));
+            decrees.clear();
+            ledger.forEachOutcome(4999, 5001, decrees::add);
+            Assertions.assertEquals(2, decrees.size());
+        }
+    }
+
+    @Test
+    public void testFailedCompaction() throws Exception {
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        byte[] state = { 1, 2, 3 };
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            for (int i = 0; i < 100; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+            // Compaction cannot create its temporary file
+            File tmp = new File(basePath, "l1.tmp");
+            Assertions.assertTrue(tmp.mkdir());
+            Assertions.assertThrows(LedgerException.class, () -> ledger.saveSnapshot(new Snapshot(49, state)));
+            Assertions.assertTrue(tmp.delete());
+            // The ledger still addresses the records of the old file
+            Assertions.assertEquals(0, ledger.getFirstDnum());
+            Assertions.assertEquals(99, ledger.getCommitNum());
+            Assertions.assertEquals(110, ledger.getOutcome(10).longValue());
+            ledger.setOutcome(100, 200);
+            Assertions.assertEquals(200, ledger.getOutcome(100).longValue());
+            // and can be compacted once the problem is gone
+            ledger.saveSnapshot(new Snapshot(49, state));
+            Assertions.assertEquals(50, ledger.getFirstDnum());
+            Assertions.assertEquals(160, ledger.getOutcome(60).longValue());
+        }
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(50, ledger.getFirstDnum());
+            Assertions.assertEquals(100, ledger.getCommitNum());
+            Assertions.assertEquals(200, ledger.getOutcome(100).longValue());
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        byte[] state = { 1, 2, 3 };
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            for (int i = 0; i < 100; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+            ledger.setMaxVBal(b1, 105, 42);
+            ledger.saveSnapshot(new Snapshot(49, state));
+            Assertions.assertEquals(50, ledger.getFirstDnum());
+            Assertions.assertNull(ledger.getOutcome(10));
+            Assertions.assertEquals(160, ledger.getOutcome(60).longValue());
+            Assertions.assertEquals(99, ledger.getCommitNum());
+            // outcomes below the snapshot are ignored, votes are rejected
+            ledger.setOutcome(10, 1);
+            Assertions.assertThrows(IllegalArgumentException.class, () -> ledger.setMaxVBal(b1, 10, 1));
+            ledger.setOutcome(100, 200);
+        }
+        checkSize(new File(basePath, "l1"), 56);
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(50, ledger.getFirstDnum());
+            Assertions.assertEquals(100, ledger.getCommitNum());
+            Assertions.assertEquals(49, ledger.getSnapshot().decreeNum);
+            Assertions.assertArrayEquals(state, ledger.getSnapshot().state);
+            Assertions.assertEquals(1, ledger.getUndecidedBallots().size());
+            // a snapshot beyond commitNum, as received from another process
+            ledger.saveSnapshot(new Snapshot(200, state));
+            Assertions.assertEquals(200, ledger.getCommitNum());
+            Assertions.assertEquals(0, ledger.getUndecidedBallots().size());
+            ledger.setOutcome(201, 1);
+            Assertions.assertEquals(201, ledger.getCommitNum());
+        }
+        try (Ledger ledger = MappedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(201, ledger.getFirstDnum());
+            Assertions.assertEquals(201, ledger.getCommitNum());
+            Assertions.assertEquals(1, ledger.getOutcome(201).longValue());
+        }
+        LedgerImpl.delete(basePath, "l1");
+        Assertions.assertFalse(new File(basePath, "l1.snapshot").exists());
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        int n = 2000;
+        Properties props = new Properties();
+        props.setProperty(LedgerImpl.GROUP_COMMIT, "true");
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID, props)) {
+            for (int i = 0; i < n; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+            List<Throwable> errors = new ArrayList<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread reader = new Thread(() -> {
+                    try {
+                        for (int round = 0; round < 5; round++) {
+                            List<Decree> decrees = new ArrayList<>();
+                            ledger.forEachOutcome(0, n - 1, decrees::add);
+                            Assertions.assertTrue(decrees.size() >= n);
+                            for (int i = 0; i < n; i += 97) {
+                                Assertions.assertEquals(new Decree(i, 100 + i), decrees.get(i));
+                                Assertions.assertEquals(100 + i, ((LedgerImpl) ledger).readValue(i).value);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                });
+                readers.add(reader);
+                reader.start();
+            }
+            // the acceptor keeps writing while the readers scan
+            for (int i = n; i < 2 * n; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            Assertions.assertTrue(errors.isEmpty(), errors.toString());
+            Assertions.assertEquals(2 * n - 1, ledger.getCommitNum());
+        }
+    }
+
+    @Test
+    public void testDurabilityPolicies() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        for (DurabilityPolicy policy : DurabilityPolicy.values()) {
+            Properties props = new Properties();
+            props.setProperty(DurabilityPolicy.DURABILITY, policy.propertyValue());
+            String name = "l_" + policy.propertyValue();
+            try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, name, ID, props)) {
+                LedgerImpl impl = (LedgerImpl) ledger;
+                Assertions.assertEquals(policy, impl.getDurabilityPolicy());
+                // the first update allocates an extent
+                ledger.setOutcome(0, 0);
+                ledger.flushAsync().get(10, TimeUnit.SECONDS);
+                long before = impl.getSyncCount();
+                for (int i = 1; i < 10; i++) {
+                    ledger.setOutcome(i, i);
+                }
+                ledger.flushAsync().get(10, TimeUnit.SECONDS);
+                long syncs = impl.getSyncCount() - before;
+                if (policy == DurabilityPolicy.UNSAFE) {
+                    Assertions.assertEquals(0, syncs);
+                } else if (policy == DurabilityPolicy.GROUP) {
+                    Assertions.assertTrue(syncs >= 1 && syncs <= 9);
+                } else {
+                    Assertions.assertEquals(9, syncs);
+                }
+            }
+            try (Ledger ledger = LedgerImpl.open(basePath, name, ID, props)) {
+                Assertions.assertEquals(9, ledger.getCommitNum());
+            }
+        }
+        Properties props = new Properties();
+        props.setProperty(DurabilityPolicy.DURABILITY, "sometimes");
+        Assertions.assertThrows(LedgerException.class, () -> LedgerImpl.createIfNotExisting(basePath, "l2", ID, props));
+    }
+
+    @Test
+    public void testPreallocation() throws Exception {
+
+        File file = temporaryFolder.toFile();
+        String basePath = file.getPath();
+        int extentSize = LedgerImpl.MIN_EXTENT_SIZE;
+        Properties props = new Properties();
+        props.setProperty(LedgerImpl.EXTENT_SIZE, Integer.toString(extentSize));
+        props.setProperty(DurabilityPolicy.DURABILITY, DurabilityPolicy.FDATASYNC.propertyValue());
+        int n = 500;
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID, props)) {
+            LedgerImpl impl = (LedgerImpl) ledger;
+            ledger.setOutcome(0, 100);
+            Assertions.assertEquals(LedgerImpl.PAGE_SIZE + extentSize, new File(basePath, "l1").length());
+            long syncs = impl.getSyncCount();
+            for (int i = 1; i < n; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+            long extents = (n * LedgerImpl.Value.size() + extentSize - 1) / extentSize;
+            Assertions.assertEquals(LedgerImpl.PAGE_SIZE + extents * extentSize, new File(basePath, "l1").length());
+            // one force per update plus one per new extent
+            Assertions.assertEquals(n - 1 + extents - 1, impl.getSyncCount() - syncs);
+            Assertions.assertEquals(n, impl.getLastDnum());
+            ledger.setMaxVBal(new BallotNum(1, ID), n + 1, 42);
+            // a copy taken while the ledger is open looks like a crash, the preallocated space is ignored
+            Files.copy(Path.of(basePath, "l1"), Path.of(basePath, "l2"));
+        }
+        checkSize(new File(basePath, "l1"), n + 2);
+        try (Ledger ledger = LedgerImpl.open(basePath, "l2", ID, props)) {
+            Assertions.assertEquals(n + 2, ((LedgerImpl) ledger).getLastDnum());
+            Assertions.assertEquals(n - 1, ledger.getCommitNum());
+            Assertions.assertEquals(1, ledger.getUndecidedBallots().size());
+            ledger.setOutcome(n, 1);
+        }
+        checkSize(new File(basePath, "l2"), n + 2);
+    }
+
+    @Test
+    public void testPayloadsNotSupported() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            Assertions.assertFalse(ledger.supportsPayloads());
+            Decree d = new Decree(0, 100, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            Assertions.assertThrows(UnsupportedOperationException.class, () -> ledger.setValues(new Decree[]{d}, null, new Decree[0]));
+            Assertions.assertNull(ledger.getOutcome(0));
+        }
+    }
+
+    @Test
+    public void testParallelRecovery() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        int n = 50_000;
+        try (Ledger ledger = LedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            List<Decree> outcomes = new ArrayList<>();
+            List<Decree> votes = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                // leave a gap at 1000, and votes every 7000 decrees
+                if (i == 1000)
+                    continue;
+                if (i % 7000 == 6999)
+                    votes.add(new Decree(i, i + 1));
+                else
+                    outcomes.add(new Decree(i, i + 1));
+            }
+            ledger.setValues(outcomes.toArray(new Decree[0]), b1, votes.toArray(new Decree[0]));
+            Assertions.assertEquals(999, ledger.getCommitNum());
+        }
+        for (int threads : new int[]{1, 4}) {
+            Properties props = new Properties();
+            props.setProperty(LedgerImpl.RECOVERY_THREADS, Integer.toString(threads));
+            try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID, props)) {
+                Assertions.assertEquals(999, ledger.getCommitNum());
+                Assertions.assertEquals(n, ((LedgerImpl) ledger).getLastDnum());
+                List<BallotedDecree> undecided = ledger.getUndecidedBallots();
+                Assertions.assertEquals(n / 7000, undecided.size());
+                for (int i = 0; i < undecided.size(); i++) {
+                    Assertions.assertEquals(new Decree(i * 7000 + 6999, i * 7000 + 7000), undecided.get(i).decree);
+                    Assertions.assertEquals(b1, undecided.get(i).b);
+                }
+                Assertions.assertEquals(n, ledger.getOutcome(n - 1).longValue());
+            }
+        }
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            ledger.setOutcome(1000, 1001);
+            Assertions.assertEquals(6998, ledger.getCommitNum());
+        }
+        Properties props = new Properties();
+        props.setProperty(LedgerImpl.RECOVERY_THREADS, "0");
+        Assertions.assertThrows(LedgerException.class, () -> LedgerImpl.open(basePath, "l1", ID, props));
+    }
 }
@@ -0,0 +1,129 @@
+package org.redukti.paxos.log.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.redukti.paxos.log.api.BallotNum;
+import org.redukti.paxos.log.api.Decree;
+import org.redukti.paxos.log.api.Ledger;
+import org.redukti.paxos.log.api.Snapshot;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Properties;
+
+public class TestMappedLedger {
+
+    static final int ID = 1;
+    static final BallotNum NEG_INF = new BallotNum(-1, ID);
+
+    @TempDir
+    public Path temporaryFolder;
+
+    Properties smallRegions() {
+        Properties props = new Properties();
+        props.setProperty(MappedLedgerImpl.REGION_SIZE, Integer.toString(MappedLedgerImpl.MIN_REGION_SIZE));
+        return props;
+    }
+
+    @Test
+    public void testOutOfSequenceOutcomes() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        try (Ledger ledger = MappedLedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            Assertions.assertEquals(NEG_INF, ledger.getMaxBal());
+            Assertions.assertEquals(NEG_INF, ledger.getLastTried());
+            Assertions.assertEquals(-1, ledger.getCommitNum());
+            Assertions.assertEquals(0, ledger.getUndecidedBallots().size());
+        }
+        try (Ledger ledger = MappedLedgerImpl.open(basePath, "l1", ID)) {
+            ledger.setOutcome(0, 101);
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            ledger.setOutcome(2, 105);
+            ledger.setOutcome(3, 107);
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            Assertions.assertEquals(105, ledger.getOutcome(2).longValue());
+            Assertions.assertNull(ledger.getOutcome(1));
+            Assertions.assertNull(ledger.getOutcome(100000));
+        }
+        try (Ledger ledger = MappedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            ledger.setOutcome(1, 103);
+            Assertions.assertEquals(3, ledger.getCommitNum());
+        }
+    }
+
+    @Test
+    public void testRegionsAndFileFormat() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        int n = 1000;
+        try (Ledger ledger = MappedLedgerImpl.createIfNotExisting(basePath, "l1", ID, smallRegions())) {
+            ledger.setMaxBal(b1);
+            for (int i = 0; i < n; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+            ledger.setMaxVBal(b1, n + 1, 42);
+            Assertions.assertEquals(n - 1, ledger.getCommitNum());
+        }
+        // The file is truncated to the last record on close
+        File file = new File(basePath, "l1");
+        Assertions.assertEquals(LedgerImpl.PAGE_SIZE + (n + 2) * LedgerImpl.Value.size(), file.length());
+        // and can be read by the file based ledger
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(n - 1, ledger.getCommitNum());
+            Assertions.assertEquals(b1, ledger.getMaxBal());
+            Assertions.assertEquals(100 + n / 2, ledger.getOutcome(n / 2).longValue());
+            Assertions.assertEquals(1, ledger.getUndecidedBallots().size());
+            ledger.setOutcome(n, 7);
+        }
+        try (Ledger ledger = MappedLedgerImpl.open(basePath, "l1", ID, smallRegions())) {
+            Assertions.assertEquals(n, ledger.getCommitNum());
+            Assertions.assertEquals(7, ledger.getOutcome(n).longValue());
+            Assertions.assertEquals(1, ledger.getUndecidedBallots().size());
+            Assertions.assertEquals(new Decree(n + 1, 42), ledger.getUndecidedBallots().get(0).decree);
+            Assertions.assertEquals(b1, ledger.getUndecidedBallots().get(0).b);
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        Properties props = smallRegions();
+        props.setProperty(LedgerImpl.GROUP_COMMIT, "true");
+        try (Ledger ledger = MappedLedgerImpl.createIfNotExisting(basePath, "l1", ID, props)) {
+            for (int i = 0; i < 100; i++) {
+                ledger.setOutcome(i, i);
+            }
+            ledger.flushAsync().get();
+            Assertions.assertTrue(((MappedLedgerImpl) ledger).getGroupCommitCount() >= 1);
+            Assertions.assertTrue(((MappedLedgerImpl) ledger).getSyncCount() >= 1);
+        }
+        try (Ledger ledger = MappedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(99, ledger.getCommitNum());
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        int n = 1000;
+        try (Ledger ledger = MappedLedgerImpl.createIfNotExisting(basePath, "l1", ID, smallRegions())) {
+            for (int i = 0; i < n; i++) {
+                ledger.setOutcome(i, i);
+            }
+            ledger.saveSnapshot(new Snapshot(299, new byte[0]));
+            Assertions.assertEquals(300, ledger.getFirstDnum());
+            Assertions.assertNull(ledger.getOutcome(299));
+            Assertions.assertEquals(500, ledger.getOutcome(500).longValue());
+            ledger.setOutcome(n, n);
+            Assertions.assertEquals(n, ledger.getCommitNum());
+        }
+        Assertions.assertEquals(LedgerImpl.PAGE_SIZE + (n + 1 - 300) * LedgerImpl.Value.size(), new File(basePath, "l1").length());
+        try (Ledger ledger = LedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(300, ledger.getFirstDnum());
+            Assertions.assertEquals(n, ledger.getCommitNum());
+            Assertions.assertEquals(299, ledger.getSnapshot().decreeNum);
+            Assertions.assertEquals(n - 1, ledger.getOutcome(n - 1).longValue());
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package org.redukti.paxos.log.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.redukti.paxos.log.api.BallotNum;
+import org.redukti.paxos.log.api.BallotedDecree;
+import org.redukti.paxos.log.api.Decree;
+import org.redukti.paxos.log.api.Ledger;
+import org.redukti.paxos.log.api.LedgerException;
+import org.redukti.paxos.log.api.Snapshot;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+public class TestSegmentedLedger {
+
+    static final int ID = 1;
+    static final BallotNum NEG_INF = new BallotNum(-1, ID);
+
+    @TempDir
+    public Path temporaryFolder;
+
+    Properties smallSegments() {
+        Properties props = new Properties();
+        props.setProperty(SegmentedLedgerImpl.SEGMENT_SIZE, Integer.toString(SegmentedLedgerImpl.MIN_SEGMENT_SIZE));
+        return props;
+    }
+
+    @Test
+    public void testOutOfSequenceOutcomes() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            Assertions.assertEquals(NEG_INF, ledger.getMaxBal());
+            Assertions.assertEquals(NEG_INF, ledger.getLastTried());
+            Assertions.assertEquals(-1, ledger.getCommitNum());
+            Assertions.assertEquals(0, ledger.getUndecidedBallots().size());
+        }
+        Assertions.assertTrue(SegmentedLedgerImpl.exists(basePath, "l1"));
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            ledger.setOutcome(0, 101);
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            ledger.setOutcome(2, 105);
+            ledger.setOutcome(3, 107);
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            Assertions.assertEquals(105, ledger.getOutcome(2).longValue());
+            Assertions.assertNull(ledger.getOutcome(1));
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            Assertions.assertEquals(101, ledger.getOutcome(0).longValue());
+            Assertions.assertEquals(107, ledger.getOutcome(3).longValue());
+            ledger.setOutcome(1, 103);
+            Assertions.assertEquals(3, ledger.getCommitNum());
+            ledger.setOutcome(4, 109);
+            Assertions.assertEquals(4, ledger.getCommitNum());
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            // commitNum is recomputed during recovery
+            Assertions.assertEquals(4, ledger.getCommitNum());
+        }
+        SegmentedLedgerImpl.delete(basePath, "l1");
+        Assertions.assertFalse(SegmentedLedgerImpl.exists(basePath, "l1"));
+    }
+
+    @Test
+    public void testUndecidedBallots() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        BallotNum b2 = new BallotNum(2, ID);
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            ledger.setMaxBal(b2);
+            ledger.setLastTried(b1);
+            ledger.setMaxVBal(b1, 0, 101);
+            ledger.setMaxVBal(b2, 1, 103);
+            ledger.setMaxVBal(b2, 0, 102);
+            Assertions.assertEquals(2, ledger.getUndecidedBallots().size());
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(b2, ledger.getMaxBal());
+            Assertions.assertEquals(b1, ledger.getLastTried());
+            Assertions.assertEquals(2, ledger.getUndecidedBallots().size());
+            Assertions.assertEquals(new Decree(0, 102), ledger.getUndecidedBallots().get(0).decree);
+            Assertions.assertEquals(b2, ledger.getUndecidedBallots().get(0).b);
+            ledger.setOutcome(0, 102);
+            Assertions.assertEquals(1, ledger.getUndecidedBallots().size());
+            Assertions.assertEquals(new Decree(1, 103), ledger.getUndecidedBallots().get(0).decree);
+            Assertions.assertThrows(IllegalArgumentException.class, () -> ledger.setMaxVBal(b2, 0, 104));
+        }
+    }
+
+    @Test
+    public void testSegmentsAndPurge() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        int n = 1000;
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID, smallSegments())) {
+            ledger.setMaxBal(b1);
+            for (int i = 0; i < n; i++) {
+                ledger.setMaxVBal(b1, i, 100 + i);
+                ledger.setOutcome(i, 100 + i);
+            }
+            // a vote that is not yet committed keeps its segment alive
+            ledger.setMaxVBal(b1, n + 1, 42);
+            Assertions.assertEquals(n - 1, ledger.getCommitNum());
+            Assertions.assertTrue(((SegmentedLedgerImpl) ledger).getSegmentCount() > 10);
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID, smallSegments())) {
+            SegmentedLedgerImpl impl = (SegmentedLedgerImpl) ledger;
+            Assertions.assertEquals(n - 1, ledger.getCommitNum());
+            Assertions.assertEquals(b1, ledger.getMaxBal());
+            int before = impl.getSegmentCount();
+            impl.purge(n / 2);
+            Assertions.assertEquals(n / 2 + 1, impl.getFirstDnum());
+            Assertions.assertTrue(impl.getSegmentCount() < before);
+            Assertions.assertNull(ledger.getOutcome(0));
+            Assertions.assertEquals(100 + n - 1, ledger.getOutcome(n - 1).longValue());
+            // cannot purge beyond commitNum
+            impl.purge(n * 2);
+            Assertions.assertEquals(n, impl.getFirstDnum());
+            Assertions.assertEquals(1, ledger.getUndecidedBallots().size());
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID, smallSegments())) {
+            SegmentedLedgerImpl impl = (SegmentedLedgerImpl) ledger;
+            Assertions.assertEquals(n, impl.getFirstDnum());
+            Assertions.assertEquals(n - 1, ledger.getCommitNum());
+            Assertions.assertEquals(b1, ledger.getMaxBal());
+            Assertions.assertNull(ledger.getOutcome(n / 4));
+            Assertions.assertEquals(1, ledger.getUndecidedBallots().size());
+            Assertions.assertEquals(new Decree(n + 1, 42), ledger.getUndecidedBallots().get(0).decree);
+        }
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            ledger.setOutcome(0, 101);
+            ledger.setOutcome(1, 103);
+        }
+        // Simulate a partially written record at the end of the segment
+        File segment = new File(new File(basePath, "l1"), "segment_0000000000.log");
+        long size;
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            size = raf.length();
+            raf.setLength(size - 3);
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            Assertions.assertNull(ledger.getOutcome(1));
+            ledger.setOutcome(1, 105);
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(1, ledger.getCommitNum());
+            Assertions.assertEquals(105, ledger.getOutcome(1).longValue());
+        }
+    }
+
+    @Test
+    public void testTornRoll() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        int n = 1000;
+        int segments;
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID, smallSegments())) {
+            ledger.setMaxBal(b1);
+            for (int i = 0; i < n; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+            segments = ((SegmentedLedgerImpl) ledger).getSegmentCount();
+            Assertions.assertTrue(segments > 1);
+        }
+        File dir = new File(basePath, "l1");
+        // A crash in roll() may leave the next segment empty, with part of its header,
+        // or with just its header
+        ByteBuffer header = ByteBuffer.allocate(SegmentedLedgerImpl.SEGMENT_HEADER_SIZE);
+        header.putInt(SegmentedLedgerImpl.SEGMENT_MAGIC).putInt(ID).putInt(segments).putInt(0);
+        for (int size : new int[]{0, 7, SegmentedLedgerImpl.SEGMENT_HEADER_SIZE}) {
+            File torn = new File(dir, String.format("segment_%010d.log", segments));
+            try (RandomAccessFile raf = new RandomAccessFile(torn, "rw")) {
+                raf.write(header.array(), 0, size);
+            }
+            try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID, smallSegments())) {
+                Assertions.assertFalse(torn.exists());
+                Assertions.assertEquals(segments, ((SegmentedLedgerImpl) ledger).getSegmentCount());
+                Assertions.assertEquals(b1, ledger.getMaxBal());
+                Assertions.assertEquals(n - 1, ledger.getCommitNum());
+                Assertions.assertEquals(100 + n - 1, ledger.getOutcome(n - 1).longValue());
+            }
+        }
+        // The ledger carries on, rolling to a new segment in place of the torn one
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID, smallSegments())) {
+            for (int i = n; i < 2 * n; i++) {
+                ledger.setOutcome(i, 100 + i);
+            }
+            Assertions.assertTrue(((SegmentedLedgerImpl) ledger).getSegmentCount() > segments);
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID, smallSegments())) {
+            Assertions.assertEquals(2 * n - 1, ledger.getCommitNum());
+            Assertions.assertEquals(b1, ledger.getMaxBal());
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        Properties props = new Properties();
+        props.setProperty(LedgerImpl.GROUP_COMMIT, "true");
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID, props)) {
+            SegmentedLedgerImpl impl = (SegmentedLedgerImpl) ledger;
+            long syncs = impl.getSyncCount();
+            for (int i = 0; i < 100; i++) {
+                ledger.setOutcome(i, i);
+            }
+            // Nothing is forced until asked for
+            Assertions.assertEquals(syncs, impl.getSyncCount());
+            ledger.flushAsync().get();
+            Assertions.assertTrue(impl.getGroupCommitCount() >= 1);
+            Assertions.assertEquals(syncs + impl.getGroupCommitCount(), impl.getSyncCount());
+            Assertions.assertTrue(impl.getSyncTimeNanos() > 0);
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(99, ledger.getCommitNum());
+        }
+    }
+
+    @Test
+    public void testSetValues() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID)) {
+            ledger.setValues(new Decree[] { new Decree(0, 100), new Decree(1, 101) }, b1,
+                    new Decree[] { new Decree(3, 103) });
+            Assertions.assertEquals(1, ledger.getCommitNum());
+            ((SegmentedLedgerImpl) ledger).purge(1);
+            // outcomes below the purge point are ignored
+            ledger.setValues(new Decree[] { new Decree(1, 101), new Decree(2, 102) }, null, new Decree[0]);
+            Assertions.assertEquals(2, ledger.getCommitNum());
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(2, ledger.getCommitNum());
+            Assertions.assertEquals(1, ledger.getUndecidedBallots().size());
+            Assertions.assertEquals(new Decree(3, 103), ledger.getUndecidedBallots().get(0).decree);
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        byte[] state = { 4, 5 };
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID, smallSegments())) {
+            for (int i = 0; i < 1000; i++) {
+                ledger.setOutcome(i, i);
+            }
+            int segments = ((SegmentedLedgerImpl) ledger).getSegmentCount();
+            ledger.saveSnapshot(new Snapshot(899, state));
+            Assertions.assertEquals(900, ledger.getFirstDnum());
+            Assertions.assertTrue(((SegmentedLedgerImpl) ledger).getSegmentCount() < segments);
+            Assertions.assertNull(ledger.getOutcome(10));
+            // a snapshot beyond commitNum, as received from another process
+            ledger.saveSnapshot(new Snapshot(1500, state));
+            Assertions.assertEquals(1500, ledger.getCommitNum());
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID)) {
+            Assertions.assertEquals(1501, ledger.getFirstDnum());
+            Assertions.assertEquals(1500, ledger.getCommitNum());
+            Assertions.assertEquals(1500, ledger.getSnapshot().decreeNum);
+            Assertions.assertArrayEquals(state, ledger.getSnapshot().state);
+        }
+        SegmentedLedgerImpl.delete(basePath, "l1");
+        Assertions.assertFalse(SegmentedLedgerImpl.exists(basePath, "l1"));
+    }
+
+    @Test
+    public void testPayloads() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        byte[] p0 = new byte[3000];
+        byte[] p2 = new byte[100];
+        Arrays.fill(p0, (byte) 1);
+        Arrays.fill(p2, (byte) 2);
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID, smallSegments())) {
+            Assertions.assertTrue(ledger.supportsPayloads());
+            ledger.setValues(new Decree[]{new Decree(0, 100, ByteBuffer.wrap(p0)), new Decree(1, 101)},
+                    b1, new Decree[]{new Decree(2, 102, ByteBuffer.wrap(p2))});
+            Assertions.assertEquals(1, ledger.getCommitNum());
+            Assertions.assertArrayEquals(p2, ledger.getMaxVal(2).getPayloadBytes());
+            Assertions.assertArrayEquals(p2, ledger.getUndecidedBallots().get(0).decree.getPayloadBytes());
+            // a record larger than a segment is rejected
+            Assertions.assertThrows(LedgerException.class, () -> ledger.setValues(new Decree[0], b1,
+                    new Decree[]{new Decree(3, 103, ByteBuffer.allocate(SegmentedLedgerImpl.MIN_SEGMENT_SIZE))}));
+        }
+        try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID, smallSegments())) {
+            List<Decree> outcomes = new ArrayList<>();
+            ledger.forEachOutcome(0, 2, outcomes::add);
+            Assertions.assertEquals(2, outcomes.size());
+            Assertions.assertEquals(100, outcomes.get(0).value);
+            Assertions.assertArrayEquals(p0, outcomes.get(0).getPayloadBytes());
+            Assertions.assertFalse(outcomes.get(1).hasPayload());
+            Assertions.assertEquals(101, ledger.getOutcome(1).longValue());
+            List<BallotedDecree> undecided = ledger.getUndecidedBallots();
+            Assertions.assertEquals(1, undecided.size());
+            Assertions.assertEquals(new Decree(2, 102, ByteBuffer.wrap(p2)), undecided.get(0).decree);
+            Assertions.assertEquals(new Decree(2, 102, ByteBuffer.wrap(p2)), ledger.getMaxVal(2));
+        }
+        SegmentedLedgerImpl.delete(basePath, "l1");
+    }
+
+    @Test
+    public void testParallelRecovery() throws Exception {
+        String basePath = temporaryFolder.toFile().getPath();
+        BallotNum b1 = new BallotNum(1, ID);
+        int n = 2000;
+        try (Ledger ledger = SegmentedLedgerImpl.createIfNotExisting(basePath, "l1", ID, smallSegments())) {
+            ledger.setMaxBal(b1);
+            for (int i = 0; i < n; i++) {
+                if (i % 100 == 50)
+                    ledger.setMaxVBal(b1, i, i);
+                else if (i != 10)
+                    ledger.setOutcome(i, i);
+            }
+            // overwrite one of the votes with an outcome in a later segment
+            ledger.setOutcome(150, 150);
+            Assertions.assertTrue(((SegmentedLedgerImpl) ledger).getSegmentCount() > 4);
+        }
+        for (int threads : new int[]{1, 3}) {
+            Properties props = smallSegments();
+            props.setProperty(LedgerImpl.RECOVERY_THREADS, Integer.toString(threads));
+            try (Ledger ledger = SegmentedLedgerImpl.open(basePath, "l1", ID, props)) {
+                Assertions.assertEquals(b1, ledger.getMaxBal());
+                Assertions.assertEquals(9, ledger.getCommitNum());
+                List<BallotedDecree> undecided = ledger.getUndecidedBallots();
+                Assertions.assertEquals(n / 100 - 1, undecided.size());
+                Assertions.assertEquals(new Decree(50, 50), undecided.get(0).decree);
+                Assertions.assertEquals(new Decree(250, 250), undecided.get(1).decree);
+                Assertions.assertEquals(150, ledger.getOutcome(150).longValue());
+                Assertions.assertEquals(n - 1, ledger.getOutcome(n - 1).longValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.redukti.paxos.log.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.redukti.paxos.log.api.BallotNum;
+import org.redukti.paxos.log.api.BallotedDecree;
+import org.redukti.paxos.log.api.Decree;
+import org.redukti.paxos.log.api.Ledger;
+import org.redukti.paxos.log.api.LedgerException;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class TestStripedLedger {
+
+    static final int ID = 1;
+    static final BallotNum NEG_INF = new BallotNum(-1, ID);
+
+    @TempDir
+    public Path temporaryFolder;
+
+    String[] stripeDirs(int n) {
+        String[] dirs = new String[n];
+        for (int i = 0; i < n; i++) {
+            dirs[i] = new File(temporaryFolder.toFile(), "disk" + i).getPath();
+        }
+        return dirs;
+    }
+
+    @Test
+    public void testStriping() throws Exception {
+        String[] dirs = stripeDirs(3);
+        Properties props = new Properties();
+        BallotNum b1 = new BallotNum(1, ID);
+        try (Ledger ledger = StripedLedgerImpl.createIfNotExisting(dirs, "l1", ID, props)) {
+            Assertions.assertEquals(NEG_INF, ledger.getMaxBal());
+            Assertions.assertEquals(NEG_INF, ledger.getLastTried());
+            Assertions.assertEquals(-1, ledger.getCommitNum());
+            ledger.setMaxBal(b1);
+            ledger.setLastTried(b1);
+            ledger.setOutcome(0, 100);
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            ledger.setOutcome(2, 102);
+            ledger.setOutcome(4, 104);
+            Assertions.assertEquals(0, ledger.getCommitNum());
+            ledger.setValues(new Decree[]{new Decree(1, 101), new Decree(3, 103)}, b1,
+                    new Decree[]{new Decree(6, 106), new Decree(7, 107)});
+            Assertions.assertEquals(4, ledger.getCommitNum());
+            Assertions.assertEquals(b1, ledger.getMaxVBal(7));
+            Assertions.assertEquals(new Decree(7, 107), ledger.getMaxVal(7));
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> ledger.setValues(new Decree[0], b1, new Decree[]{new Decree(5, 1), new Decree(3, 1)}));
+            Assertions.assertTrue(ledger.getMaxVBal(5).isNull());
+            Assertions.assertThrows(UnsupportedOperationException.class, () -> ledger.setValues(
+                    new Decree[]{new Decree(5, 105, ByteBuffer.wrap(new byte[]{1}))}, null, new Decree[0]));
+        }
+        for (String dir : dirs) {
+            Assertions.assertEquals(1, new File(dir).list().length);
+        }
+        try (Ledger ledger = StripedLedgerImpl.open(dirs, "l1", ID, props)) {
+            Assertions.assertEquals(b1, ledger.getMaxBal());
+            Assertions.assertEquals(b1, ledger.getLastTried());
+            Assertions.assertEquals(4, ledger.getCommitNum());
+            List<BallotedDecree> undecided = ledger.getUndecidedBallots();
+            Assertions.assertEquals(2, undecided.size());
+            Assertions.assertEquals(new Decree(6, 106), undecided.get(0).decree);
+            Assertions.assertEquals(new Decree(7, 107), undecided.get(1).decree);
+            ledger.setOutcome(5, 105);
+            Assertions.assertEquals(5, ledger.getCommitNum());
+            List<Decree> outcomes = new ArrayList<>();
+            ledger.forEachOutcome(1, 5, outcomes::add);
+            Assertions.assertEquals(5, outcomes.size());
+            for (int i = 0; i < outcomes.size(); i++) {
+                Assertions.assertEquals(new Decree(i + 1, 101 + i), outcomes.get(i));
+            }
+        }
+        Assertions.assertTrue(StripedLedgerImpl.exists(dirs, "l1", props));
+        // the stripes must be given in the same order and number as when the ledger was created
+        String[] reordered = new String[]{dirs[1], dirs[0], dirs[2]};
+        Assertions.assertFalse(StripedLedgerImpl.exists(reordered, "l1", props));
+        Assertions.assertFalse(StripedLedgerImpl.exists(new String[]{dirs[0], dirs[1]}, "l1", props));
+        Assertions.assertThrows(LedgerException.class, () -> StripedLedgerImpl.open(reordered, "l1", ID, props));
+        StripedLedgerImpl.delete(dirs, "l1", props);
+        Assertions.assertFalse(StripedLedgerImpl.exists(dirs, "l1", props));
+    }
+
+    @Test
+    public void testSegmentedStripes() throws Exception {
+        String[] dirs = stripeDirs(2);
+        Properties props = new Properties();
+        props.setProperty(StripedLedgerImpl.STRIPE_TYPE, "segmented");
+        props.setProperty(DurabilityPolicy.DURABILITY, DurabilityPolicy.GROUP.propertyValue());
+        byte[] payload = "payload".getBytes();
+        try (Ledger ledger = StripedLedgerImpl.createIfNotExisting(dirs, "l1", ID, props)) {
+            Assertions.assertTrue(ledger.supportsPayloads());
+            Decree[] outcomes = new Decree[10];
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = new Decree(i, 100 + i, ByteBuffer.wrap(payload));
+            }
+            ledger.setValues(outcomes, null, new Decree[0]);
+            ledger.flushAsync().get();
+            Assertions.assertEquals(9, ledger.getCommitNum());
+        }
+        try (Ledger ledger = StripedLedgerImpl.open(dirs, "l1", ID, props)) {
+            Assertions.assertEquals(9, ledger.getCommitNum());
+            List<Decree> outcomes = new ArrayList<>();
+            ledger.forEachOutcome(0, 9, outcomes::add);
+            Assertions.assertEquals(10, outcomes.size());
+            Assertions.assertEquals(new Decree(9, 109, ByteBuffer.wrap(payload)), outcomes.get(9));
+        }
+        Properties bad = new Properties();
+        bad.setProperty(StripedLedgerImpl.STRIPE_TYPE, "tape");
+        Assertions.assertThrows(LedgerException.class, () -> StripedLedgerImpl.open(dirs, "l1", ID, bad));
+    }
+}
@@ -74,8 +74,8 @@ public class BeginBallotMessage implements PaxosMessage, ParticipantInfo {
     public ByteBuffer serialize() {
         ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+BallotNum.size()+
                 3*Integer.BYTES+Long.BYTES+
-                chosenDecrees.length*Decree.size()+
-                committedDecrees.length*Decree.size());
+                Decree.serializedSize(chosenDecrees)+
+                Decree.serializedSize(committedDecrees));
         bb.putShort((short)getCode());
         b.store(bb);
         bb.putInt(pid);
@@ -102,6 +102,11 @@ public class BeginBallotMessage implements PaxosMessage, ParticipantInfo {
         return cnum;
     }
 
+    @Override
+    public boolean retainsData() {
+        return PaxosMessages.hasPayload(chosenDecrees) || PaxosMessages.hasPayload(committedDecrees);
+    }
+
     @Override
     public int getCode() {
         return PaxosMessages.BEGIN_BALLOT_MESSAGE;
@@ -23,37 +23,70 @@
  */
 package org.redukti.paxos.multi;
 
+import org.redukti.paxos.log.api.Decree;
 import org.redukti.paxos.net.impl.CorrelationId;
 
 import java.nio.ByteBuffer;
 
+/**
+ * A request from a client to agree on a value, optionally with a payload
+ * that is carried in the decree.
+ */
 public class ClientRequestMessage implements PaxosMessage {
 
     final CorrelationId correlationId;
     final long requestedValue;
+    /**
+     * Read only payload, empty if there is none
+     */
+    final ByteBuffer payload;
 
     public ClientRequestMessage(CorrelationId correlationId, long requestedValue) {
+        this(correlationId, requestedValue, Decree.EMPTY_PAYLOAD);
+    }
+
+    public ClientRequestMessage(CorrelationId correlationId, long requestedValue, ByteBuffer payload) {
         this.correlationId = correlationId;
         this.requestedValue = requestedValue;
+        this.payload = payload.asReadOnlyBuffer();
     }
 
     public ClientRequestMessage(long requestedValue) {
         this(new CorrelationId(-1, -1), requestedValue);
     }
 
+    public ClientRequestMessage(long requestedValue, byte[] payload) {
+        this(new CorrelationId(-1, -1), requestedValue, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * The payload is a slice of bb, not a copy
+     */
     public ClientRequestMessage(CorrelationId correlationId, ByteBuffer bb) {
         this.correlationId = correlationId;
         this.requestedValue = bb.getLong();
+        this.payload = bb.hasRemaining() ? Decree.slicePayload(bb, bb.getInt()) : Decree.EMPTY_PAYLOAD;
+    }
+
+    Decree toDecree(long dnum) {
+        return new Decree(dnum, requestedValue, payload);
     }
 
     @Override
     public ByteBuffer serialize() {
-        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES + Long.BYTES);
+        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES + Long.BYTES + Integer.BYTES + payload.remaining());
         bb.putShort((short) getCode());
         bb.putLong(requestedValue);
+        bb.putInt(payload.remaining());
+        bb.put(payload.duplicate());
         return bb.flip();
     }
 
+    @Override
+    public boolean retainsData() {
+        return payload.hasRemaining();
+    }
+
     @Override
     public int getCode() {
         return PaxosMessages.CLIENT_REQUEST_MESSAGE;
@@ -64,6 +97,7 @@ public class ClientRequestMessage implements PaxosMessage {
         return "ClientRequestMessage{" +
                 "correlationId=" + correlationId +
                 ", requestedValue=" + requestedValue +
+                (payload.hasRemaining() ? ", payload=" + payload.remaining() + " bytes" : "") +
                 '}';
     }
 }
@@ -75,9 +75,13 @@ public class LastVoteMessage implements PaxosMessage, ParticipantInfo {
 
     @Override
     public ByteBuffer serialize() {
+        int votesSize = 0;
+        for (Vote v : votes) {
+            votesSize += v.serializedSize();
+        }
         ByteBuffer bb = ByteBuffer.allocate(Short.BYTES
                 +BallotNum.size()+Integer.BYTES*2
-                +Long.BYTES+votes.length*Vote.size());
+                +Long.BYTES+votesSize);
         bb.putShort((short)getCode());
         b.store(bb);
         bb.putInt(pid);
@@ -89,6 +93,15 @@ public class LastVoteMessage implements PaxosMessage, ParticipantInfo {
         return bb.flip();
     }
 
+    @Override
+    public boolean retainsData() {
+        for (Vote v : votes) {
+            if (v.decree.hasPayload())
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public int getCode() {
         return PaxosMessages.LAST_VOTE_MESSAGE;
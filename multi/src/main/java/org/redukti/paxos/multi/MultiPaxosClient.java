@@ -29,6 +29,7 @@ import org.redukti.paxos.net.api.ResponseHandler;
 import org.redukti.paxos.net.impl.EventLoopImpl;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -37,12 +38,13 @@ public class MultiPaxosClient implements ResponseHandler {
 
     public static void main(String[] args) {
 
-        if (args.length != 2) {
-            System.err.println("Error: please supply port and value");
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Error: please supply port and value, and optionally a payload");
             System.exit(1);
         }
         int port = Integer.parseInt(args[0]);
         long value = Long.parseLong(args[1]);
+        byte[] payload = args.length == 3 ? args[2].getBytes(StandardCharsets.UTF_8) : new byte[0];
 
         MultiPaxosClient m = new MultiPaxosClient();
         try (EventLoopImpl eventLoop = new EventLoopImpl()) {
@@ -54,7 +56,7 @@ public class MultiPaxosClient implements ResponseHandler {
 
             if (connection.isConnected()) {
                 System.out.println("Sending request");
-                connection.submit(makeRequest(value), m, Duration.ofSeconds(1));
+                connection.submit(makeRequest(value, payload), m, Duration.ofSeconds(1));
             }
 
             while (received.get() < 1 && !connection.isErrored())
@@ -65,8 +67,8 @@ public class MultiPaxosClient implements ResponseHandler {
 
     }
 
-    private static ByteBuffer makeRequest(long value) {
-        return new ClientRequestMessage(value).serialize();
+    private static ByteBuffer makeRequest(long value, byte[] payload) {
+        return new ClientRequestMessage(value, payload).serialize();
     }
 
     @Override
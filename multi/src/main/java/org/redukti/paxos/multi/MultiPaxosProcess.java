@@ -26,12 +26,22 @@ package org.redukti.paxos.multi;
 import org.redukti.logging.Logger;
 import org.redukti.logging.LoggerFactory;
 import org.redukti.paxos.log.api.Ledger;
+import org.redukti.paxos.log.api.Snapshot;
+import org.redukti.paxos.log.impl.DurabilityPolicy;
 import org.redukti.paxos.log.impl.LedgerImpl;
+import org.redukti.paxos.log.impl.MappedLedgerImpl;
+import org.redukti.paxos.log.impl.SegmentedLedgerImpl;
+import org.redukti.paxos.log.impl.StripedLedgerImpl;
 import org.redukti.paxos.net.api.EventLoop;
+import org.redukti.paxos.net.api.NetException;
+import org.redukti.paxos.net.impl.DispatchStrategy;
+import org.redukti.paxos.net.impl.EventLoopGroup;
 import org.redukti.paxos.net.impl.EventLoopImpl;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -45,6 +55,18 @@ public class MultiPaxosProcess {
     int pid = -1;
     ProcessDef myDef;
     String logPath;
+    Properties ledgerProperties = new Properties();
+    Properties netProperties = new Properties();
+    String ledgerType = "file";
+    /**
+     * Number of socket I/O threads; 0 means the main thread does all the I/O
+     */
+    int ioThreads = 0;
+    /**
+     * Number of committed decrees after which a snapshot is saved and the decrees are
+     * discarded from the ledger; 0 means decrees are never discarded
+     */
+    long snapshotEvery = 0;
 
     List<ProcessChannel> remoteProcesses = new ArrayList<>();
     List<ProcessDef> allDefs = new ArrayList<>();
@@ -91,6 +113,48 @@ public class MultiPaxosProcess {
                     }
                     break;
                 }
+                case "--ledgertype": {
+                    if (i + 1 < args.length) {
+                        ledgerType = args[++i];
+                    }
+                    break;
+                }
+                case "--groupcommit": {
+                    ledgerProperties.setProperty(LedgerImpl.GROUP_COMMIT, "true");
+                    break;
+                }
+                case "--durability": {
+                    if (i + 1 < args.length) {
+                        ledgerProperties.setProperty(DurabilityPolicy.DURABILITY, args[++i]);
+                    }
+                    break;
+                }
+                case "--dispatch": {
+                    if (i + 1 < args.length) {
+                        netProperties.setProperty(DispatchStrategy.DISPATCH, args[++i]);
+                    }
+                    break;
+                }
+                case "--iothreads": {
+                    if (i + 1 < args.length) {
+                        try {
+                            ioThreads = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            ioThreads = -1;
+                        }
+                    }
+                    break;
+                }
+                case "--snapshotevery": {
+                    if (i + 1 < args.length) {
+                        try {
+                            snapshotEvery = Long.parseLong(args[++i]);
+                        } catch (NumberFormatException e) {
+                            snapshotEvery = -1;
+                        }
+                    }
+                    break;
+                }
             }
         }
     }
@@ -106,6 +170,32 @@ public class MultiPaxosProcess {
             errmsg.append(System.lineSeparator()).append("Must set three process definitions using --connections");
             result = false;
         }
+        if (!"file".equals(ledgerType) && !"segmented".equals(ledgerType) && !"mapped".equals(ledgerType)
+                && !"striped".equals(ledgerType)) {
+            errmsg.append(System.lineSeparator()).append("--ledgertype must be file, segmented, mapped or striped");
+            result = false;
+        }
+        if (ioThreads < 0) {
+            errmsg.append(System.lineSeparator()).append("--iothreads must be 0 or more");
+            result = false;
+        }
+        if (snapshotEvery < 0) {
+            errmsg.append(System.lineSeparator()).append("--snapshotevery must be 0 or more");
+            result = false;
+        }
+        if (snapshotEvery > 0 && "striped".equals(ledgerType)) {
+            errmsg.append(System.lineSeparator()).append("--snapshotevery is not supported by the striped ledger");
+            result = false;
+        }
+        try {
+            if (!DispatchStrategy.fromProperties(netProperties).isSupported()) {
+                errmsg.append(System.lineSeparator()).append("--dispatch virtual requires Java 21 or later");
+                result = false;
+            }
+        } catch (NetException e) {
+            errmsg.append(System.lineSeparator()).append("--dispatch must be pool or virtual");
+            result = false;
+        }
         if (pid < 0 || pid > allDefs.size()) {
             errmsg.append(System.lineSeparator()).append("--myid must set a value between 0 and " + allDefs.size());
             result = false;
@@ -121,18 +211,46 @@ public class MultiPaxosProcess {
 
     void startServer() {
         scheduledExecutorService = Executors.newScheduledThreadPool(1);
-        eventLoop = new EventLoopImpl();
-        if (LedgerImpl.exists(logPath, ledgerName)) {
-            ledger = LedgerImpl.open(logPath, ledgerName, pid);
-        } else {
-            ledger = LedgerImpl.createIfNotExisting(logPath, ledgerName, pid);
-        }
+        eventLoop = ioThreads > 0 ? new EventLoopGroup(ioThreads, netProperties) : new EventLoopImpl(netProperties);
+        ledger = openLedger();
         me = new ThisPaxosParticipant(pid, ledger);
+        me.setSnapshotListener(this::snapshotInstalled);
         eventLoop.startServerChannel(myDef.address, myDef.port, me);
         startConnections();
         me.addRemotes(getRemotes());
     }
 
+    Ledger openLedger() {
+        if ("striped".equals(ledgerType)) {
+            // One directory per stripe
+            String[] logPaths = logPath.split(",");
+            if (StripedLedgerImpl.exists(logPaths, ledgerName, ledgerProperties)) {
+                return StripedLedgerImpl.open(logPaths, ledgerName, pid, ledgerProperties);
+            } else {
+                return StripedLedgerImpl.createIfNotExisting(logPaths, ledgerName, pid, ledgerProperties);
+            }
+        }
+        if ("segmented".equals(ledgerType)) {
+            if (SegmentedLedgerImpl.exists(logPath, ledgerName)) {
+                return SegmentedLedgerImpl.open(logPath, ledgerName, pid, ledgerProperties);
+            } else {
+                return SegmentedLedgerImpl.createIfNotExisting(logPath, ledgerName, pid, ledgerProperties);
+            }
+        }
+        if ("mapped".equals(ledgerType)) {
+            if (MappedLedgerImpl.exists(logPath, ledgerName)) {
+                return MappedLedgerImpl.open(logPath, ledgerName, pid, ledgerProperties);
+            } else {
+                return MappedLedgerImpl.createIfNotExisting(logPath, ledgerName, pid, ledgerProperties);
+            }
+        }
+        if (LedgerImpl.exists(logPath, ledgerName)) {
+            return LedgerImpl.open(logPath, ledgerName, pid, ledgerProperties);
+        } else {
+            return LedgerImpl.createIfNotExisting(logPath, ledgerName, pid, ledgerProperties);
+        }
+    }
+
     List<PaxosParticipant> getRemotes() {
         List<PaxosParticipant> remoteParticipants = new ArrayList<>();
         for (ProcessChannel p : remoteProcesses) {
@@ -159,6 +277,32 @@ public class MultiPaxosProcess {
             me.doOneClientRequest();
     }
 
+    /**
+     * The application state in this example is just the last agreed value, so a snapshot
+     * holds the value of the last committed decree. Once snapshotEvery decrees have been
+     * committed since the last snapshot, a new one is saved and those decrees are discarded.
+     */
+    void saveSnapshotIfDue() {
+        if (snapshotEvery == 0)
+            return;
+        long commitNum = ledger.getCommitNum();
+        if (commitNum - ledger.getFirstDnum() + 1 < snapshotEvery)
+            return;
+        Long value = ledger.getOutcome(commitNum);
+        if (value == null)
+            return;
+        me.saveSnapshot(new Snapshot(commitNum, ByteBuffer.allocate(Long.BYTES).putLong(value).array()));
+    }
+
+    /**
+     * Called when this process had fallen behind and installed a snapshot from another process;
+     * an application would replace its state with the one in the snapshot here.
+     */
+    void snapshotInstalled(Snapshot snapshot) {
+        long value = ByteBuffer.wrap(snapshot.state).getLong();
+        log.info(getClass(), "snapshotInstalled", "Installed snapshot at decree " + snapshot.decreeNum + " with value " + value);
+    }
+
     public static void main(String[] args) {
         try {
             MultiPaxosProcess p = new MultiPaxosProcess();
@@ -171,6 +315,7 @@ public class MultiPaxosProcess {
             while (true) {
                 p.eventLoop.select();
                 p.startClientRequest();
+                p.saveSnapshotIfDue();
             }
         } catch (Exception e) {
             log.error(MultiPaxosProcess.class, "main", "Error occurred", e);
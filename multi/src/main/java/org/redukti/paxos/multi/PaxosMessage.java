@@ -28,4 +28,12 @@ import java.nio.ByteBuffer;
 public interface PaxosMessage {
     ByteBuffer serialize();
     int getCode();
+
+    /**
+     * True if the message refers to the buffer it was parsed from, i.e. it
+     * has payloads sliced from it, so the buffer must not be released
+     */
+    default boolean retainsData() {
+        return false;
+    }
 }
@@ -23,6 +23,7 @@
  */
 package org.redukti.paxos.multi;
 
+import org.redukti.paxos.log.api.Decree;
 import org.redukti.paxos.net.impl.CorrelationId;
 
 import java.nio.ByteBuffer;
@@ -37,6 +38,7 @@ public class PaxosMessages {
     static final int NACK_MESSAGE = 7;
     static final int CLIENT_REQUEST_MESSAGE = 8;
     static final int CLIENT_RESPONSE_MESSAGE = 9;
+    static final int SNAPSHOT_MESSAGE = 10;
 
     public static PaxosMessage parseMessage(CorrelationId correlationId, ByteBuffer bb) {
         int messageType = bb.getShort();
@@ -68,10 +70,22 @@ public class PaxosMessages {
             case CLIENT_RESPONSE_MESSAGE: {
                 return new ClientResponseMessage(bb);
             }
+            case SNAPSHOT_MESSAGE: {
+                return new SnapshotMessage(bb);
+            }
             default: {
                 throw new IllegalArgumentException("Unknown message type " + messageType);
             }
         }
     }
 
+    static boolean hasPayload(Decree[] decrees) {
+        if (decrees == null)
+            return false;
+        for (Decree d : decrees) {
+            if (d.hasPayload())
+                return true;
+        }
+        return false;
+    }
 }
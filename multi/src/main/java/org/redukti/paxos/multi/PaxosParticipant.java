@@ -25,6 +25,7 @@ package org.redukti.paxos.multi;
 
 import org.redukti.paxos.log.api.BallotNum;
 import org.redukti.paxos.log.api.Decree;
+import org.redukti.paxos.log.api.Snapshot;
 
 import java.util.Objects;
 
@@ -55,6 +56,9 @@ public abstract class PaxosParticipant {
 
     public abstract void sendNack(BallotNum b, BallotNum maxBal, int pid);
 
+    // sent in place of commits the receiver is missing that have been discarded by a snapshot
+    public abstract void sendSnapshot(Snapshot snapshot);
+
     @Override
     public int hashCode() {
         return Objects.hash(getId());
@@ -27,12 +27,13 @@ import org.redukti.logging.Logger;
 import org.redukti.logging.LoggerFactory;
 import org.redukti.paxos.log.api.BallotNum;
 import org.redukti.paxos.log.api.Decree;
-import org.redukti.paxos.net.api.Message;
-import org.redukti.paxos.net.api.ResponseHandler;
+import org.redukti.paxos.log.api.Snapshot;
 
-import java.time.Duration;
-
-public class RemotePaxosParticipant extends PaxosParticipant implements ResponseHandler {
+/**
+ * Proxy for a remote participant. Paxos messages between participants are one way;
+ * any reply is a separate message sent back by the remote participant.
+ */
+public class RemotePaxosParticipant extends PaxosParticipant {
 
     final static Logger log = LoggerFactory.DEFAULT.getLogger(RemotePaxosParticipant.class.getName());
 
@@ -56,41 +57,41 @@ public class RemotePaxosParticipant extends PaxosParticipant implements Response
 
     @Override
     public void sendNextBallot(BallotNum b, int pid, long cnum) {
-        remote.connection.submit(logit(new NextBallotMessage(b, pid, cnum), "sendNextBallot").serialize(), this, Duration.ofSeconds(5));
+        remote.connection.send(logit(new NextBallotMessage(b, pid, cnum), "sendNextBallot").serialize());
     }
 
     @Override
     public void sendLastVoteMessage(BallotNum b, int pid, long cnum, Vote[] votes) {
-        remote.connection.submit(logit(new LastVoteMessage(b, pid, cnum, votes), "sendLastVoteMessage").serialize(), this, Duration.ofSeconds(5));
+        remote.connection.send(logit(new LastVoteMessage(b, pid, cnum, votes), "sendLastVoteMessage").serialize());
     }
 
     @Override
     public void sendBeginBallot(BallotNum b, int pid, long cnum, Decree[] chosenDecrees, Decree[] committedDecrees) {
-        remote.connection.submit(logit(new BeginBallotMessage(b, pid, cnum, chosenDecrees, committedDecrees), "sendBeginBallot").serialize(), this, Duration.ofSeconds(5));
+        remote.connection.send(logit(new BeginBallotMessage(b, pid, cnum, chosenDecrees, committedDecrees), "sendBeginBallot").serialize());
     }
 
     @Override
     public void sendPendingVote(BallotNum b, int pid, long cnum) {
-        remote.connection.submit(logit(new PendingVoteMessage(b, pid, cnum), "sendPendingVote").serialize(), this, Duration.ofSeconds(5));
+        remote.connection.send(logit(new PendingVoteMessage(b, pid, cnum), "sendPendingVote").serialize());
     }
 
     @Override
     public void sendVoted(BallotNum prevBal, int id) {
-        remote.connection.submit(logit(new VotedMessage(prevBal, id), "sendVoted").serialize(), this, Duration.ofSeconds(5));
+        remote.connection.send(logit(new VotedMessage(prevBal, id), "sendVoted").serialize());
     }
 
     @Override
     public void sendNack(BallotNum b, BallotNum maxBal, int pid) {
-        remote.connection.submit(logit(new NackMessage(b, maxBal, pid), "sendNack").serialize(), this, Duration.ofSeconds(5));
+        remote.connection.send(logit(new NackMessage(b, maxBal, pid), "sendNack").serialize());
     }
 
     @Override
     public void sendSuccess(Decree[] decrees) {
-        remote.connection.submit(logit(new SuccessMessage(decrees), "sendSuccess").serialize(), this, Duration.ofSeconds(5));
+        remote.connection.send(logit(new SuccessMessage(decrees), "sendSuccess").serialize());
     }
 
     @Override
-    public void onResponse(Message response) {
-
+    public void sendSnapshot(Snapshot snapshot) {
+        remote.connection.send(logit(new SnapshotMessage(snapshot), "sendSnapshot").serialize());
     }
 }
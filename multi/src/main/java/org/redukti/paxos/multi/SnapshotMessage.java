@@ -0,0 +1,71 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2022 Dibyendu Majumdar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.redukti.paxos.multi;
+
+import org.redukti.paxos.log.api.Snapshot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sent to a participant that is missing decrees which have already been
+ * discarded by a snapshot; it carries the snapshot in their place.
+ */
+public class SnapshotMessage implements PaxosMessage {
+
+    final Snapshot snapshot;
+
+    public SnapshotMessage(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public SnapshotMessage(ByteBuffer bb) {
+        long decreeNum = bb.getLong();
+        byte[] state = new byte[bb.getInt()];
+        bb.get(state);
+        this.snapshot = new Snapshot(decreeNum, state);
+    }
+
+    @Override
+    public ByteBuffer serialize() {
+        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+Long.BYTES+Integer.BYTES+snapshot.state.length);
+        bb.putShort((short)getCode());
+        bb.putLong(snapshot.decreeNum);
+        bb.putInt(snapshot.state.length);
+        bb.put(snapshot.state);
+        bb.flip();
+        return bb;
+    }
+
+    @Override
+    public int getCode() {
+        return PaxosMessages.SNAPSHOT_MESSAGE;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotMessage{" +
+                "snapshot=" + snapshot +
+                '}';
+    }
+}
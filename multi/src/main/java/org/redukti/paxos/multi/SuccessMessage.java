@@ -46,7 +46,7 @@ public class SuccessMessage implements PaxosMessage {
 
     @Override
     public ByteBuffer serialize() {
-        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+Integer.BYTES+decree.length*Decree.size());
+        ByteBuffer bb = ByteBuffer.allocate(Short.BYTES+Integer.BYTES+Decree.serializedSize(decree));
         bb.putShort((short)getCode());
         bb.putInt(decree.length);
         for (int i = 0; i < decree.length; i++) {
@@ -57,6 +57,11 @@ public class SuccessMessage implements PaxosMessage {
         return bb;
     }
 
+    @Override
+    public boolean retainsData() {
+        return PaxosMessages.hasPayload(decree);
+    }
+
     @Override
     public int getCode() {
         return PaxosMessages.SUCCESS_MESSAGE;
@@ -29,11 +29,13 @@ import org.redukti.paxos.log.api.BallotNum;
 import org.redukti.paxos.log.api.BallotedDecree;
 import org.redukti.paxos.log.api.Decree;
 import org.redukti.paxos.log.api.Ledger;
+import org.redukti.paxos.log.api.Snapshot;
 import org.redukti.paxos.net.api.Message;
 import org.redukti.paxos.net.api.RequestHandler;
 import org.redukti.paxos.net.api.RequestResponseSender;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * ThisPaxosParticipant implements Multi Paxos.
@@ -79,7 +81,7 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
      * Chosen values for all decrees in ballot, decree number to value mapping.
      * Only valid when status == POLLING
      */
-    TreeMap<Long, Long> chosenValues = new TreeMap<>();
+    TreeMap<Long, Decree> chosenValues = new TreeMap<>();
     /**
      * The dnum assigned to the client request
      */
@@ -97,6 +99,10 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
 
     List<ClientRequestHolder> clientQueue = new ArrayList<>();
 
+    /**
+     * Told about snapshots installed from other participants, may be null
+     */
+    volatile SnapshotListener snapshotListener;
 
     public ThisPaxosParticipant(int id, Ledger ledger) {
         this.ledger = ledger;
@@ -104,6 +110,39 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
         all.add(this);
     }
 
+    /**
+     * Sets the listener that is told when a snapshot received from another participant
+     * replaces the decrees this participant was missing.
+     */
+    public void setSnapshotListener(SnapshotListener listener) {
+        this.snapshotListener = listener;
+    }
+
+    /**
+     * Runs the action once all updates made to the ledger so far are durable.
+     * Messages that depend on a ledger update, such as LastVote and Voted, must be
+     * sent this way. If the ledger is already durable the action runs immediately
+     * in the caller's thread, otherwise it runs in the ledger's writer thread.
+     */
+    void whenDurable(Runnable action) {
+        CompletableFuture<Void> durable = ledger.flushAsync();
+        if (durable.isDone() && !durable.isCompletedExceptionally()) {
+            action.run();
+            return;
+        }
+        durable.whenComplete((v, e) -> {
+            if (e != null) {
+                log.error(getClass(), "whenDurable", "Failed to flush ledger, message not sent", e);
+                return;
+            }
+            try {
+                action.run();
+            } catch (Exception ex) {
+                log.error(getClass(), "whenDurable", "Error occurred when sending message", ex);
+            }
+        });
+    }
+
     /**
      * Add remote participants ensuring we have an odd number in total
      */
@@ -139,6 +178,12 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
      */
     synchronized void receiveClientRequest(RequestResponseSender responseSender, ClientRequestMessage clientRequestMessage) {
         log.info(getClass(), "receiveClientRequest", "Received " + clientRequestMessage);
+        if (clientRequestMessage.payload.hasRemaining() && !ledger.supportsPayloads()) {
+            log.error(getClass(), "receiveClientRequest", "Rejecting request with a payload as the ledger cannot store payloads");
+            // dnum = -1 indicates error
+            sendClientResponse(responseSender, -1, 0);
+            return;
+        }
         clientQueue.add(new ClientRequestHolder(clientRequestMessage, responseSender));
     }
 
@@ -205,7 +250,9 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
         status = Status.TRYING;
         prevVotes.clear();
         prevVoters.clear();
-        nextBallot(b, ledger.getCommitNum());
+        BallotNum ballot = b;
+        long commitNum = ledger.getCommitNum();
+        whenDurable(() -> nextBallot(ballot, commitNum));
     }
 
     /**
@@ -227,19 +274,15 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
 
     /**
      * Retrieve all decrees that are in my ledger with committed status
-     * but the sender of the message is missing
+     * but the sender of the message is missing. Decrees discarded by a snapshot
+     * are not included, see sendSnapshotIfBehind().
      *
      * @param pi Participant who wants to get an update of commits
      */
     synchronized Decree[] getCommittedDecrees(ParticipantInfo pi) {
         if (pi.commitNum() < ledger.getCommitNum()) {
             ArrayList<Decree> decrees = new ArrayList<>();
-            for (long cnum = pi.commitNum() + 1; cnum <= ledger.getCommitNum(); cnum++) {
-                Long outcome = ledger.getOutcome(cnum);
-                if (outcome != null) {
-                    decrees.add(new Decree(cnum, outcome));
-                }
-            }
+            ledger.forEachOutcome(Math.max(pi.commitNum() + 1, ledger.getFirstDnum()), ledger.getCommitNum(), decrees::add);
             if (!decrees.isEmpty()) {
                 return decrees.toArray(new Decree[decrees.size()]);
             }
@@ -255,6 +298,7 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
     synchronized void updateParticipant(ParticipantInfo pm) {
         if (pm.getPid() == getId())
             return;
+        sendSnapshotIfBehind(pm);
         Decree[] committedDecrees = getCommittedDecrees(pm);
         if (committedDecrees.length > 0) {
             PaxosParticipant p = findParticipant(pm.getPid());
@@ -262,6 +306,50 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
         }
     }
 
+    /**
+     * If the participant is missing commits that we have discarded after a snapshot then
+     * send it the snapshot; this must precede any commits sent to it.
+     */
+    synchronized void sendSnapshotIfBehind(ParticipantInfo pi) {
+        if (pi.getPid() == getId() || pi.commitNum() >= ledger.getFirstDnum() - 1)
+            return;
+        Snapshot snapshot = ledger.getSnapshot();
+        if (snapshot != null) {
+            findParticipant(pi.getPid()).sendSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Saves a snapshot of the application state, taken after applying all decrees up to
+     * and including snapshot.decreeNum, and discards those decrees from the ledger.
+     * Participants that later turn out to be missing any of them are sent the snapshot instead.
+     * The application calls this once it has applied the decrees; nothing is discarded otherwise.
+     */
+    public synchronized void saveSnapshot(Snapshot snapshot) {
+        if (snapshot.decreeNum > ledger.getCommitNum())
+            throw new IllegalArgumentException("Snapshot at decree " + snapshot.decreeNum + " is beyond commitNum " + ledger.getCommitNum());
+        ledger.saveSnapshot(snapshot);
+    }
+
+    @Override
+    public synchronized void sendSnapshot(Snapshot snapshot) {
+        receiveSnapshot(new SnapshotMessage(snapshot));
+    }
+
+    /**
+     * Process a Snapshot message - install it if it covers commits we don't know about,
+     * and tell the application so that it can restore its state from the snapshot.
+     */
+    synchronized void receiveSnapshot(SnapshotMessage sm) {
+        log.info(getClass(), "receiveSnapshot", "Received " + sm);
+        if (sm.snapshot.decreeNum > ledger.getCommitNum()) {
+            ledger.saveSnapshot(sm.snapshot);
+            SnapshotListener listener = snapshotListener;
+            if (listener != null)
+                listener.snapshotInstalled(sm.snapshot);
+        }
+    }
+
     /**
      * Retrieve any votes cast in undecided (pending) ballots.
      */
@@ -307,7 +395,8 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
             // that we have cast, or its null if we haven't yet
             // voted in a ballot.
             Vote[] votes = getVotes(getId(), ledger);
-            p.sendLastVoteMessage(b, getId(), ledger.getCommitNum(), votes);
+            long cnum = ledger.getCommitNum();
+            whenDurable(() -> p.sendLastVoteMessage(b, getId(), cnum, votes));
         } else if (b.compareTo(maxBal) < 0) {
             // The proposer is behind, so let it know that we have seen a later ballot number
             int owner = b.processNum; // process that sent us NextBallotMessage
@@ -364,18 +453,18 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
                 if (votes != null) {
                     maxVote = votes.stream().max(Comparator.naturalOrder()).orElse(null);
                 }
-                Long value;
+                Decree value;
                 if (maxVote == null || maxVote.ballotNum.isNull()) {
-                    value = Decree.NOOP_VAL; // assign NO-OP val to the gap decree
+                    value = new Decree(dnum, Decree.NOOP_VAL); // assign NO-OP val to the gap decree
                 } else {
                     assert (dnum == maxVote.decree.decreeNum);
-                    value = maxVote.decree.value;
+                    value = maxVote.decree;
                 }
                 chosenValues.put(dnum, value);
             }
         }
         chosenDNum = Math.max(ledger.getCommitNum() + 1, maxDnumInVotes + 1);
-        chosenValues.put(chosenDNum, currentRequest.requestedValue);
+        chosenValues.put(chosenDNum, currentRequest.toDecree(chosenDNum));
     }
 
     /**
@@ -404,12 +493,7 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
      * Format the chosenValues as decrees
      */
     synchronized Decree[] getChosenDecrees() {
-        Decree[] decrees = new Decree[chosenValues.size()];
-        int i = 0;
-        for (Map.Entry<Long, Long> e : chosenValues.entrySet()) {
-            decrees[i++] = new Decree(e.getKey(), e.getValue());
-        }
-        return decrees;
+        return chosenValues.values().toArray(new Decree[0]);
     }
 
     Set<PaxosParticipant> acceptors() {
@@ -443,22 +527,23 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
         BallotNum b = pm.b;
         BallotNum maxBal = ledger.getMaxBal();
         if (b.compareTo(maxBal) >= 0) {
-            ledger.setMaxBal(b);
+            if (b.compareTo(maxBal) > 0) {
+                // Usually maxBal was set by NextBallot, and rewriting it would cost a
+                // second force per BeginBallot on top of the one for setValues
+                ledger.setMaxBal(b);
+            }
             if (b.owner() != getId() && status != Status.IDLE) {
                 // We got a ballot from another process
                 resetToIdle();
             }
-            for (int i = 0; i < pm.committedDecrees.length; i++) {
-                ledger.setOutcome(pm.committedDecrees[i].decreeNum, pm.committedDecrees[i].value);
-            }
-            for (int i = 0; i < pm.chosenDecrees.length; i++) {
-                ledger.setMaxVBal(b, pm.chosenDecrees[i].decreeNum, pm.chosenDecrees[i].value);
-            }
+            // Commits and votes are written as one batch
+            ledger.setValues(pm.committedDecrees, b, pm.chosenDecrees);
             PaxosParticipant p = findParticipant(b.processNum);
-            if (ledger.getCommitNum() < pm.cnum) {
-                p.sendPendingVote(b, getId(), ledger.getCommitNum());
+            long cnum = ledger.getCommitNum();
+            if (cnum < pm.cnum) {
+                whenDurable(() -> p.sendPendingVote(b, getId(), cnum));
             } else {
-                p.sendVoted(b, pid);
+                whenDurable(() -> p.sendVoted(b, pid));
             }
         } else {
             // The proposer is behind, so let it know that we have seen a later ballot number
@@ -484,6 +569,7 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
         BallotNum b = m.b;
         PaxosParticipant p = findParticipant(m.pid);
         if (b.equals(lastTried) && status == Status.POLLING) {
+            sendSnapshotIfBehind(m);
             p.sendBeginBallot(m.b, getId(), ledger.getCommitNum(), getChosenDecrees(), getCommittedDecrees(m));
         } else {
             // Okay we are not leading anymore but still inform the sender about commits they are missing.
@@ -508,17 +594,27 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
             PaxosParticipant q = findParticipant(vm.pid);
             voters.add(q);
             if (haveQuorumOfVoters()) {
-                for (Map.Entry<Long, Long> e : chosenValues.entrySet()) {
-                    Long v = ledger.getOutcome(e.getKey());
+                List<Decree> outcomes = new ArrayList<>();
+                for (Decree d : chosenValues.values()) {
+                    Long v = ledger.getOutcome(d.decreeNum);
                     if (v == null) {
-                        ledger.setOutcome(e.getKey(), e.getValue());
+                        outcomes.add(d);
                     }
                 }
+                ledger.setValues(outcomes.toArray(new Decree[0]), null, new Decree[0]);
                 Decree[] chosenDecrees = getChosenDecrees();
-                for (PaxosParticipant p : all) {
-                    p.sendSuccess(chosenDecrees);
-                }
-                sendClientResponse(chosenDecrees);
+                ClientRequestMessage crm = currentRequest;
+                whenDurable(() -> {
+                    for (PaxosParticipant p : all) {
+                        p.sendSuccess(chosenDecrees);
+                    }
+                    synchronized (this) {
+                        // Only respond if the request was not abandoned in the meantime
+                        if (currentRequest == crm) {
+                            sendClientResponse(chosenDecrees);
+                        }
+                    }
+                });
             }
         }
     }
@@ -537,13 +633,15 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
      */
     synchronized void receiveSuccess(SuccessMessage sm) {
         log.info(getClass(), "receiveSuccess", "Received " + sm);
+        List<Decree> outcomes = new ArrayList<>();
         for (int i = 0; i < sm.decree.length; i++) {
             Decree d = sm.decree[i];
             Long v = ledger.getOutcome(d.decreeNum);
             if (v == null) {
-                ledger.setOutcome(d.decreeNum, d.value);
+                outcomes.add(d);
             }
         }
+        ledger.setValues(outcomes.toArray(new Decree[0]), null, new Decree[0]);
     }
 
     synchronized void sendClientResponse(Decree[] chosenDecrees) {
@@ -591,9 +689,26 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
         currentResponseSender = null;
     }
 
+    /**
+     * Messages from a given peer arrive here in the order they were sent. Parsing is done
+     * outside the lock, but the receive methods all synchronize on the participant, as the
+     * state they update is shared by all peers, so messages from different peers are still
+     * processed one at a time.
+     */
     @Override
-    public synchronized void handleRequest(Message request, RequestResponseSender responseSender) {
-        PaxosMessage pm = PaxosMessages.parseMessage(request.getCorrelationId(), request.getData());
+    public void handleRequest(Message request, RequestResponseSender responseSender) {
+        PaxosMessage pm;
+        try {
+            pm = PaxosMessages.parseMessage(request.getCorrelationId(), request.getData());
+        } catch (RuntimeException e) {
+            // Nothing refers to the data, and the event loop leaves releasing to us
+            request.release();
+            throw e;
+        }
+        if (!pm.retainsData()) {
+            // Parsed messages are copies unless they carry payloads
+            request.release();
+        }
         if (pm instanceof NextBallotMessage) {
             receiveNextBallot((NextBallotMessage) pm);
         } else if (pm instanceof LastVoteMessage) {
@@ -608,6 +723,8 @@ public class ThisPaxosParticipant extends PaxosParticipant implements RequestHan
             receiveSuccess((SuccessMessage) pm);
         } else if (pm instanceof NackMessage) {
             receiveNack((NackMessage) pm);
+        } else if (pm instanceof SnapshotMessage) {
+            receiveSnapshot((SnapshotMessage) pm);
         } else if (pm instanceof ClientRequestMessage) {
             receiveClientRequest(responseSender, (ClientRequestMessage) pm);
         } else {
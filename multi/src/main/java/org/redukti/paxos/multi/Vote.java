@@ -60,8 +60,8 @@ public class Vote implements Comparable<Vote> {
         decree.store(bb);
     }
 
-    public static int size() {
-        return Byte.BYTES + BallotNum.size() + Decree.size();
+    public int serializedSize() {
+        return Byte.BYTES + BallotNum.size() + decree.serializedSize();
     }
 
     @Override
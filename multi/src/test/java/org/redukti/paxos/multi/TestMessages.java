@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.redukti.paxos.log.api.BallotNum;
 import org.redukti.paxos.log.api.Decree;
+import org.redukti.paxos.log.api.Snapshot;
 import org.redukti.paxos.net.impl.CorrelationId;
 
 import java.nio.ByteBuffer;
@@ -27,6 +28,38 @@ public class TestMessages {
         Assertions.assertEquals(crm.requestedValue, crm2.requestedValue);
     }
 
+    @Test
+    public void testClientRequestMessageWithPayload() {
+        byte[] payload = new byte[5000];
+        Arrays.fill(payload, (byte) 7);
+        ClientRequestMessage crm = new ClientRequestMessage(correlationId, 42, ByteBuffer.wrap(payload));
+        ByteBuffer bb = crm.serialize();
+        ClientRequestMessage crm2 = (ClientRequestMessage) PaxosMessages.parseMessage(correlationId, bb);
+        Assertions.assertEquals(crm.requestedValue, crm2.requestedValue);
+        Assertions.assertEquals(ByteBuffer.wrap(payload), crm2.payload);
+        Decree decree = crm2.toDecree(3);
+        Assertions.assertEquals(3, decree.decreeNum);
+        Assertions.assertArrayEquals(payload, decree.getPayloadBytes());
+    }
+
+    @Test
+    public void testBeginBallotMessageWithPayload() {
+        byte[] payload = "some command".getBytes();
+        Decree withPayload = new Decree(15, 11, ByteBuffer.wrap(payload));
+        BeginBallotMessage m = new BeginBallotMessage(b, 1, 100, new Decree[]{d, withPayload}, new Decree[]{d2});
+        ByteBuffer bb = m.serialize();
+        Assertions.assertEquals(Short.BYTES + BallotNum.size() + 3 * Integer.BYTES + Long.BYTES
+                + 3 * Decree.size() + payload.length, bb.remaining());
+        BeginBallotMessage m2 = (BeginBallotMessage) PaxosMessages.parseMessage(correlationId, bb);
+        Assertions.assertEquals(d, m2.chosenDecrees[0]);
+        Assertions.assertEquals(withPayload, m2.chosenDecrees[1]);
+        Assertions.assertFalse(m2.chosenDecrees[0].hasPayload());
+        Assertions.assertEquals(d2, m2.committedDecrees[0]);
+        // the payload is a view of the message buffer, not a copy
+        bb.put(bb.limit() - Decree.size() - Integer.BYTES - 1, (byte) 'S');
+        Assertions.assertEquals('S', m2.chosenDecrees[1].payload.get(payload.length - 1));
+    }
+
     @Test
     public void testClientResponseMessage() {
         ClientResponseMessage crm = new ClientResponseMessage(1, 42);
@@ -118,4 +151,13 @@ public class TestMessages {
         Assertions.assertEquals(m.maxBal, m2.maxBal);
         Assertions.assertEquals(m.pid, m2.pid);
     }
+
+    @Test
+    public void testSnapshotMessage() {
+        SnapshotMessage m = new SnapshotMessage(new Snapshot(13, new byte[]{1, 2, 3}));
+        ByteBuffer bb = m.serialize();
+        SnapshotMessage m2 = (SnapshotMessage) PaxosMessages.parseMessage(correlationId, bb);
+        Assertions.assertEquals(m.snapshot.decreeNum, m2.snapshot.decreeNum);
+        Assertions.assertArrayEquals(m.snapshot.state, m2.snapshot.state);
+    }
 }
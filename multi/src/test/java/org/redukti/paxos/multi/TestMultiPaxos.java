@@ -6,6 +6,7 @@ import org.redukti.paxos.log.api.BallotNum;
 import org.redukti.paxos.log.api.BallotedDecree;
 import org.redukti.paxos.log.api.Decree;
 import org.redukti.paxos.log.api.Ledger;
+import org.redukti.paxos.log.api.Snapshot;
 import org.redukti.paxos.net.api.RequestResponseSender;
 import org.redukti.paxos.net.impl.CorrelationId;
 
@@ -169,7 +170,11 @@ public class TestMultiPaxos {
 
         // Second time remote2 will respond with Voted message, completing quorum
         // this will result in new value being committed and success messages to both r1 and r2
+        // The ballot equals r2's maxBal, which is therefore not rewritten
+        Assertions.assertEquals(remote2.beginBallotMessages.get(1).b, r2ledger.getMaxBal());
+        int maxBalWrites = ((MockLedger) r2ledger).maxBalWrites;
         remote2.receiveBeginBallot(remote2.beginBallotMessages.get(1));
+        Assertions.assertEquals(maxBalWrites, ((MockLedger) r2ledger).maxBalWrites);
         // Check we have a bump in commitnum
         Assertions.assertEquals(4, ledger.getCommitNum());
         // Both r1 & r2 got success messages
@@ -363,8 +368,44 @@ public class TestMultiPaxos {
 
         Assertions.assertEquals(2, me.chosenValues.size());
         Assertions.assertEquals(1, me.chosenDNum);
-        Assertions.assertEquals(Long.valueOf(d0v2.decree.value), me.chosenValues.get(0L));
-        Assertions.assertEquals(Long.valueOf(crm.requestedValue), me.chosenValues.get(me.chosenDNum));
+        Assertions.assertEquals(d0v2.decree.value, me.chosenValues.get(0L).value);
+        Assertions.assertEquals(crm.requestedValue, me.chosenValues.get(me.chosenDNum).value);
+    }
+
+    // Scenario - a participant that is missing decrees discarded by a snapshot
+    // check that it is sent the snapshot followed by the remaining commits
+    @Test
+    public void testCatchUpWithSnapshot() {
+        me.addRemotes(List.of(remote1, remote2));
+        for (int i = 0; i < 10; i++) {
+            ledger.setOutcome(i, 100 + i);
+        }
+        me.saveSnapshot(new Snapshot(5, new byte[]{1}));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> me.saveSnapshot(new Snapshot(10, new byte[0])));
+
+        BallotNum b = new BallotNum(1, 1);
+        me.updateParticipant(new NextBallotMessage(b, 1, -1));
+        Assertions.assertEquals(1, remote1.snapshotMessages.size());
+        Assertions.assertEquals(5, remote1.snapshotMessages.get(0).snapshot.decreeNum);
+        Assertions.assertEquals(1, remote1.successMessages.size());
+        Assertions.assertEquals(4, remote1.successMessages.get(0).decree.length);
+        Assertions.assertEquals(new Decree(6, 106), remote1.successMessages.get(0).decree[0]);
+
+        List<Snapshot> installed = new ArrayList<>();
+        remote1.setSnapshotListener(installed::add);
+        remote1.receiveSnapshot(remote1.snapshotMessages.get(0));
+        Assertions.assertEquals(1, installed.size());
+        Assertions.assertEquals(5, installed.get(0).decreeNum);
+        remote1.receiveSuccess(remote1.successMessages.get(0));
+        Assertions.assertEquals(9, r1ledger.getCommitNum());
+        // a snapshot that does not cover anything new is not installed
+        remote1.receiveSnapshot(remote1.snapshotMessages.get(0));
+        Assertions.assertEquals(1, installed.size());
+
+        // a participant that only needs decrees after the snapshot does not get it
+        me.updateParticipant(new NextBallotMessage(new BallotNum(1, 2), 2, 7));
+        Assertions.assertTrue(remote2.snapshotMessages.isEmpty());
+        Assertions.assertEquals(2, remote2.successMessages.get(0).decree.length);
     }
 
     // Scenario - in phase 1 we received multiple votes for 1 decree num, but there is a gap
@@ -406,9 +447,9 @@ public class TestMultiPaxos {
 
         Assertions.assertEquals(3, me.chosenValues.size());
         Assertions.assertEquals(2, me.chosenDNum);
-        Assertions.assertEquals(Long.valueOf(Decree.NOOP_VAL), me.chosenValues.get(0L)); // Gap assigned NOOP value
-        Assertions.assertEquals(Long.valueOf(d0v2.decree.value), me.chosenValues.get(1L));
-        Assertions.assertEquals(Long.valueOf(crm.requestedValue), me.chosenValues.get(me.chosenDNum));
+        Assertions.assertEquals(Decree.NOOP_VAL, me.chosenValues.get(0L).value); // Gap assigned NOOP value
+        Assertions.assertEquals(d0v2.decree.value, me.chosenValues.get(1L).value);
+        Assertions.assertEquals(crm.requestedValue, me.chosenValues.get(me.chosenDNum).value);
     }
 
     static final class MockResponseSender implements RequestResponseSender {
@@ -458,6 +499,7 @@ public class TestMultiPaxos {
         List<LastVoteMessage> lastVoteMessages = new ArrayList<>();
         List<BeginBallotMessage> beginBallotMessages = new ArrayList<>();
         List<SuccessMessage> successMessages = new ArrayList<>();
+        List<SnapshotMessage> snapshotMessages = new ArrayList<>();
 
         public MockRemoteParticipant(int id, Ledger ledger) {
             super(id, ledger);
@@ -492,6 +534,11 @@ public class TestMultiPaxos {
         public void sendSuccess(Decree[] decrees) {
             successMessages.add(new SuccessMessage(decrees));
         }
+
+        @Override
+        public void sendSnapshot(Snapshot snapshot) {
+            snapshotMessages.add(new SnapshotMessage(snapshot));
+        }
     }
 
     static final class MockLedger implements Ledger {
@@ -503,6 +550,9 @@ public class TestMultiPaxos {
         BallotNum lastTried;
         BallotNum nextBal;
         long commitNum;
+        Snapshot snapshot;
+        long firstDnum;
+        int maxBalWrites;
 
         public MockLedger(int id) {
             this.id = id;
@@ -565,6 +615,7 @@ public class TestMultiPaxos {
         @Override
         public void setMaxBal(BallotNum ballot) {
             this.nextBal = ballot;
+            maxBalWrites++;
         }
 
         @Override
@@ -585,5 +636,27 @@ public class TestMultiPaxos {
         public List<BallotedDecree> getUndecidedBallots() {
             return inflightBallots.values().stream().map(e -> new BallotedDecree(e.first, e.second)).collect(Collectors.toList());
         }
+
+        @Override
+        public void saveSnapshot(Snapshot snapshot) {
+            this.snapshot = snapshot;
+            firstDnum = snapshot.decreeNum + 1;
+            outcomes.keySet().removeIf(dnum -> dnum < firstDnum);
+            inflightBallots.keySet().removeIf(dnum -> dnum < firstDnum);
+            commitNum = Math.max(commitNum, snapshot.decreeNum);
+            while (outcomes.containsKey(commitNum+1)) {
+                commitNum++;
+            }
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+
+        @Override
+        public long getFirstDnum() {
+            return firstDnum;
+        }
     }
 }
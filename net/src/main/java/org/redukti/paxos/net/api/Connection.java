@@ -9,6 +9,13 @@ import java.time.Duration;
 
 public interface Connection {
     void submit(ByteBuffer requestData, ResponseHandler responseHandler, Duration timeout);
+
+    /**
+     * Sends a one way message; the receiver does not respond to it, so no
+     * handler or timeout is registered for it.
+     */
+    void send(ByteBuffer requestData);
+
     boolean isConnected();
 
     boolean isErrored();
@@ -12,4 +12,14 @@ public interface Message {
     CorrelationId getCorrelationId();
     ByteBuffer getData();
     void setData(ByteBuffer data);
+
+    /**
+     * Returns the buffer the message was read into to the event loop's pool, once the
+     * data is no longer needed; neither the data nor anything sliced from it may be
+     * used afterwards. Releasing is optional, an unreleased buffer is garbage collected.
+     * Only the handler that received the message can release it, as only it knows whether
+     * it kept any of the data; the event loop never does, even if the handler throws.
+     */
+    default void release() {
+    }
 }
@@ -4,6 +4,15 @@
  */
 package org.redukti.paxos.net.api;
 
+import org.redukti.paxos.net.impl.CorrelationId;
+
 public interface ResponseHandler {
     void onResponse(Message response);
+
+    /**
+     * Invoked instead of onResponse() if no response arrived within the timeout
+     * given to Connection.submit(); a response arriving later is discarded.
+     */
+    default void onTimeout(CorrelationId correlationId) {
+    }
 }
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of buffers for reading message payloads.
+ * <p>
+ * Buffers are pooled in power of 2 size classes from {@link #MIN_BUFFER_SIZE} to
+ * {@link #MAX_BUFFER_SIZE}; a payload gets a buffer of the smallest class that fits,
+ * with the limit set to the payload size. Larger payloads get an unpooled buffer.
+ * Each class keeps at most maxPooled free buffers, buffers released beyond that are
+ * left to the garbage collector.
+ * </p>
+ * <p>
+ * A buffer must not be used after it has been released, as it will be handed out again;
+ * a buffer that is never released is simply garbage collected.
+ * </p>
+ */
+public final class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 256;
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+    static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SHIFT + 1;
+
+    final boolean direct;
+    final int maxPooled;
+    final SizeClass[] sizeClasses = new SizeClass[NUM_CLASSES];
+
+    final AtomicLong allocations = new AtomicLong();
+    final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * Creates a pool of heap buffers keeping up to 256 free buffers per size class.
+     */
+    public BufferPool() {
+        this(false, 256);
+    }
+
+    /**
+     * @param direct Whether to use direct buffers, which save a copy on socket reads
+     *               but are costlier to allocate, so should only be used pooled
+     * @param maxPooled Maximum free buffers kept per size class
+     */
+    public BufferPool(boolean direct, int maxPooled) {
+        if (maxPooled < 0)
+            throw new IllegalArgumentException("maxPooled must not be negative");
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+        for (int i = 0; i < NUM_CLASSES; i++)
+            sizeClasses[i] = new SizeClass(MIN_BUFFER_SIZE << i, maxPooled);
+    }
+
+    /**
+     * Returns a buffer with position 0 and limit size.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Invalid buffer size " + size);
+        SizeClass sizeClass = sizeClassOf(size);
+        ByteBuffer bb = sizeClass != null ? sizeClass.pop() : null;
+        if (bb != null) {
+            reuses.incrementAndGet();
+        } else {
+            bb = allocate(sizeClass != null ? sizeClass.bufferSize : size);
+            allocations.incrementAndGet();
+        }
+        bb.clear().limit(size);
+        return bb;
+    }
+
+    /**
+     * Returns a buffer obtained from acquire() to the pool.
+     */
+    public void release(ByteBuffer bb) {
+        if (bb == null || bb.isDirect() != direct)
+            return;
+        SizeClass sizeClass = sizeClassOf(bb.capacity());
+        // Only buffers that are exactly a class size can have come from the pool
+        if (sizeClass == null || sizeClass.bufferSize != bb.capacity())
+            return;
+        sizeClass.push(bb);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Number of buffers allocated, as opposed to reused
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Number of buffers handed out from the pool
+     */
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private SizeClass sizeClassOf(int size) {
+        if (size > MAX_BUFFER_SIZE)
+            return null;
+        if (size <= MIN_BUFFER_SIZE)
+            return sizeClasses[0];
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return sizeClasses[shift - MIN_SHIFT];
+    }
+
+    /**
+     * Free buffers of one size; a bounded stack so that releasing a buffer allocates nothing
+     * and the most recently used buffer, likely still in cache, is reused first.
+     */
+    static final class SizeClass {
+        final int bufferSize;
+        final ByteBuffer[] free;
+        int count;
+
+        SizeClass(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.free = new ByteBuffer[maxPooled];
+        }
+
+        synchronized ByteBuffer pop() {
+            if (count == 0)
+                return null;
+            ByteBuffer bb = free[--count];
+            free[count] = null;
+            return bb;
+        }
+
+        synchronized void push(ByteBuffer bb) {
+            if (count < free.length)
+                free[count++] = bb;
+        }
+    }
+}
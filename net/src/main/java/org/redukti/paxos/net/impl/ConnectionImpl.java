@@ -32,11 +32,19 @@ public class ConnectionImpl extends ProtocolHandler implements Connection {
         MessageImpl request = new MessageImpl(header, requestData);
         request.setCorrelationId(new CorrelationId(id, requestId.incrementAndGet()));
         if (responseHandler != null) {
-            eventLoop.queueResponseHandler(request, responseHandler);
+            eventLoop.queueResponseHandler(request, responseHandler, timeout);
         }
         queueWrite(new WriteRequest(request.getHeader(), request.getData()));
     }
 
+    @Override
+    public void send(ByteBuffer requestData) {
+        MessageHeader header = new MessageHeader(true);
+        header.setOneWay(true);
+        header.setCorrelationId(new CorrelationId(id, requestId.incrementAndGet()));
+        queueWrite(new WriteRequest(header, requestData));
+    }
+
     public void setErrored() {
         failed();
     }
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.redukti.paxos.net.api.NetException;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How an event loop runs request handlers, response handlers and listeners,
+ * selected by the {@link #DISPATCH} network property.
+ * <p>
+ * With a pool, a handler that blocks, e.g. on a ledger fsync, holds on to one of the
+ * pool's threads, so at most {@link #DISPATCH_THREADS} handlers can be blocked before
+ * dispatching stops. With virtual threads each message gets a thread of its own and
+ * blocking is cheap; this needs Java 21 or later.
+ * </p>
+ */
+public enum DispatchStrategy {
+
+    /**
+     * A fixed pool of platform threads, sized by {@link #DISPATCH_THREADS}
+     */
+    POOL,
+    /**
+     * A new virtual thread per message
+     */
+    VIRTUAL;
+
+    /**
+     * Name of the network property that selects the strategy, e.g. net.dispatch=virtual.
+     * The default is pool.
+     */
+    public static final String DISPATCH = "net.dispatch";
+
+    /**
+     * Number of threads in each pool when dispatching to a pool; default is 5.
+     */
+    public static final String DISPATCH_THREADS = "net.dispatchThreads";
+
+    /**
+     * Name as used in the network property
+     */
+    public String propertyValue() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Creates an executor implementing the strategy.
+     *
+     * @param threads Size of the pool, ignored by VIRTUAL
+     * @throws NetException if virtual threads are not supported by the JVM
+     */
+    public ExecutorService newExecutor(int threads) {
+        if (this == POOL) {
+            return Executors.newFixedThreadPool(threads);
+        }
+        // Looked up reflectively so that we still build and run on Java 11
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            throw new NetException("Virtual threads are not supported by this JVM, Java 21 or later is required", e);
+        }
+    }
+
+    /**
+     * True if this JVM supports the strategy
+     */
+    public boolean isSupported() {
+        if (this == POOL)
+            return true;
+        try {
+            newExecutor(1).shutdown();
+            return true;
+        } catch (NetException e) {
+            // e.g. preview API not enabled on Java 19 or 20
+            return false;
+        }
+    }
+
+    /**
+     * Returns the strategy selected by the network properties.
+     */
+    public static DispatchStrategy fromProperties(Properties props) {
+        String value = props.getProperty(DISPATCH, POOL.propertyValue());
+        for (DispatchStrategy strategy : values()) {
+            if (strategy.propertyValue().equalsIgnoreCase(value.trim()))
+                return strategy;
+        }
+        throw new NetException("Unknown dispatch strategy " + value);
+    }
+}
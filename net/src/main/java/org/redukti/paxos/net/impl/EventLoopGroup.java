@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.redukti.logging.Logger;
+import org.redukti.logging.LoggerFactory;
+import org.redukti.paxos.net.api.Connection;
+import org.redukti.paxos.net.api.ConnectionListener;
+import org.redukti.paxos.net.api.EventLoop;
+import org.redukti.paxos.net.api.RequestHandler;
+
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An EventLoop that spreads socket I/O over several threads.
+ * <p>
+ * The group is made up of an acceptor and a number of loops, each an {@link EventLoopImpl}
+ * with its own selector. Each loop is run by a thread of its own and owns the connections
+ * assigned to it, round robin, for their lifetime: it does all their reads and writes and
+ * manages their interest ops. The acceptor only accepts new connections to the server
+ * channel and hands them to the loops; it is driven by the caller of {@link #select()},
+ * as for a single EventLoopImpl, so a caller's select loop works unchanged. Handlers are
+ * dispatched to executors shared by all the loops.
+ * </p>
+ */
+public class EventLoopGroup implements EventLoop {
+
+    static final Logger log = LoggerFactory.DEFAULT.getLogger(EventLoopGroup.class.getName());
+
+    final EventLoopImpl acceptor;
+    final EventLoopImpl[] loops;
+    final Thread[] threads;
+    final AtomicInteger next = new AtomicInteger();
+    /**
+     * Dispatch executors shared by the loops
+     */
+    final ExecutorService executor;
+    final ExecutorService clientExecutor;
+
+    volatile boolean stop;
+
+    public EventLoopGroup(int nThreads) {
+        this(nThreads, new Properties());
+    }
+
+    /**
+     * @param nThreads Number of loops, each with its own selector and thread
+     * @param props Network properties, as for EventLoopImpl
+     */
+    public EventLoopGroup(int nThreads, Properties props) {
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads must be at least 1");
+        loops = new EventLoopImpl[nThreads];
+        threads = new Thread[nThreads];
+        // Loops share buffers, dispatch executors, and connection ids so that they are unique within the group
+        BufferPool bufferPool = new BufferPool();
+        AtomicInteger connId = new AtomicInteger(0);
+        DispatchStrategy strategy = DispatchStrategy.fromProperties(props);
+        int dispatchThreads = EventLoopImpl.getIntProperty(props, DispatchStrategy.DISPATCH_THREADS, 5);
+        executor = strategy.newExecutor(dispatchThreads);
+        clientExecutor = strategy.newExecutor(dispatchThreads);
+        EventLoopImpl acceptor = null;
+        try {
+            acceptor = new EventLoopImpl(props, bufferPool, executor, clientExecutor);
+        } catch (RuntimeException e) {
+            executor.shutdown();
+            clientExecutor.shutdown();
+            throw e;
+        }
+        this.acceptor = acceptor;
+        acceptor.group = this;
+        acceptor.connId = connId;
+        try {
+            for (int i = 0; i < nThreads; i++) {
+                loops[i] = new EventLoopImpl(props, bufferPool, executor, clientExecutor);
+                loops[i].connId = connId;
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        for (int i = 0; i < nThreads; i++) {
+            EventLoopImpl loop = loops[i];
+            threads[i] = new Thread(() -> run(loop), "EventLoop-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    private void run(EventLoopImpl loop) {
+        while (!stop) {
+            try {
+                loop.select();
+            } catch (Exception e) {
+                if (!stop)
+                    log.error(getClass(), "run", "Event loop failed, its connections are lost", e);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the loop the next connection is assigned to
+     */
+    EventLoopImpl nextLoop() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    @Override
+    public Connection clientConnection(String address, int port, ConnectionListener connectionListener) {
+        EventLoopImpl loop = nextLoop();
+        Connection connection = loop.clientConnection(address, port, connectionListener);
+        // Don't wait for the loop's select to time out before it sees the new channel
+        loop.selector.wakeup();
+        return connection;
+    }
+
+    @Override
+    public void startServerChannel(String serverAddress, int serverPort, RequestHandler requestHandler) {
+        for (EventLoopImpl loop : loops) {
+            loop.requestHandler = requestHandler;
+        }
+        acceptor.startServerChannel(serverAddress, serverPort, requestHandler);
+    }
+
+    /**
+     * Accepts new connections; reads and writes are done by the group's threads.
+     */
+    @Override
+    public void select() {
+        acceptor.select();
+    }
+
+    @Override
+    public void close() {
+        stop = true;
+        for (EventLoopImpl loop : loops) {
+            if (loop != null)
+                loop.selector.wakeup();
+        }
+        for (Thread thread : threads) {
+            if (thread == null)
+                continue;
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (EventLoopImpl loop : loops) {
+            if (loop != null)
+                loop.close();
+        }
+        acceptor.close();
+        executor.shutdown();
+        clientExecutor.shutdown();
+    }
+}
@@ -18,9 +18,10 @@ import java.nio.channels.SocketChannel;
 import java.time.Duration;
 import java.util.Iterator;
 import java.util.Objects;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -28,6 +29,11 @@ public class EventLoopImpl implements EventLoop {
 
     static final Logger log = LoggerFactory.DEFAULT.getLogger(EventLoopImpl.class.getName());
 
+    /**
+     * Maximum number of packets a connection writes in one gathering write; default is 64.
+     */
+    public static final String WRITE_BATCH_SIZE = "net.writeBatchSize";
+
     /**
      * Timeout for select operations; default is 1 sec.
      */
@@ -44,30 +50,113 @@ public class EventLoopImpl implements EventLoop {
     ServerSocketChannel serverSocketChannel;
     InetSocketAddress serverSocketAddress;
 
-    // Should be inputs
-    ExecutorService executor = Executors.newFixedThreadPool(5);
-    ExecutorService clientExecutor = Executors.newFixedThreadPool(5);
+    /**
+     * Run request handlers, and response handlers and listeners respectively;
+     * created according to the {@link DispatchStrategy}.
+     */
+    final ExecutorService executor;
+    final ExecutorService clientExecutor;
+    /**
+     * Whether the executors are shut down when this is closed, false if
+     * they were supplied by an EventLoopGroup
+     */
+    final boolean ownsExecutors;
 
     AtomicInteger connId = new AtomicInteger(0);
 
-    // TODO we need to add ability to timeout requests
+    /**
+     * Set when this is the acceptor of an EventLoopGroup; accepted connections
+     * are then handed over to the group's loops.
+     */
+    EventLoopGroup group;
+
+    /**
+     * Tasks submitted from other threads, run by the thread calling select()
+     */
+    final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections whose write queue has become non empty, that need interest in writing
+     */
+    final ConcurrentLinkedQueue<ProtocolHandler> writeReady = new ConcurrentLinkedQueue<>();
+
     /**
      * When a client connection sends a request it can ask for a callback to be invoked
-     * on completion of the request by the server.
+     * on completion of the request by the server. Requests that were given a timeout
+     * are removed when it expires.
+     */
+    ConcurrentHashMap<CorrelationId, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Expires pending requests; available to other users of the event loop via getTimer().
      */
-    ConcurrentHashMap<CorrelationId, ResponseHandler> pendingRequests = new ConcurrentHashMap<>();
+    final HashedWheelTimer timer = new HashedWheelTimer("EventLoopTimer");
+
+    /**
+     * Buffers that message payloads are read into
+     */
+    final BufferPool bufferPool;
+
+    final int writeBatchSize;
 
     public EventLoopImpl() {
+        this(new Properties());
+    }
+
+    public EventLoopImpl(Properties props) {
+        this(props, new BufferPool());
+    }
+
+    /**
+     * @param props Network properties such as {@link #WRITE_BATCH_SIZE} and {@link DispatchStrategy#DISPATCH}
+     * @param bufferPool Pool for the buffers that message payloads are read into;
+     *                   handlers should release messages when done with them.
+     */
+    public EventLoopImpl(Properties props, BufferPool bufferPool) {
+        this(props, bufferPool, null, null);
+    }
+
+    /**
+     * Executors are created from props unless supplied
+     */
+    EventLoopImpl(Properties props, BufferPool bufferPool, ExecutorService executor, ExecutorService clientExecutor) {
+        this.bufferPool = Objects.requireNonNull(bufferPool);
+        this.writeBatchSize = getIntProperty(props, WRITE_BATCH_SIZE, 64);
+        if (executor == null) {
+            DispatchStrategy strategy = DispatchStrategy.fromProperties(props);
+            int threads = getIntProperty(props, DispatchStrategy.DISPATCH_THREADS, 5);
+            executor = strategy.newExecutor(threads);
+            clientExecutor = strategy.newExecutor(threads);
+            this.ownsExecutors = true;
+        } else {
+            this.ownsExecutors = false;
+        }
+        this.executor = executor;
+        this.clientExecutor = clientExecutor;
         try {
             selector = Selector.open();
         }
         catch (Exception e) {
             errored = true;
+            shutdownExecutors();
             throw new NetException("Error opening selector", e);
         }
         opened = true;
     }
 
+    static int getIntProperty(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            int n = Integer.parseInt(value.trim());
+            if (n >= 1)
+                return n;
+        } catch (NumberFormatException e) {
+        }
+        throw new NetException("Invalid value " + value + " for " + name + ", must be a positive integer");
+    }
+
     /**
      * Start operation to connect to another server, if listener is supplied it will be invoked
      * when connection is successful or fails.
@@ -80,16 +169,19 @@ public class EventLoopImpl implements EventLoop {
     public Connection clientConnection(String address, int port, ConnectionListener connectionListener) {
         int id = connId.incrementAndGet();
         ConnectionImpl connection = null;
+        SelectionKey key = null;
         try {
             SocketChannel channel = NIOUtil.getSocketChannel(address, port);
             connection = new ConnectionImpl(id, this, channel, connectionListener);
-            SelectionKey key = connection.socketChannel.register(this.selector, SelectionKey.OP_CONNECT);
-            key.attach(connection);
+            key = connection.socketChannel.register(this.selector, SelectionKey.OP_CONNECT, connection);
+            connection.key = key;
         }
         catch (Exception e) {
             informConnectionListener(connectionListener, false);
             if (connection != null)
                 connection.setErrored();
+            if (key != null)
+                closeKey(key);
             throw new NetException("Failed to create channel for connection to " + address + ":" + port, e);
         }
         return connection;
@@ -132,39 +224,8 @@ public class EventLoopImpl implements EventLoop {
         if (!opened || stop) {
             throw new NetException("The EventLoop is not open or shutting down");
         }
-        for (SelectionKey key : selector.keys()) {
-            if (!key.isValid()) {
-                // TODO do we need to call a listener?
-                if (key.attachment() != null)
-                    key.attach(null);
-                continue;
-            }
-            ProtocolHandler handler = (ProtocolHandler) key.attachment();
-            if (handler == null) {
-                /*
-                 * Must be the serverSocketChannel which doesn't have an
-                 * attached handler.
-                 */
-                continue;
-            }
-            if (!handler.isOkay()) {
-                /*
-                 * Handler has errored or the client has closed connection.
-                 */
-                key.cancel();
-                NIOUtil.close(key.channel());
-                // TODO do we need to call a listener?
-                key.attach(null);
-                continue;
-            }
-            if (handler.socketChannel.isConnectionPending()) {
-                key.interestOps(SelectionKey.OP_CONNECT);
-            } else if (handler.isWritePending()) {
-                key.interestOps(SelectionKey.OP_WRITE);
-            } else {
-                key.interestOps(SelectionKey.OP_READ);
-            }
-        }
+        runTasks();
+        registerWriteInterest();
         try {
             int n = selector.select(selectTimeout);
             if (n == 0) {
@@ -187,10 +248,69 @@ public class EventLoopImpl implements EventLoop {
                 handleConnect(key);
             } else if (key.isAcceptable()) {
                 handleAccept(key);
-            } else if (key.isReadable()) {
-                handleRead(key);
-            } else if (key.isWritable()) {
-                handleWrite(key);
+            } else {
+                // A connection can be both readable and writable
+                if (key.isReadable()) {
+                    handleRead(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handleWrite(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by ProtocolHandler when its write queue becomes non empty; the
+     * interest in writing is registered by the thread calling select().
+     */
+    void writeReady(ProtocolHandler handler) {
+        writeReady.offer(handler);
+        selector.wakeup();
+    }
+
+    /**
+     * Adds interest in writing for the connections that have become ready to write
+     * since the last select; interest is dropped again once they have written everything.
+     * Connections still connecting are skipped, handleConnect() takes care of them.
+     */
+    private void registerWriteInterest() {
+        ProtocolHandler handler;
+        while ((handler = writeReady.poll()) != null) {
+            SelectionKey key = handler.key;
+            if (key == null || !key.isValid())
+                continue;
+            int ops = key.interestOps();
+            if ((ops & SelectionKey.OP_CONNECT) == 0 && (ops & SelectionKey.OP_WRITE) == 0)
+                key.interestOps(ops | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Called when a connection has failed or been closed by the peer
+     */
+    private void closeKey(SelectionKey key) {
+        key.cancel();
+        NIOUtil.close(key.channel());
+        // TODO do we need to call a listener?
+        key.attach(null);
+    }
+
+    /**
+     * Runs task on the thread calling select(), waking it up if it is waiting.
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error(getClass(), "runTasks", "Error running task", e);
             }
         }
     }
@@ -201,7 +321,10 @@ public class EventLoopImpl implements EventLoop {
         try {
             boolean isConnected = channel.finishConnect();
             if (isConnected) {
-                key.interestOps(SelectionKey.OP_READ);
+                // Requests may have been submitted while connecting
+                key.interestOps(connection.isWritePending()
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
                 informConnectionListener(connection.connectionListener, true);
             }
             else {
@@ -209,6 +332,7 @@ public class EventLoopImpl implements EventLoop {
             }
         } catch (Exception e) {
             connection.setErrored();
+            closeKey(key);
             log.error(getClass(), "handleConnect", "Error occurred when completing connection " + connection + ": " + e.getMessage());
             informConnectionListener(connection.connectionListener, false);
         }
@@ -217,11 +341,21 @@ public class EventLoopImpl implements EventLoop {
     private void handleWrite(SelectionKey key) {
         ProtocolHandler protocolHandler = (ProtocolHandler) key.attachment();
         protocolHandler.doWrite(key);
+        if (!protocolHandler.isOkay()) {
+            closeKey(key);
+        } else if (!protocolHandler.isWritePending()) {
+            // A write queued after this check calls writeReady() and so restores the interest
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
     }
 
     private void handleRead(SelectionKey key) {
         ProtocolHandler protocolHandler = (ProtocolHandler) key.attachment();
         protocolHandler.doRead(key);
+        if (!protocolHandler.isOkay()) {
+            // Handler has errored or the client has closed connection.
+            closeKey(key);
+        }
     }
 
     private void handleAccept(SelectionKey key) {
@@ -229,17 +363,36 @@ public class EventLoopImpl implements EventLoop {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key
                 .channel();
         SocketChannel socketChannel = null;
-        SelectionKey channelKey = null;
         try {
             socketChannel = serverSocketChannel.accept();
+            if (socketChannel == null)
+                return;
             socketChannel.configureBlocking(false);
-            channelKey = socketChannel.register(this.selector,
-                    SelectionKey.OP_READ);
-            ConnectionImpl connection = new ConnectionImpl(connId.incrementAndGet(), this, socketChannel, null);
-            channelKey.attach(connection);
-            log.info(getClass(), "handleAccept", "Accepted connection " + connection);
         } catch (Exception e) {
             log.error(getClass(), "handleAccept", "Error when accepting connection", e);
+            NIOUtil.close(socketChannel);
+            return;
+        }
+        if (group != null) {
+            // Hand over to one of the group's loops, which registers it in its own thread
+            EventLoopImpl loop = group.nextLoop();
+            SocketChannel channel = socketChannel;
+            loop.execute(() -> loop.registerAccepted(channel));
+        } else {
+            registerAccepted(socketChannel);
+        }
+    }
+
+    private void registerAccepted(SocketChannel socketChannel) {
+        SelectionKey channelKey = null;
+        try {
+            ConnectionImpl connection = new ConnectionImpl(connId.incrementAndGet(), this, socketChannel, null);
+            channelKey = socketChannel.register(this.selector,
+                    SelectionKey.OP_READ, connection);
+            connection.key = channelKey;
+            log.info(getClass(), "registerAccepted", "Accepted connection " + connection);
+        } catch (Exception e) {
+            log.error(getClass(), "registerAccepted", "Error when accepting connection", e);
             /*
              * If we failed to accept a new channel, we can still continue serving
              * existing channels, so do not treat this as a fatal error
@@ -263,36 +416,93 @@ public class EventLoopImpl implements EventLoop {
             // Server side
             RequestDispatcher requestDispatcher = new RequestDispatcher(this,
                     protocolHandler, requestHandler, requestHeader, request);
-            log.debug(getClass(), "queueRequest", "Scheduling server write of " + requestHeader.getDataSize() + " for " + correlationId);
-            executor.execute(requestDispatcher);
+            if (log.isDebugEnabled())
+                log.debug(getClass(), "queueRequest", "Scheduling server write of " + requestHeader.getDataSize() + " for " + correlationId);
+            protocolHandler.requestExecutor.execute(requestDispatcher);
         }
         else {
             // Do we have a response handler?
-            ResponseHandler handler = pendingRequests.remove(correlationId);
-            if (handler == null) {
-                // No handler so nothing to do
+            PendingRequest pending = pendingRequests.remove(correlationId);
+            if (pending == null) {
+                // No handler, or the request timed out, so nothing to do
                 log.warn(getClass(), "queueRequest", "No handler found for " + correlationId);
+                bufferPool.release(request);
                 return;
             }
-            log.debug(getClass(), "queueRequest", "Scheduling client response of " + requestHeader.getDataSize() + " for " + correlationId);
-            ResponseDispatcher responseDispatcher = new ResponseDispatcher(this, handler, requestHeader, request);
-            clientExecutor.execute(responseDispatcher);
+            pending.cancelTimeout();
+            if (log.isDebugEnabled())
+                log.debug(getClass(), "queueRequest", "Scheduling client response of " + requestHeader.getDataSize() + " for " + correlationId);
+            ResponseDispatcher responseDispatcher = new ResponseDispatcher(this, pending.responseHandler, requestHeader, request);
+            protocolHandler.responseExecutor.execute(responseDispatcher);
         }
     }
 
-    void queueResponseHandler(Message request, ResponseHandler responseHandler) {
+    void queueResponseHandler(Message request, ResponseHandler responseHandler, Duration timeout) {
         CorrelationId correlationId = request.getCorrelationId();
-        pendingRequests.put(correlationId, responseHandler);
+        PendingRequest pending = new PendingRequest(correlationId, responseHandler);
+        pendingRequests.put(correlationId, pending);
+        if (timeout != null && !timeout.isZero() && !timeout.isNegative()) {
+            pending.timeout = timer.newTimeout(() -> expireRequest(pending), timeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Runs on the timer thread; if the response has not arrived the request is
+     * removed and the handler told in the client thread pool.
+     */
+    void expireRequest(PendingRequest pending) {
+        if (!pendingRequests.remove(pending.correlationId, pending))
+            return;
+        log.debug(getClass(), "expireRequest", "Request timed out " + pending.correlationId);
+        clientExecutor.execute(new TimeoutDispatcher(this, pending));
+    }
+
+    /**
+     * The timer used to expire requests; it may also be used to schedule
+     * other short tasks, which must hand off any real work to an executor.
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
     }
 
     @Override
     public void close() {
         NIOUtil.close(selector);
         opened = false;
+        timer.stop();
+        shutdownExecutors();
+    }
+
+    /**
+     * Executors shared with an EventLoopGroup are shut down by the group
+     */
+    private void shutdownExecutors() {
+        if (!ownsExecutors)
+            return;
         executor.shutdown();
         clientExecutor.shutdown();
     }
 
+    /**
+     * A request awaiting response, and the timeout that will expire it if any.
+     */
+    static final class PendingRequest {
+        final CorrelationId correlationId;
+        final ResponseHandler responseHandler;
+        volatile HashedWheelTimer.Timeout timeout;
+
+        PendingRequest(CorrelationId correlationId, ResponseHandler responseHandler) {
+            this.correlationId = correlationId;
+            this.responseHandler = responseHandler;
+        }
+
+        void cancelTimeout() {
+            HashedWheelTimer.Timeout t = timeout;
+            if (t != null)
+                t.cancel();
+        }
+    }
+
     static final class ConnectionListenerRunnable implements Runnable {
         final ConnectionListener listener;
         final boolean success;
@@ -350,6 +560,27 @@ public class EventLoopImpl implements EventLoop {
         }
     }
 
+    /**
+     * Used for one way requests: there is no one waiting for a response so
+     * anything the RequestHandler sets is discarded.
+     */
+    static final class OneWayResponseSender implements RequestResponseSender {
+        static final OneWayResponseSender INSTANCE = new OneWayResponseSender();
+
+        @Override
+        public void setData(ByteBuffer data) {
+        }
+
+        @Override
+        public void setErrored(String errorMessage) {
+        }
+
+        @Override
+        public void submit() {
+            log.debug(getClass(), "submit", "Discarding response to one way request");
+        }
+    }
+
     /**
      * RequestDispatcher task is responsible for handling a server side request. Actual
      * request handling is delegated to a RequestHandler instance.
@@ -378,12 +609,16 @@ public class EventLoopImpl implements EventLoop {
         }
 
         public void run() {
-            Message request = new MessageImpl(requestHeader, requestData);
-            RequestResponseSenderImpl responseGenerator = new RequestResponseSenderImpl(protocolHandler, requestHeader);
+            Message request = new MessageImpl(requestHeader, requestData, eventLoop.bufferPool);
+            RequestResponseSender responseGenerator = requestHeader.isOneWay()
+                    ? OneWayResponseSender.INSTANCE
+                    : new RequestResponseSenderImpl(protocolHandler, requestHeader);
             try {
                 requestHandler.handleRequest(request, responseGenerator);
             } catch (Exception e) {
                 eventLoop.log.error(getClass(), "run", "Exception occurred when handling request " + requestHeader.getCorrelationId(), e);
+                // The request is not released here: the handler may have kept parts of its
+                // data, so releasing it is up to the handler even when it throws
                 responseGenerator.setErrored(Objects.toString(e.getMessage()));
             }
         }
@@ -411,12 +646,36 @@ public class EventLoopImpl implements EventLoop {
         }
 
         public void run() {
-            Message response = new MessageImpl(responseHeader, responseData);
+            Message response = new MessageImpl(responseHeader, responseData, eventLoop.bufferPool);
             try {
                 responseHandler.onResponse(response);
             } catch (Exception e) {
+                // As for requests, releasing the response is up to the handler
                 eventLoop.log.error(getClass(), "run", "Error in ResponseHandler while processing " + response.getCorrelationId(), e);
             }
         }
     }
+
+    /**
+     * Executes the timeout callback in the client thread pool.
+     * @see ResponseHandler#onTimeout(CorrelationId)
+     */
+    static final class TimeoutDispatcher implements Runnable {
+
+        final EventLoopImpl eventLoop;
+        final PendingRequest pendingRequest;
+
+        TimeoutDispatcher(EventLoopImpl eventLoop, PendingRequest pendingRequest) {
+            this.eventLoop = eventLoop;
+            this.pendingRequest = pendingRequest;
+        }
+
+        public void run() {
+            try {
+                pendingRequest.responseHandler.onTimeout(pendingRequest.correlationId);
+            } catch (Exception e) {
+                eventLoop.log.error(getClass(), "run", "Error in ResponseHandler while processing timeout of " + pendingRequest.correlationId, e);
+            }
+        }
+    }
 }
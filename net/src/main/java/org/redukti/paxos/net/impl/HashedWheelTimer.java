@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.redukti.logging.Logger;
+import org.redukti.logging.LoggerFactory;
+import org.redukti.paxos.net.api.NetException;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed wheel timer (Varghese and Lauck) for large numbers of short lived timeouts,
+ * such as request timeouts, that are usually cancelled before they expire.
+ * <p>
+ * Time is divided into ticks, and the wheel has a bucket for each tick; a timeout is placed
+ * in the bucket of the tick it expires on, along with the number of full turns of the wheel
+ * still to go. Scheduling only adds the timeout to a lock free queue and cancelling only
+ * flips its state, so both are O(1) and cheap enough to be done for every request; a single
+ * worker thread moves new timeouts into buckets and expires one bucket per tick.
+ * </p>
+ * <p>
+ * Timeouts fire at tick granularity, i.e. up to one tick late. Tasks run on the worker
+ * thread and must be short; hand off anything substantial to an executor.
+ * </p>
+ */
+public final class HashedWheelTimer {
+
+    static final Logger log = LoggerFactory.DEFAULT.getLogger(HashedWheelTimer.class.getName());
+
+    /**
+     * Maximum number of new timeouts moved into buckets per tick, so that a burst
+     * of scheduling does not delay expiry of the current tick
+     */
+    static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    static final int STATE_INIT = 0;
+    static final int STATE_STARTED = 1;
+    static final int STATE_STOPPED = 2;
+
+    /**
+     * A scheduled task, returned by {@link #newTimeout(Runnable, long, TimeUnit)}.
+     */
+    public interface Timeout {
+        /**
+         * Cancels the timeout; returns false if it has already expired or been cancelled.
+         */
+        boolean cancel();
+
+        boolean isCancelled();
+
+        boolean isExpired();
+    }
+
+    final String name;
+    final long tickNanos;
+    final Bucket[] wheel;
+    final int mask;
+    final Queue<TimeoutImpl> newTimeouts = new ConcurrentLinkedQueue<>();
+    final Queue<TimeoutImpl> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    final AtomicLong pendingTimeouts = new AtomicLong();
+    final AtomicInteger state = new AtomicInteger(STATE_INIT);
+    final Thread worker;
+
+    /**
+     * Start of time for the wheel; deadlines are relative to it
+     */
+    volatile long startTime;
+    /**
+     * Ticks completed by the worker
+     */
+    long tick;
+
+    /**
+     * Creates a timer with 10 ms ticks and 512 buckets, i.e. about 5 sec per turn of the wheel.
+     */
+    public HashedWheelTimer(String name) {
+        this(name, 10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Creates a timer; the worker thread is started when the first timeout is scheduled.
+     *
+     * @param name Name of the worker thread
+     * @param tickDuration Duration of a tick
+     * @param unit Unit of tickDuration
+     * @param ticksPerWheel Number of buckets, rounded up to a power of 2
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("tickDuration must be greater than 0");
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+            throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30");
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+        int n = 1;
+        while (n < ticksPerWheel)
+            n <<= 1;
+        this.wheel = new Bucket[n];
+        for (int i = 0; i < n; i++)
+            wheel[i] = new Bucket();
+        this.mask = n - 1;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Schedules task to be run once after the given delay.
+     *
+     * @throws NetException if the timer has been stopped
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        start();
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(delay, 0)) - startTime;
+        TimeoutImpl timeout = new TimeoutImpl(this, task, deadline);
+        pendingTimeouts.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Number of timeouts scheduled that have neither expired nor been cancelled.
+     */
+    public long pendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+    /**
+     * Stops the worker thread; timeouts not yet expired never run.
+     */
+    public void stop() {
+        if (Thread.currentThread() == worker)
+            throw new NetException("Timer cannot be stopped from one of its tasks");
+        int prev = state.getAndSet(STATE_STOPPED);
+        if (prev != STATE_STARTED)
+            return;
+        worker.interrupt();
+        try {
+            worker.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void start() {
+        int s = state.get();
+        if (s == STATE_STARTED)
+            return;
+        if (s == STATE_STOPPED)
+            throw new NetException("Timer " + name + " has been stopped");
+        synchronized (this) {
+            if (state.get() == STATE_INIT) {
+                startTime = System.nanoTime();
+                state.set(STATE_STARTED);
+                worker.start();
+            }
+        }
+        if (state.get() == STATE_STOPPED)
+            throw new NetException("Timer " + name + " has been stopped");
+    }
+
+    private void run() {
+        while (state.get() == STATE_STARTED) {
+            long deadline = waitForNextTick();
+            if (deadline < 0)
+                break;
+            removeCancelled();
+            transferTimeouts();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Sleeps until the end of the current tick, returns the time relative to startTime,
+     * or -1 if stopped.
+     */
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleepMillis = (deadline - current + 999_999) / 1_000_000;
+            if (sleepMillis <= 0)
+                return current;
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                if (state.get() == STATE_STOPPED)
+                    return -1;
+            }
+        }
+    }
+
+    private void transferTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            TimeoutImpl timeout = newTimeouts.poll();
+            if (timeout == null)
+                break;
+            if (timeout.state != TimeoutImpl.ST_INIT) {
+                // Cancelled before it reached a bucket
+                continue;
+            }
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // A deadline already in the past goes in the current bucket
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        while (true) {
+            TimeoutImpl timeout = cancelledTimeouts.poll();
+            if (timeout == null)
+                break;
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    static final class TimeoutImpl implements Timeout {
+        static final int ST_INIT = 0;
+        static final int ST_CANCELLED = 1;
+        static final int ST_EXPIRED = 2;
+
+        static final AtomicIntegerFieldUpdater<TimeoutImpl> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(TimeoutImpl.class, "state");
+
+        final HashedWheelTimer timer;
+        final Runnable task;
+        final long deadline;
+        volatile int state = ST_INIT;
+
+        // Following are only accessed by the worker thread
+        long remainingRounds;
+        TimeoutImpl next;
+        TimeoutImpl prev;
+        Bucket bucket;
+
+        TimeoutImpl(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED))
+                return false;
+            timer.pendingTimeouts.decrementAndGet();
+            // Unlinked from its bucket by the worker on its next tick
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED))
+                return;
+            timer.pendingTimeouts.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.warn(getClass(), "expire", "Timer task failed", t);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts that hash to a tick; only accessed by the worker thread.
+     */
+    static final class Bucket {
+        TimeoutImpl head;
+        TimeoutImpl tail;
+
+        void add(TimeoutImpl timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Expires the timeouts due by deadline, counts down the rounds of the rest.
+         */
+        void expire(long deadline) {
+            TimeoutImpl timeout = head;
+            while (timeout != null) {
+                TimeoutImpl next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        // Cannot happen as deadlines are hashed by tick
+                        throw new IllegalStateException("timeout.deadline " + timeout.deadline + " > deadline " + deadline);
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(TimeoutImpl timeout) {
+            if (timeout.bucket != this)
+                return;
+            TimeoutImpl next = timeout.next;
+            if (timeout.prev != null)
+                timeout.prev.next = next;
+            if (next != null)
+                next.prev = timeout.prev;
+            if (timeout == head)
+                head = next;
+            if (timeout == tail)
+                tail = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -9,10 +9,20 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public class MessageHeader {
+    /**
+     * Bits of the request flags byte
+     */
+    static final byte FLAG_REQUEST = 1;
+    static final byte FLAG_ONE_WAY = 2;
+
     CorrelationId correlationId;
     int dataSize = 0;
     boolean hasException = false;
     boolean isRequest;
+    /**
+     * A one way request is never responded to
+     */
+    boolean isOneWay;
 
     public MessageHeader() {
         this.isRequest = true;
@@ -38,6 +48,14 @@ public class MessageHeader {
         this.dataSize = dataSize;
     }
 
+    public boolean isOneWay() {
+        return isOneWay;
+    }
+
+    void setOneWay(boolean isOneWay) {
+        this.isOneWay = isOneWay;
+    }
+
     public boolean hasException() {
         return hasException;
     }
@@ -58,7 +76,7 @@ public class MessageHeader {
         bb.putInt(correlationId.connectionId);
         bb.putLong(correlationId.requestId);
         bb.putInt(dataSize);
-        bb.put((byte) (isRequest ? 1 : 0));
+        bb.put((byte) ((isRequest ? FLAG_REQUEST : 0) | (isOneWay ? FLAG_ONE_WAY : 0)));
         bb.put((byte) (hasException ? 1 : 0));
     }
 
@@ -75,7 +93,8 @@ public class MessageHeader {
         correlationId = new CorrelationId(connId, reqId);
         dataSize = bb.getInt();
         byte b = bb.get();
-        isRequest = b == 1;
+        isRequest = (b & FLAG_REQUEST) != 0;
+        isOneWay = (b & FLAG_ONE_WAY) != 0;
         b = bb.get();
         hasException = b == 1;
     }
@@ -86,6 +105,7 @@ public class MessageHeader {
                 correlationId +
                 ", dataSize=" + dataSize +
                 ", isRequest=" + isRequest +
+                ", isOneWay=" + isOneWay +
                 '}';
     }
 }
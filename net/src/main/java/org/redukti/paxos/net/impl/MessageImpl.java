@@ -11,6 +11,10 @@ import java.nio.ByteBuffer;
 public class MessageImpl implements Message {
     MessageHeader header;
     ByteBuffer data;
+    /**
+     * Pool that data was acquired from, null if not pooled or already released
+     */
+    BufferPool pool;
 
     public MessageImpl(MessageHeader header, ByteBuffer data) {
         this.header = header;
@@ -18,6 +22,11 @@ public class MessageImpl implements Message {
         this.data = data;
     }
 
+    MessageImpl(MessageHeader header, ByteBuffer data, BufferPool pool) {
+        this(header, data);
+        this.pool = pool;
+    }
+
     private void setDataSize(MessageHeader header, ByteBuffer data) {
         int size = data.limit()- data.position();
         if (size < 0) {
@@ -40,10 +49,22 @@ public class MessageImpl implements Message {
     }
 
     public void setData(ByteBuffer data) {
+        release();
         this.data = data;
         setDataSize(header, data);
     }
 
+    @Override
+    public synchronized void release() {
+        if (pool == null)
+            return;
+        BufferPool p = pool;
+        ByteBuffer d = data;
+        pool = null;
+        data = null;
+        p.release(d);
+    }
+
     public MessageHeader getHeader() {
         return header;
     }
@@ -11,7 +11,8 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 final class WriteRequest {
     final MessageHeader messageHeader;
@@ -34,11 +35,20 @@ final class WriteRequest {
 
 /**
  * A simple protocol handler. The network protocol is extremely simple. Each
- * request must have a response. The request and response packets have a
- * header and a body. The header is of fixed length. The body is variable
- * length but the length is recorded in the header so that the handler can
- * determine when a full request/response packet has been received.
+ * request must have a response, unless it is sent one way. The request and
+ * response packets have a header and a body. The header is of fixed length.
+ * The body is variable length but the length is recorded in the header so
+ * that the handler can determine when a full request/response packet has
+ * been received.
  * <p>
+ * Queued packets are written in batches, the headers and bodies of up to
+ * {@link EventLoopImpl#WRITE_BATCH_SIZE} packets going out in one gathering
+ * write.
+ * </p>
+ * <p>
+ * Messages received on a connection are handed to the request or response
+ * handler one at a time, in the order they arrived.
+ * </p>
  *
  * @see MessageHeader
  * @author dibyendumajumdar
@@ -55,19 +65,58 @@ public abstract class ProtocolHandler {
     static final int STATE_PAYLOAD_COMPLETED = 3;
 
     ByteBuffer readHeader = MessageHeader.allocate();
-    MessageHeader requestHeader = new MessageHeader();
+    MessageHeader requestHeader = null;
     ByteBuffer readPayload = null;
     int readState = STATE_INIT;
 
-    ByteBuffer writeHeader = MessageHeader.allocate();
-    ArrayList<WriteRequest> writeQueue = new ArrayList<>();
-    WriteRequest current = null;
-    int writeState = STATE_INIT;
+    /**
+     * Packets waiting to be written; added to by any thread, removed from only
+     * by the event loop thread
+     */
+    final ConcurrentLinkedQueue<WriteRequest> writeQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * Number of packets in writeQueue, as ConcurrentLinkedQueue.size() is O(n);
+     * decremented only after packets are removed, so it is never less than the size
+     */
+    final AtomicInteger pendingWrites = new AtomicInteger();
+    /**
+     * Header buffers for a batch, reused from batch to batch
+     */
+    final ByteBuffer[] writeHeaders;
+    /**
+     * Header and body of each packet of the batch being written
+     */
+    final ByteBuffer[] writeBatch;
+    /**
+     * Number of buffers in writeBatch, and the first one not yet fully written
+     */
+    int writeBatchLength = 0;
+    int writeBatchOffset = 0;
 
-    boolean okay = true;
+    volatile boolean okay = true;
+
+    /**
+     * Key of the channel in the event loop's selector, set once registered
+     */
+    volatile SelectionKey key;
+
+    /**
+     * Requests, and responses, received on this connection are dispatched in order
+     * of arrival; other connections are dispatched in parallel
+     */
+    final SerialExecutor requestExecutor;
+    final SerialExecutor responseExecutor;
 
     ProtocolHandler(EventLoopImpl networkServer) {
         this.eventLoop = networkServer;
+        this.requestExecutor = new SerialExecutor(networkServer.executor);
+        this.responseExecutor = new SerialExecutor(networkServer.clientExecutor);
+        int batchSize = networkServer.writeBatchSize;
+        this.writeHeaders = new ByteBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            writeHeaders[i] = MessageHeader.allocate();
+        }
+        this.writeBatch = new ByteBuffer[batchSize * 2];
     }
 
     /**
@@ -88,7 +137,6 @@ public abstract class ProtocolHandler {
                 if (readState == STATE_INIT) {
                     /* Initial state */
                     readHeader.clear();
-                    requestHeader = new MessageHeader();
                     int n = socketChannel.read(readHeader);
                     if (n < 0) {
                         eof();
@@ -121,11 +169,13 @@ public abstract class ProtocolHandler {
                 }
 
                 if (readState == STATE_HEADER_COMPLETED) {
-                    /* parse the header */
+                    /* parse the header, the header object is handed over with the message */
+                    requestHeader = new MessageHeader();
                     requestHeader.retrieve(readHeader.flip());
-                    eventLoop.log.debug(getClass(), "doRead", "Reading payload of " + requestHeader.getDataSize());
-                    /* allocate buffer for reading the payload */
-                    readPayload = ByteBuffer.allocate(requestHeader
+                    if (eventLoop.log.isDebugEnabled())
+                        eventLoop.log.debug(getClass(), "doRead", "Reading payload of " + requestHeader.getDataSize());
+                    /* get a buffer for reading the payload, released by the message handler */
+                    readPayload = eventLoop.bufferPool.acquire(requestHeader
                             .getDataSize());
                     readState = STATE_PAYLOAD;
                 }
@@ -175,10 +225,12 @@ public abstract class ProtocolHandler {
 
     void eof() {
         okay = false;
+        releaseReadPayload();
     }
 
     void failed() {
         okay = false;
+        releaseReadPayload();
     }
 
     boolean isOkay() {
@@ -187,15 +239,28 @@ public abstract class ProtocolHandler {
 
     void connectionReset() {
         okay = false;
+        releaseReadPayload();
+    }
+
+    /**
+     * Returns the buffer of a partly read payload to the pool, as no message will own it
+     */
+    synchronized void releaseReadPayload() {
+        if (readPayload != null) {
+            eventLoop.bufferPool.release(readPayload);
+            readPayload = null;
+        }
     }
 
     /**
      * Perform an incremental write. Keep writing as long as the channel is
-     * writable and there are more packets to be written.
+     * writable and there are more packets to be written. Queued packets are
+     * written in batches with one gathering write per batch; a batch is
+     * only refilled once it has been written completely.
      *
      * @param key Identifies the channel that is ready for writing
      */
-    synchronized void doWrite(SelectionKey key) {
+    void doWrite(SelectionKey key) {
         if (!okay) {
             eventLoop.log.error(getClass(), "doWrite", "Channel in error state");
             throw new NetException("");
@@ -203,58 +268,20 @@ public abstract class ProtocolHandler {
         try {
             while (true) {
                 /* Keep writing as long as we can */
-                if (current == null) {
-                    /* Get the next message */
-                    if (writeQueue.size() > 0) {
-                        current = writeQueue.remove(0);
-                    } else {
+                if (writeBatchOffset == writeBatchLength) {
+                    /* Get the next batch */
+                    if (!fillWriteBatch()) {
                         /* No more messages to write */
                         break;
                     }
                 }
-                if (writeState == STATE_INIT) {
-                    writeHeader.clear();
-                    current.getResponseHeader().store(writeHeader);
-                    writeHeader.flip();
-                    socketChannel.write(writeHeader);
-                    if (writeHeader.remaining() == 0) {
-                        /* done writing the header */
-                        writeState = STATE_PAYLOAD;
-                    } else {
-                        /* need to resume write at a later time */
-                        writeState = STATE_HEADER;
-                        break;
-                    }
+                socketChannel.write(writeBatch, writeBatchOffset, writeBatchLength - writeBatchOffset);
+                while (writeBatchOffset < writeBatchLength && !writeBatch[writeBatchOffset].hasRemaining()) {
+                    writeBatch[writeBatchOffset++] = null;
                 }
-
-                if (writeState == STATE_HEADER) {
-                    /* resume writing the header */
-                    socketChannel.write(writeHeader);
-                    if (writeHeader.remaining() == 0) {
-                        /* done writing the header */
-                        writeState = STATE_PAYLOAD;
-                    } else {
-                        /* need to resume write at a leter time */
-                        break;
-                    }
-                }
-
-                if (writeState == STATE_PAYLOAD) {
-                    /* write the payload */
-                    socketChannel.write(current.getData());
-                    if (current.getData().remaining() == 0) {
-                        /* done */
-                        writeState = STATE_PAYLOAD_COMPLETED;
-                    } else {
-                        /* need to resume at a later time */
-                        break;
-                    }
-                }
-
-                if (writeState == STATE_PAYLOAD_COMPLETED) {
-                    /* all done so let's write another message */
-                    writeState = STATE_INIT;
-                    current = null;
+                if (writeBatchOffset < writeBatchLength) {
+                    /* need to resume at a later time */
+                    break;
                 }
             }
         } catch (IOException e) {
@@ -263,22 +290,52 @@ public abstract class ProtocolHandler {
         }
     }
 
+    /**
+     * Moves up to a batch of queued packets into writeBatch, returns false if
+     * there were none.
+     */
+    private boolean fillWriteBatch() {
+        int n = 0;
+        while (n < writeHeaders.length) {
+            WriteRequest wr = writeQueue.poll();
+            if (wr == null)
+                break;
+            int i = n++;
+            ByteBuffer header = writeHeaders[i];
+            header.clear();
+            wr.getResponseHeader().store(header);
+            header.flip();
+            writeBatch[2 * i] = header;
+            writeBatch[2 * i + 1] = wr.getData();
+        }
+        if (n > 0)
+            pendingWrites.addAndGet(-n);
+        writeBatchOffset = 0;
+        writeBatchLength = 2 * n;
+        return n > 0;
+    }
+
     /**
      * Add a write request to the queue - it will be picked by in the next
-     * select loop.
+     * select loop. The event loop is only told when the queue was empty, so
+     * that it registers interest in writing; otherwise it is already interested,
+     * or has yet to check isWritePending() before dropping interest.
+     * May be called by any thread, without locking.
      *
      * @param wr A write request
      */
-    synchronized void queueWrite(WriteRequest wr) {
-        writeQueue.add(wr);
-        eventLoop.selector.wakeup();
+    void queueWrite(WriteRequest wr) {
+        writeQueue.offer(wr);
+        if (pendingWrites.getAndIncrement() == 0) {
+            eventLoop.writeReady(this);
+        }
     }
 
     /**
      * Checks whether there are queued requests to be written
      */
-    synchronized boolean isWritePending() {
-        return writeQueue.size() > 0;
+    boolean isWritePending() {
+        return pendingWrites.get() > 0 || writeBatchOffset < writeBatchLength;
     }
 
 
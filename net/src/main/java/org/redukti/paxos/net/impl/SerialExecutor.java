@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.redukti.logging.Logger;
+import org.redukti.logging.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on a shared executor.
+ * <p>
+ * Each connection has its own SerialExecutor, so messages from a peer are handled in the
+ * order they arrived, while messages from different connections are handled in parallel
+ * by the shared executor. No thread is tied to a connection; while the queue is non empty
+ * a single drain task runs on the shared executor, and it gives its thread back after
+ * {@link #MAX_TASKS_PER_RUN} tasks so that a busy connection cannot starve the others.
+ * </p>
+ */
+final class SerialExecutor implements Executor {
+
+    static final Logger log = LoggerFactory.DEFAULT.getLogger(SerialExecutor.class.getName());
+
+    static final int MAX_TASKS_PER_RUN = 64;
+
+    final Executor executor;
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * True while a drain task is scheduled or running
+     */
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    final Runnable drain = this::drain;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) {
+            // Executor has been shut down, the event loop is closing
+            scheduled.set(false);
+            tasks.clear();
+            log.warn(getClass(), "schedule", "Tasks discarded as executor has been shut down");
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                Runnable task = tasks.poll();
+                if (task == null)
+                    break;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error(getClass(), "drain", "Unexpected error running task", e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // A task may have been added after the last poll but before scheduled was reset
+            if (!tasks.isEmpty())
+                schedule();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class TestBufferPool {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer bb = pool.acquire(0);
+        Assertions.assertEquals(0, bb.position());
+        Assertions.assertEquals(0, bb.limit());
+        Assertions.assertEquals(BufferPool.MIN_BUFFER_SIZE, bb.capacity());
+        bb = pool.acquire(BufferPool.MIN_BUFFER_SIZE + 1);
+        Assertions.assertEquals(BufferPool.MIN_BUFFER_SIZE + 1, bb.limit());
+        Assertions.assertEquals(BufferPool.MIN_BUFFER_SIZE * 2, bb.capacity());
+        bb = pool.acquire(BufferPool.MAX_BUFFER_SIZE);
+        Assertions.assertEquals(BufferPool.MAX_BUFFER_SIZE, bb.capacity());
+        bb = pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1);
+        Assertions.assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, bb.capacity());
+        Assertions.assertEquals(4, pool.getAllocations());
+        Assertions.assertEquals(0, pool.getReuses());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(true, 2);
+        ByteBuffer b1 = pool.acquire(1000);
+        ByteBuffer b2 = pool.acquire(1000);
+        ByteBuffer b3 = pool.acquire(1000);
+        Assertions.assertTrue(b1.isDirect());
+        b1.putInt(42);
+        pool.release(b1);
+        pool.release(b2);
+        // Beyond maxPooled
+        pool.release(b3);
+        // Not from the pool
+        pool.release(ByteBuffer.allocateDirect(1000));
+        ByteBuffer bb = pool.acquire(600);
+        Assertions.assertSame(b2, bb);
+        Assertions.assertEquals(0, bb.position());
+        Assertions.assertEquals(600, bb.limit());
+        bb = pool.acquire(1024);
+        Assertions.assertSame(b1, bb);
+        Assertions.assertEquals(1024, bb.limit());
+        Assertions.assertEquals(2, pool.getReuses());
+        Assertions.assertEquals(3, pool.getAllocations());
+        Assertions.assertTrue(pool.acquire(1000) != b3);
+    }
+
+    @Test
+    public void testMessageRelease() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer bb = pool.acquire(10);
+        MessageHeader header = new MessageHeader();
+        MessageImpl message = new MessageImpl(header, bb, pool);
+        Assertions.assertEquals(10, message.getDataSize());
+        message.release();
+        Assertions.assertNull(message.getData());
+        // Released only once
+        message.release();
+        Assertions.assertSame(bb, pool.acquire(10));
+        Assertions.assertEquals(1, pool.getAllocations());
+        Assertions.assertTrue(pool.acquire(10) != bb);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.redukti.paxos.net.api.Connection;
+import org.redukti.paxos.net.api.NetException;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestDispatchStrategy {
+
+    @Test
+    public void testFromProperties() {
+        Properties props = new Properties();
+        Assertions.assertEquals(DispatchStrategy.POOL, DispatchStrategy.fromProperties(props));
+        props.setProperty(DispatchStrategy.DISPATCH, "Virtual");
+        Assertions.assertEquals(DispatchStrategy.VIRTUAL, DispatchStrategy.fromProperties(props));
+        props.setProperty(DispatchStrategy.DISPATCH, "fibers");
+        Assertions.assertThrows(NetException.class, () -> DispatchStrategy.fromProperties(props));
+        props.setProperty(DispatchStrategy.DISPATCH, "pool");
+        props.setProperty(DispatchStrategy.DISPATCH_THREADS, "0");
+        Assertions.assertThrows(NetException.class, () -> new EventLoopImpl(props));
+    }
+
+    @Test
+    public void testVirtual() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(DispatchStrategy.DISPATCH, "virtual");
+        if (!DispatchStrategy.VIRTUAL.isSupported()) {
+            Assertions.assertThrows(NetException.class, () -> new EventLoopImpl(props));
+            return;
+        }
+        // More handlers blocked at once than a pool would have threads
+        int n = 50;
+        CountDownLatch allBlocked = new CountDownLatch(n);
+        CountDownLatch responded = new CountDownLatch(n);
+        try (EventLoopImpl eventLoop = new EventLoopImpl(props)) {
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> {
+                allBlocked.countDown();
+                try {
+                    allBlocked.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                responseSender.setData(request.getData());
+                responseSender.submit();
+            });
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                Connection connection = eventLoop.clientConnection("localhost", port, null);
+                for (int i = 0; i < n; i++) {
+                    connection.submit(ByteBuffer.wrap(new byte[]{(byte) i}), response -> responded.countDown(), Duration.ofSeconds(10));
+                }
+                Assertions.assertTrue(responded.await(10, TimeUnit.SECONDS));
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.redukti.paxos.net.api.Connection;
+import org.redukti.paxos.net.api.ConnectionListener;
+import org.redukti.paxos.net.api.NetException;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestEventLoop {
+
+    @Test
+    public void testHeader() throws Exception {
+        MessageHeader header = new MessageHeader(true);
+        header.setOneWay(true);
+        header.setCorrelationId(new CorrelationId(3, 42));
+        header.setDataSize(100);
+        ByteBuffer bb = MessageHeader.allocate();
+        header.store(bb);
+        Assertions.assertEquals(0, bb.remaining());
+
+        MessageHeader copy = new MessageHeader();
+        copy.retrieve(bb.flip());
+        Assertions.assertEquals(header.getCorrelationId(), copy.getCorrelationId());
+        Assertions.assertEquals(100, copy.getDataSize());
+        Assertions.assertTrue(copy.isRequest);
+        Assertions.assertTrue(copy.isOneWay());
+
+        header = new MessageHeader(false);
+        header.setCorrelationId(new CorrelationId(3, 42));
+        bb.clear();
+        header.store(bb);
+        copy.retrieve(bb.flip());
+        Assertions.assertFalse(copy.isRequest);
+        Assertions.assertFalse(copy.isOneWay());
+    }
+
+    @Test
+    public void testOneWay() throws Exception {
+        try (EventLoopImpl eventLoop = new EventLoopImpl()) {
+            int n = 100;
+            Semaphore received = new Semaphore(0);
+            AtomicInteger oneWay = new AtomicInteger();
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> {
+                // Discarded if no one is waiting for it
+                responseSender.setData(request.getData());
+                responseSender.submit();
+                if (((MessageImpl) request).getHeader().isOneWay()) {
+                    oneWay.incrementAndGet();
+                    request.release();
+                }
+                received.release();
+            });
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                Connection connection = eventLoop.clientConnection("localhost", port, null);
+                for (int i = 0; i < n; i++) {
+                    connection.send(ByteBuffer.wrap(new byte[]{(byte) i}));
+                    // One at a time so that each read buffer is released before the next read
+                    Assertions.assertTrue(received.tryAcquire(5, TimeUnit.SECONDS));
+                }
+                Assertions.assertEquals(n, oneWay.get());
+                Assertions.assertTrue(eventLoop.pendingRequests.isEmpty());
+                Assertions.assertEquals(1, eventLoop.bufferPool.getAllocations());
+                Assertions.assertEquals(n - 1, eventLoop.bufferPool.getReuses());
+
+                // A request on the same connection still gets its response
+                CountDownLatch responded = new CountDownLatch(1);
+                connection.submit(ByteBuffer.wrap(new byte[]{1}), response -> responded.countDown(), Duration.ofSeconds(5));
+                Assertions.assertTrue(responded.await(5, TimeUnit.SECONDS));
+                Assertions.assertEquals(n, oneWay.get());
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+
+    @Test
+    public void testBatchedWrites() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(EventLoopImpl.WRITE_BATCH_SIZE, "4");
+        try (EventLoopImpl eventLoop = new EventLoopImpl(props)) {
+            // Echo server
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> {
+                responseSender.setData(request.getData());
+                responseSender.submit();
+            });
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                Connection connection = eventLoop.clientConnection("localhost", port, null);
+                AtomicInteger errors = new AtomicInteger();
+                // Many small requests, written in batches
+                int n = 1000;
+                CountDownLatch responded = new CountDownLatch(n);
+                for (int i = 0; i < n; i++) {
+                    submitEcho(connection, i, 16, errors, responded);
+                }
+                Assertions.assertTrue(responded.await(30, TimeUnit.SECONDS));
+                // Large requests, each taking several writes
+                for (int i = 0; i < 4; i++) {
+                    CountDownLatch latch = new CountDownLatch(1);
+                    submitEcho(connection, i, 4 * 1024 * 1024, errors, latch);
+                    Assertions.assertTrue(latch.await(30, TimeUnit.SECONDS));
+                }
+                Assertions.assertEquals(0, errors.get());
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+        props.setProperty(EventLoopImpl.WRITE_BATCH_SIZE, "0");
+        Assertions.assertThrows(NetException.class, () -> new EventLoopImpl(props));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        try (EventLoopImpl eventLoop = new EventLoopImpl()) {
+            int threads = 8;
+            int n = 2000;
+            Semaphore received = new Semaphore(0);
+            AtomicInteger sum = new AtomicInteger();
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> {
+                sum.addAndGet(request.getData().getInt());
+                request.release();
+                received.release();
+            });
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                CountDownLatch connected = new CountDownLatch(1);
+                ConnectionImpl connection = (ConnectionImpl) eventLoop.clientConnection("localhost", port, new ConnectionListener() {
+                    @Override
+                    public void onConnectionFailed() {
+                    }
+
+                    @Override
+                    public void onConnectionSuccess() {
+                        connected.countDown();
+                    }
+                });
+                Assertions.assertTrue(connected.await(5, TimeUnit.SECONDS));
+                Thread[] writers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    writers[t] = new Thread(() -> {
+                        for (int i = 1; i <= n; i++) {
+                            ByteBuffer bb = ByteBuffer.allocate(Integer.BYTES);
+                            bb.putInt(i).flip();
+                            connection.send(bb);
+                        }
+                    });
+                    writers[t].start();
+                }
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+                Assertions.assertTrue(received.tryAcquire(threads * n, 30, TimeUnit.SECONDS));
+                Assertions.assertEquals(threads * (n * (n + 1) / 2), sum.get());
+                Assertions.assertFalse(connection.isWritePending());
+                Assertions.assertTrue(connection.writeQueue.isEmpty());
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+
+    @Test
+    public void testReadWhileWriting() throws Exception {
+        try (EventLoopImpl eventLoop = new EventLoopImpl()) {
+            // Echo server
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> {
+                responseSender.setData(request.getData());
+                responseSender.submit();
+            });
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                Connection connection = eventLoop.clientConnection("localhost", port, null);
+                AtomicInteger errors = new AtomicInteger();
+                // Pipelined large requests, more than the socket buffers can hold, so
+                // both sides must read while they still have writing to do
+                int n = 8;
+                CountDownLatch responded = new CountDownLatch(n);
+                for (int i = 0; i < n; i++) {
+                    submitEcho(connection, i, 4 * 1024 * 1024, errors, responded);
+                }
+                Assertions.assertTrue(responded.await(30, TimeUnit.SECONDS));
+                Assertions.assertEquals(0, errors.get());
+                Assertions.assertEquals(0, ((ConnectionImpl) connection).key.interestOps() & SelectionKey.OP_WRITE);
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+
+    @Test
+    public void testClosedConnection() throws Exception {
+        try (EventLoopImpl eventLoop = new EventLoopImpl()) {
+            Semaphore received = new Semaphore(0);
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> received.release());
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                ConnectionImpl connection = (ConnectionImpl) eventLoop.clientConnection("localhost", port, null);
+                connection.send(ByteBuffer.wrap(new byte[]{1}));
+                Assertions.assertTrue(received.tryAcquire(5, TimeUnit.SECONDS));
+                // Server channel, and both ends of the connection
+                Assertions.assertEquals(3, eventLoop.selector.keys().size());
+                connection.socketChannel.close();
+                // The server end sees EOF and is cleaned up
+                long deadline = System.currentTimeMillis() + 5000;
+                while (eventLoop.selector.keys().size() > 1 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                Assertions.assertEquals(1, eventLoop.selector.keys().size());
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+
+    @Test
+    public void testBufferOwnershipOnError() throws Exception {
+        try (EventLoopImpl eventLoop = new EventLoopImpl()) {
+            int n = 10;
+            Semaphore received = new Semaphore(0);
+            List<ByteBuffer> retained = new ArrayList<>();
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> {
+                if (request.getData().get(0) == n) {
+                    // Last one, dispatched only after the failed ones have been dealt with
+                    request.release();
+                    received.release();
+                    return;
+                }
+                // Keeps the data and then fails, as a handler may
+                retained.add(request.getData());
+                throw new IllegalStateException("handler failed");
+            });
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                Connection connection = eventLoop.clientConnection("localhost", port, null);
+                for (int i = 0; i <= n; i++) {
+                    connection.send(ByteBuffer.wrap(new byte[]{(byte) i}));
+                }
+                Assertions.assertTrue(received.tryAcquire(5, TimeUnit.SECONDS));
+                // The event loop did not release the buffers the handler kept
+                Assertions.assertEquals(n + 1, eventLoop.bufferPool.getAllocations());
+                Assertions.assertEquals(0, eventLoop.bufferPool.getReuses());
+                for (int i = 0; i < n; i++) {
+                    ByteBuffer bb = eventLoop.bufferPool.acquire(1);
+                    for (ByteBuffer r : retained) {
+                        Assertions.assertTrue(r != bb);
+                    }
+                    bb.put(0, (byte) -1);
+                }
+                for (int i = 0; i < n; i++) {
+                    Assertions.assertEquals(i, retained.get(i).get(0));
+                }
+                long allocations = eventLoop.bufferPool.getAllocations();
+
+                // A peer that goes away part way through a payload
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+                    MessageHeader header = new MessageHeader(true);
+                    header.setOneWay(true);
+                    header.setCorrelationId(new CorrelationId(99, 1));
+                    header.setDataSize(1000);
+                    ByteBuffer bb = MessageHeader.allocate();
+                    header.store(bb);
+                    channel.write(bb.flip());
+                    channel.write(ByteBuffer.allocate(10));
+                }
+                // Wait for the partial payload to be read and the connection cleaned up
+                long deadline = System.currentTimeMillis() + 5000;
+                while ((eventLoop.bufferPool.getAllocations() == allocations || eventLoop.selector.keys().size() > 3)
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                Assertions.assertEquals(3, eventLoop.selector.keys().size());
+                Assertions.assertEquals(allocations + 1, eventLoop.bufferPool.getAllocations());
+                eventLoop.bufferPool.acquire(1000);
+                Assertions.assertEquals(allocations + 1, eventLoop.bufferPool.getAllocations());
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+
+    @Test
+    public void testOrderedDispatch() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(DispatchStrategy.DISPATCH_THREADS, "4");
+        try (EventLoopImpl eventLoop = new EventLoopImpl(props)) {
+            int nConnections = 4;
+            int n = 500;
+            // Next sequence number expected from each connection
+            Map<Integer, Integer> expected = new ConcurrentHashMap<>();
+            AtomicInteger errors = new AtomicInteger();
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger maxActive = new AtomicInteger();
+            Semaphore received = new Semaphore(0);
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> {
+                int now = active.incrementAndGet();
+                maxActive.accumulateAndGet(now, Math::max);
+                ByteBuffer data = request.getData();
+                int c = data.getInt();
+                int seq = data.getInt();
+                request.release();
+                if (expected.getOrDefault(c, 0) != seq)
+                    errors.incrementAndGet();
+                expected.put(c, seq + 1);
+                if (seq % 50 == 0) {
+                    // Give later messages a chance to overtake, were they not ordered
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                active.decrementAndGet();
+                received.release();
+            });
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                Connection[] connections = new Connection[nConnections];
+                for (int c = 0; c < nConnections; c++) {
+                    connections[c] = eventLoop.clientConnection("localhost", port, null);
+                }
+                for (int i = 0; i < n; i++) {
+                    for (int c = 0; c < nConnections; c++) {
+                        ByteBuffer bb = ByteBuffer.allocate(2 * Integer.BYTES);
+                        bb.putInt(c).putInt(i).flip();
+                        connections[c].send(bb);
+                    }
+                }
+                Assertions.assertTrue(received.tryAcquire(nConnections * n, 30, TimeUnit.SECONDS));
+                Assertions.assertEquals(0, errors.get());
+                for (int c = 0; c < nConnections; c++) {
+                    Assertions.assertEquals(n, (int) expected.get(c));
+                }
+                // Connections were not serialized with respect to each other
+                Assertions.assertTrue(maxActive.get() > 1);
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+
+    private static void submitEcho(Connection connection, int value, int size, AtomicInteger errors, CountDownLatch latch) {
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        while (bb.hasRemaining())
+            bb.put((byte) value);
+        bb.flip();
+        connection.submit(bb, response -> {
+            ByteBuffer data = response.getData();
+            if (data.remaining() != size)
+                errors.incrementAndGet();
+            while (data.hasRemaining()) {
+                if (data.get() != (byte) value) {
+                    errors.incrementAndGet();
+                    break;
+                }
+            }
+            response.release();
+            latch.countDown();
+        }, Duration.ofSeconds(30));
+    }
+}
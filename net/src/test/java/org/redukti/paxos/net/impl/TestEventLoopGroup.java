@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.redukti.paxos.net.api.Connection;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestEventLoopGroup {
+
+    @Test
+    public void testGroup() throws Exception {
+        int nThreads = 3;
+        int nConnections = 6;
+        int n = 100;
+        try (EventLoopGroup group = new EventLoopGroup(nThreads)) {
+            // Echo server
+            group.startServerChannel("localhost", 0, (request, responseSender) -> {
+                responseSender.setData(request.getData());
+                responseSender.submit();
+            });
+            int port = group.acceptor.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    group.select();
+            });
+            selectThread.start();
+            try {
+                Connection[] connections = new Connection[nConnections];
+                for (int i = 0; i < nConnections; i++) {
+                    connections[i] = group.clientConnection("localhost", port, null);
+                }
+                CountDownLatch responded = new CountDownLatch(nConnections * n);
+                AtomicInteger errors = new AtomicInteger();
+                for (int i = 0; i < n; i++) {
+                    for (int c = 0; c < nConnections; c++) {
+                        int value = c * n + i;
+                        ByteBuffer bb = ByteBuffer.allocate(Integer.BYTES);
+                        bb.putInt(value).flip();
+                        connections[c].submit(bb, response -> {
+                            if (response.getData().getInt() != value)
+                                errors.incrementAndGet();
+                            response.release();
+                            responded.countDown();
+                        }, Duration.ofSeconds(10));
+                    }
+                }
+                Assertions.assertTrue(responded.await(10, TimeUnit.SECONDS));
+                Assertions.assertEquals(0, errors.get());
+                // Each loop owns its share of the client and accepted connections
+                for (EventLoopImpl loop : group.loops) {
+                    Assertions.assertEquals(2 * nConnections / nThreads, loop.selector.keys().size());
+                }
+                Assertions.assertEquals(1, group.acceptor.selector.keys().size());
+                Assertions.assertEquals(2 * nConnections, group.acceptor.connId.get());
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2022 Dibyendu Majumdar
+ * MIT License
+ */
+package org.redukti.paxos.net.impl;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.redukti.paxos.net.api.Connection;
+import org.redukti.paxos.net.api.Message;
+import org.redukti.paxos.net.api.NetException;
+import org.redukti.paxos.net.api.ResponseHandler;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestHashedWheelTimer {
+
+    @Test
+    public void testExpiry() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test", 5, TimeUnit.MILLISECONDS, 8);
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            long start = System.nanoTime();
+            // Longer than one turn of the wheel
+            HashedWheelTimer.Timeout timeout = timer.newTimeout(latch::countDown, 100, TimeUnit.MILLISECONDS);
+            Assertions.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            Assertions.assertTrue(timeout.isExpired());
+            Assertions.assertFalse(timeout.cancel());
+            Assertions.assertEquals(0, timer.pendingTimeouts());
+        } finally {
+            timer.stop();
+        }
+        Assertions.assertThrows(NetException.class, () -> timer.newTimeout(() -> {}, 1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test", 5, TimeUnit.MILLISECONDS, 8);
+        try {
+            int n = 100_000;
+            AtomicInteger fired = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(1);
+            HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[n];
+            for (int i = 0; i < n; i++) {
+                timeouts[i] = timer.newTimeout(fired::incrementAndGet, 500 + i % 50, TimeUnit.MILLISECONDS);
+            }
+            // Cancel every other one
+            for (int i = 0; i < n; i += 2) {
+                Assertions.assertTrue(timeouts[i].cancel());
+            }
+            timer.newTimeout(latch::countDown, 1000, TimeUnit.MILLISECONDS);
+            Assertions.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(n / 2, fired.get());
+            for (int i = 0; i < n; i++) {
+                Assertions.assertEquals(i % 2 == 0, timeouts[i].isCancelled());
+                Assertions.assertEquals(i % 2 != 0, timeouts[i].isExpired());
+            }
+            Assertions.assertEquals(0, timer.pendingTimeouts());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        try (EventLoopImpl eventLoop = new EventLoopImpl()) {
+            // Server that never responds
+            eventLoop.startServerChannel("localhost", 0, (request, responseSender) -> {});
+            int port = eventLoop.serverSocketChannel.socket().getLocalPort();
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread selectThread = new Thread(() -> {
+                while (!stop.get())
+                    eventLoop.select();
+            });
+            selectThread.start();
+            try {
+                Connection connection = eventLoop.clientConnection("localhost", port, null);
+                CountDownLatch latch = new CountDownLatch(1);
+                AtomicBoolean responded = new AtomicBoolean();
+                ResponseHandler handler = new ResponseHandler() {
+                    @Override
+                    public void onResponse(Message response) {
+                        responded.set(true);
+                    }
+
+                    @Override
+                    public void onTimeout(CorrelationId correlationId) {
+                        latch.countDown();
+                    }
+                };
+                connection.submit(ByteBuffer.wrap(new byte[]{1, 2, 3}), handler, Duration.ofMillis(100));
+                Assertions.assertTrue(latch.await(5, TimeUnit.SECONDS));
+                Assertions.assertFalse(responded.get());
+                Assertions.assertTrue(eventLoop.pendingRequests.isEmpty());
+            } finally {
+                stop.set(true);
+                selectThread.join();
+            }
+        }
+    }
+}